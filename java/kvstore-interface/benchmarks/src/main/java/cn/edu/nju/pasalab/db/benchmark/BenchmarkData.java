@@ -0,0 +1,57 @@
+package cn.edu.nju.pasalab.db.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generate the keys and values used by the benchmarks.
+ */
+public final class BenchmarkData {
+
+    public static byte[] intToByteArray(int a) {
+        return new byte[] {
+                (byte) ((a >> 24) & 0xFF),
+                (byte) ((a >> 16) & 0xFF),
+                (byte) ((a >> 8) & 0xFF),
+                (byte) (a & 0xFF)
+        };
+    }
+
+    public static byte[][] keys(int from, int num) {
+        byte[][] keys = new byte[num][];
+        for (int i = 0; i < num; i++) {
+            keys[i] = intToByteArray(from + i);
+        }
+        return keys;
+    }
+
+    public static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a value made of a few repeated words, compressible like the text values we store
+     */
+    public static byte[] compressibleBytes(Random random, int size) {
+        String[] words = {"vertex", "edge", "label", "weight", "0.5", "1024", "neighbour", "pasa"};
+        StringBuilder builder = new StringBuilder(size + 16);
+        while (builder.length() < size) {
+            builder.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return builder.substring(0, size).getBytes();
+    }
+
+    /**
+     * @return a sorted array of distinct ids, like a neighbour list of a vertex
+     */
+    public static long[] sortedIDs(Random random, int size, int averageGap) {
+        long[] ids = new long[size];
+        long current = random.nextInt(1 << 20);
+        for (int i = 0; i < size; i++) {
+            current += 1 + random.nextInt(2 * averageGap);
+            ids[i] = current;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,82 @@
+package cn.edu.nju.pasalab.db.benchmark;
+
+import cn.edu.nju.pasalab.db.cache.CachedClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The batch assembly of getAll: splitting a batch into cache hits and backend queries
+ * and merging the results back in order, and the sub-batch copy of getAll(keys, from, to).
+ * hitPercent of the keys in each batch are cached. The others are absent from the in-process backend,
+ * so they stay misses across invocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetAllAssemblyBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int batchSize;
+
+    @Param({"0", "50", "100"})
+    int hitPercent;
+
+    @Param({"64"})
+    int valueSize;
+
+    CachedClient cachedClient;
+    InMemoryClient backend;
+    byte[][] keys;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty(CachedClient.CONF_DB_BACKEND_CLASS_NAME, InMemoryClient.class.getName());
+        conf.setProperty(CachedClient.CONF_CACHE_CAPACITY, Long.toString(256L << 20));
+        conf.setProperty(CachedClient.CONF_CACHE_STATS_FILE_PATH,
+                System.getProperty("java.io.tmpdir") + "/benchmark-cache.stats");
+        cachedClient = new CachedClient();
+        cachedClient.connect(conf);
+        cachedClient.clearDB();
+        backend = new InMemoryClient();
+        Random random = new Random(0);
+        keys = BenchmarkData.keys(0, batchSize);
+        byte[][] values = new byte[batchSize][];
+        for (int i = 0; i < batchSize; i++) {
+            values[i] = BenchmarkData.randomBytes(random, valueSize);
+        }
+        for (int i = 0; i < batchSize; i++) {
+            if (random.nextInt(100) < hitPercent) {
+                cachedClient.put(keys[i], values[i]);
+                cachedClient.get(keys[i]);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cachedClient.clearDB();
+        cachedClient.close();
+    }
+
+    @Benchmark
+    public byte[][] cachedGetAll() throws Exception {
+        return cachedClient.getAll(keys);
+    }
+
+    @Benchmark
+    public byte[][] backendGetAll() throws Exception {
+        return backend.getAll(keys);
+    }
+
+    @Benchmark
+    public byte[][] backendGetAllSubBatch() throws Exception {
+        return backend.getAll(keys, keys.length / 4, keys.length);
+    }
+}
@@ -0,0 +1,48 @@
+package cn.edu.nju.pasalab.db.benchmark;
+
+import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process backend for the benchmarks, so that no database cluster is needed.
+ * The instances share one static map, since CachedClient creates its backend by reflection.
+ */
+public final class InMemoryClient extends BasicKVDatabaseClient {
+
+    private static final ConcurrentHashMap<ByteBuffer, byte[]> DATA = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(byte[] key) throws Exception {
+        return DATA.get(ByteBuffer.wrap(key));
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws Exception {
+        DATA.put(ByteBuffer.wrap(key), value);
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        DATA.remove(ByteBuffer.wrap(key));
+    }
+
+    @Override
+    public void close() throws Exception {
+    }
+
+    @Override
+    public void connect(Properties conf) throws Exception {
+    }
+
+    @Override
+    public void clearDB() throws Exception {
+        DATA.clear();
+    }
+
+    @Override
+    public void createDB() throws Exception {
+    }
+}
@@ -0,0 +1,48 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import cn.edu.nju.pasalab.db.benchmark.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copies between the heap and the off-heap cache memory made by CachedClient's serializer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteArraySerializerBenchmark {
+
+    @Param({"16", "256", "4096", "65536"})
+    int valueSize;
+
+    CachedClient.ByteArraySerializer serializer;
+    byte[] value;
+    ByteBuffer offHeapBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        serializer = new CachedClient.ByteArraySerializer();
+        value = BenchmarkData.randomBytes(new Random(0), valueSize);
+        offHeapBuffer = ByteBuffer.allocateDirect(valueSize);
+        offHeapBuffer.put(value);
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        offHeapBuffer.clear();
+        serializer.serialize(value, offHeapBuffer);
+        return offHeapBuffer;
+    }
+
+    @Benchmark
+    public byte[] deserialize() {
+        offHeapBuffer.clear();
+        return serializer.deserialize(offHeapBuffer);
+    }
+}
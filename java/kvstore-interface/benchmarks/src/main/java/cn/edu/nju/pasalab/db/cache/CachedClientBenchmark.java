@@ -0,0 +1,127 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import cn.edu.nju.pasalab.db.benchmark.BenchmarkData;
+import cn.edu.nju.pasalab.db.benchmark.InMemoryClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hit and miss paths of CachedClient over an in-process backend.
+ *
+ * The hit state caches all of its keys. The miss state reads a key space
+ * much larger than the cache, so nearly every read goes to the backend and inserts into the cache.
+ * All the keys share one value, so the backend itself stays small.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CachedClientBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        @Param({"16", "256", "4096"})
+        int valueSize;
+
+        @Param({"hit", "miss"})
+        String path;
+
+        @Param({"1", "100", "1000"})
+        int batchSize;
+
+        CachedClient client;
+        int numKeys;
+        byte[][] keys;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            boolean hit = path.equals("hit");
+            numKeys = hit ? 10000 : 1000000;
+            long capacity = hit ? 256L << 20 : 4L << 20;
+            Properties conf = new Properties();
+            conf.setProperty(CachedClient.CONF_DB_BACKEND_CLASS_NAME, InMemoryClient.class.getName());
+            conf.setProperty(CachedClient.CONF_CACHE_CAPACITY, Long.toString(capacity));
+            conf.setProperty(CachedClient.CONF_CACHE_STATS_FILE_PATH,
+                    System.getProperty("java.io.tmpdir") + "/benchmark-cache.stats");
+            client = new CachedClient();
+            client.connect(conf);
+            client.clearDB();
+            byte[] value = BenchmarkData.randomBytes(new Random(0), valueSize);
+            keys = BenchmarkData.keys(0, numKeys);
+            byte[][] values = new byte[numKeys][];
+            Arrays.fill(values, value);
+            client.putAll(keys, values);
+            if (hit) {
+                client.getAll(keys); // warm the cache
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.clearDB();
+            client.close();
+        }
+    }
+
+    /**
+     * A random sequence of keys per thread, drawn once per trial: a per-invocation setup would cost more than a hit.
+     * The sequence is long enough to touch far more keys than the miss state caches.
+     */
+    @State(Scope.Thread)
+    public static class KeysState {
+        static final int SEQUENCE_LENGTH = 1 << 20;
+
+        int[] sequence;
+        int next = 0;
+        byte[][] batch;
+
+        @Setup(Level.Trial)
+        public void setup(CacheState cacheState) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            sequence = new int[SEQUENCE_LENGTH];
+            for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+                sequence[i] = random.nextInt(cacheState.numKeys);
+            }
+            batch = new byte[cacheState.batchSize][];
+        }
+
+        byte[] nextKey(CacheState cacheState) {
+            return cacheState.keys[sequence[next++ & (SEQUENCE_LENGTH - 1)]];
+        }
+
+        byte[][] nextBatch(CacheState cacheState) {
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = nextKey(cacheState);
+            }
+            return batch;
+        }
+    }
+
+    @Benchmark
+    public byte[] get(CacheState cacheState, KeysState keysState) throws Exception {
+        return cacheState.client.get(keysState.nextKey(cacheState));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] getConcurrent(CacheState cacheState, KeysState keysState) throws Exception {
+        return cacheState.client.get(keysState.nextKey(cacheState));
+    }
+
+    @Benchmark
+    public byte[][] getAll(CacheState cacheState, KeysState keysState) throws Exception {
+        return cacheState.client.getAll(keysState.nextBatch(cacheState));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[][] getAllConcurrent(CacheState cacheState, KeysState keysState) throws Exception {
+        return cacheState.client.getAll(keysState.nextBatch(cacheState));
+    }
+}
@@ -0,0 +1,54 @@
+package cn.edu.nju.pasalab.db.compress;
+
+import cn.edu.nju.pasalab.db.benchmark.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressing and decompressing one value with the codecs of CompressedClient.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueCodecBenchmark {
+
+    @Param({"lz4", "snappy", "zstd", "deflate"})
+    String codecName;
+
+    @Param({"256", "4096", "65536"})
+    int valueSize;
+
+    ValueCodec codec;
+    byte[] value;
+    byte[] compressBuffer;
+    byte[] compressed;
+    byte[] decompressBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        codec = ValueCodecs.forName(codecName, -1);
+        value = BenchmarkData.compressibleBytes(new Random(0), valueSize);
+        compressBuffer = new byte[codec.maxCompressedLength(valueSize)];
+        int length = codec.compress(value, compressBuffer, 0);
+        compressed = new byte[length];
+        System.arraycopy(compressBuffer, 0, compressed, 0, length);
+        decompressBuffer = new byte[valueSize];
+    }
+
+    @Benchmark
+    public int compress() throws IOException {
+        return codec.compress(value, compressBuffer, 0);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        codec.decompress(compressed, 0, compressed.length, decompressBuffer);
+        return decompressBuffer;
+    }
+}
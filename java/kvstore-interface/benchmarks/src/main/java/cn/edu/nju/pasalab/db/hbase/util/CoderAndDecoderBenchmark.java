@@ -0,0 +1,61 @@
+package cn.edu.nju.pasalab.db.hbase.util;
+
+import cn.edu.nju.pasalab.db.benchmark.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The long and long[] codecs of CoderAndDecoder.
+ * The long[] values are sorted neighbour lists, with ids spread by averageGap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoderAndDecoderBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int arrayLength;
+
+    @Param({"4", "1024"})
+    int averageGap;
+
+    long key;
+    byte[] encodedKey;
+    long[] array;
+    byte[] encodedArray;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        key = random.nextLong();
+        encodedKey = CoderAndDecoder.toByteArray(key);
+        array = BenchmarkData.sortedIDs(random, arrayLength, averageGap);
+        encodedArray = CoderAndDecoder.toByteArray(array);
+    }
+
+    @Benchmark
+    public byte[] encodeLong() {
+        return CoderAndDecoder.toByteArray(key);
+    }
+
+    @Benchmark
+    public long decodeLong() {
+        return CoderAndDecoder.toLong(encodedKey);
+    }
+
+    @Benchmark
+    public byte[] encodeLongArray() throws IOException {
+        return CoderAndDecoder.toByteArray(array);
+    }
+
+    @Benchmark
+    public long[] decodeLongArray() throws IOException {
+        return CoderAndDecoder.toLongArray(encodedArray);
+    }
+}
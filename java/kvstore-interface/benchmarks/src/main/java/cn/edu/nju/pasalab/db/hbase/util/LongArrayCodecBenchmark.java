@@ -0,0 +1,69 @@
+package cn.edu.nju.pasalab.db.hbase.util;
+
+import cn.edu.nju.pasalab.db.benchmark.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The codecs of LongArrayCodecs on sorted neighbour lists, with ids spread by averageGap.
+ * decodePrefix reads only the first 16 ids through the iterator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LongArrayCodecBenchmark {
+
+    @Param({"snappy", "delta-varint", "group-varint", "pfor", "pfor+snappy"})
+    String codecName;
+
+    @Param({"16", "256", "4096"})
+    int arrayLength;
+
+    @Param({"4", "1024"})
+    int averageGap;
+
+    LongArrayCodec codec;
+    long[] array;
+    byte[] encoded;
+    long[] decodeBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        codec = LongArrayCodecs.forName(codecName);
+        array = BenchmarkData.sortedIDs(new Random(0), arrayLength, averageGap);
+        encoded = codec.encode(array);
+        decodeBuffer = new long[arrayLength];
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(array);
+    }
+
+    @Benchmark
+    public long[] decode() throws IOException {
+        return codec.decode(encoded);
+    }
+
+    @Benchmark
+    public int decodeInto() throws IOException {
+        return codec.decode(encoded, decodeBuffer);
+    }
+
+    @Benchmark
+    public long decodePrefix() throws IOException {
+        PrimitiveIterator.OfLong iterator = codec.iterator(encoded);
+        long sum = 0;
+        for (int i = 0; i < 16 && iterator.hasNext(); i++) {
+            sum += iterator.nextLong();
+        }
+        return sum;
+    }
+}
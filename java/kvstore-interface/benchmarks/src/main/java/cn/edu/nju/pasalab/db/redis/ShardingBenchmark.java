@@ -0,0 +1,56 @@
+package cn.edu.nju.pasalab.db.redis;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing keys to Redis shards with the shard routers of ShardedLettuceClient.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ShardingBenchmark {
+
+    static final int KEYS_PER_INVOCATION = 1000; // the scores are per key
+
+    @Param({ShardRouter.MODULO, ShardRouter.JUMP, ShardRouter.CONSISTENT})
+    String routerType;
+
+    @Param({"4", "16", "64"})
+    int numServers;
+
+    @Param({"4", "8", "32"})
+    int keySize;
+
+    byte[][] keys;
+    ShardRouter router;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(0);
+        keys = new byte[KEYS_PER_INVOCATION][keySize];
+        for (byte[] key : keys) {
+            random.nextBytes(key);
+        }
+        String[] hosts = new String[numServers];
+        for (int i = 0; i < numServers; i++) {
+            hosts[i] = "redis-" + i;
+        }
+        router = ShardRouter.create(routerType, hosts, 160);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS_PER_INVOCATION)
+    public int[] getShard() {
+        int[] serverIDs = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            serverIDs[i] = router.getShard(keys[i]);
+        }
+        return serverIDs;
+    }
+}
@@ -0,0 +1,47 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import java.util.Properties;
+
+/**
+ * Decide whether a value read from the backend on a miss, written through or restored from a snapshot is cached.
+ * The getAll batches of at least cache.scan.batch.size keys are scans, which a policy may treat apart.
+ * Implementations are thread-safe.
+ */
+public interface AdmissionPolicy {
+
+    String ALL = "all";
+    String SIZE_FREQUENCY = "size-frequency";
+
+    /**
+     * Called once for every value read from the backend on a miss or written through, so a policy can count
+     * the accesses of a key.
+     * @param scan whether the read is part of a getAll batch large enough to be a scan
+     * @return false to not cache the value
+     */
+    boolean admit(byte key[], int valueLength, boolean scan);
+
+    /**
+     * Called for the values restored from a snapshot, whose keys were hot when it was saved.
+     * @return false to not cache the value
+     */
+    default boolean admitRestored(byte key[], int valueLength) {
+        return admit(key, valueLength, false);
+    }
+
+    /**
+     * @param type all, size-frequency, or the name of an implementing class with a public constructor taking
+     *             the configuration
+     * @param expectedEntries the number of entries the cache can hold, to size the policy
+     */
+    static AdmissionPolicy create(String type, Properties conf, long expectedEntries)
+            throws ReflectiveOperationException {
+        switch (type) {
+            case ALL:
+                return (key, valueLength, scan) -> true;
+            case SIZE_FREQUENCY:
+                return new SizeFrequencyAdmission(conf, expectedEntries);
+            default:
+                return (AdmissionPolicy) Class.forName(type).getConstructor(Properties.class).newInstance(conf);
+        }
+    }
+}
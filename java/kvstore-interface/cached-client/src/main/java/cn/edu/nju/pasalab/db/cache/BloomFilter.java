@@ -0,0 +1,100 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of byte[] keys. Keys can only be added; clear() empties it.
+ * The bit positions come from double hashing of a 64-bit Murmur3-style hash of the key.
+ */
+class BloomFilter {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+
+    /**
+     * @param expectedKeys the number of keys the false positive probability is sized for
+     * @param falsePositiveProbability e.g. 0.01
+     */
+    BloomFilter(long expectedKeys, double falsePositiveProbability) {
+        expectedKeys = Math.max(1L, expectedKeys);
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        int numWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1L, (bits + 63) >>> 6));
+        this.words = new AtomicLongArray(numWords);
+        this.numBits = (long) numWords << 6;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedKeys * Math.log(2)));
+    }
+
+    void add(byte key[]) {
+        long h1 = hash(key);
+        long h2 = fmix(h1 ^ C1) | 1L;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+    }
+
+    /**
+     * @return false if the key was never added
+     */
+    boolean mightContain(byte key[]) {
+        long h1 = hash(key);
+        long h2 = fmix(h1 ^ C1) | 1L;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0L);
+        }
+    }
+
+    long sizeInBytes() {
+        return numBits >>> 3;
+    }
+
+    int getNumHashes() {
+        return numHashes;
+    }
+
+    static long hash(byte key[]) {
+        long h = 0x9747b28cL;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            long k = (key[i] & 0xFFL) | (key[i + 1] & 0xFFL) << 8 | (key[i + 2] & 0xFFL) << 16
+                    | (key[i + 3] & 0xFFL) << 24 | (key[i + 4] & 0xFFL) << 32 | (key[i + 5] & 0xFFL) << 40
+                    | (key[i + 6] & 0xFFL) << 48 | (key[i + 7] & 0xFFL) << 56;
+            h ^= Long.rotateLeft(k * C1, 31) * C2;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for (int shift = 0; i < key.length; i++, shift += 8) {
+            k |= (key[i] & 0xFFL) << shift;
+        }
+        h ^= Long.rotateLeft(k * C1, 31) * C2;
+        return fmix(h ^ key.length);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,115 @@
+package cn.edu.nju.pasalab.db.cache;
+
+/**
+ * The sizing model of the off-heap cache: its number of segments, the size of their hash tables and of their chunks,
+ * derived from the capacity, the expected size of the entries and the number of processors, unless configured.
+ *
+ * A segment is a lock, so there are about SEGMENTS_PER_PROCESSOR segments per processor, rounded to a power of two,
+ * but not so many that a segment holds less than MIN_SEGMENT_CAPACITY or MIN_ENTRIES_PER_SEGMENT entries.
+ * The hash table of a segment holds its share of the expected entries under the load factor, so OHC does not rehash
+ * as the cache fills. A chunk holds about ENTRIES_PER_CHUNK entries, and OHC requires it to fit twice in a segment.
+ *
+ * With cache.entry.mode=chunked, OHC allocates the entries in chunks with smaller headers; with fixed, every entry
+ * takes the same slot, for keys and values of at most cache.fixed.key.size.in.byte and
+ * cache.fixed.value.size.in.byte. Larger values are then not cached, and larger keys must not be used.
+ * Both modes are incompatible with cache.ttl.in.ms.
+ */
+final class CacheSizing {
+
+    enum EntryMode {
+        LINKED, CHUNKED, FIXED
+    }
+
+    static final String AUTO = "auto";
+    static final int SEGMENTS_PER_PROCESSOR = 4;
+    static final long MIN_SEGMENT_CAPACITY = 1L << 20;
+    static final int MIN_ENTRIES_PER_SEGMENT = 1024;
+    static final int MAX_SEGMENTS = 1 << 16;
+    static final double LOAD_FACTOR = 0.75; // the one of OHC
+    static final int MIN_HASH_TABLE_SIZE = 64;
+    static final int MAX_HASH_TABLE_SIZE = 1 << 30;
+    static final int ENTRIES_PER_CHUNK = 64;
+    // the headers of the entries in OHC
+    static final int LINKED_ENTRY_OVERHEAD = 64;
+    static final int CHUNKED_ENTRY_OVERHEAD = 24;
+    static final int FIXED_ENTRY_OVERHEAD = 16;
+
+    final EntryMode mode;
+    final long capacity;
+    final int entrySize; // off-heap, with the header
+    final long expectedEntries;
+    final int segmentCount;
+    final int hashTableSize; // per segment, linked mode only
+    final int chunkSize; // in byte, chunked and fixed modes only
+    private final boolean autoSegments;
+    private final boolean autoHashTable;
+    private final boolean autoChunk;
+
+    /**
+     * @param dataSize the expected size of the key and the value, including the expiry header
+     * @param segments the configured number of segments, or "auto"
+     * @param hashTable the configured hash table size per segment, or "auto"
+     * @param chunk the configured chunk size, or "auto"
+     */
+    CacheSizing(EntryMode mode, long capacity, int dataSize, int processors,
+                String segments, String hashTable, String chunk) {
+        this.mode = mode;
+        this.capacity = capacity;
+        this.entrySize = dataSize + (mode == EntryMode.LINKED ? LINKED_ENTRY_OVERHEAD
+                : mode == EntryMode.CHUNKED ? CHUNKED_ENTRY_OVERHEAD : FIXED_ENTRY_OVERHEAD);
+        this.expectedEntries = Math.max(1L, capacity / entrySize);
+        this.autoSegments = segments.equals(AUTO);
+        this.autoHashTable = hashTable.equals(AUTO);
+        this.autoChunk = chunk.equals(AUTO);
+
+        if (autoSegments) {
+            long minSegmentCapacity = Math.max(MIN_SEGMENT_CAPACITY, (long) MIN_ENTRIES_PER_SEGMENT * entrySize);
+            int count = roundUpToPowerOf2((long) processors * SEGMENTS_PER_PROCESSOR, MAX_SEGMENTS);
+            while (count > 1 && capacity / count < minSegmentCapacity) {
+                count /= 2;
+            }
+            this.segmentCount = count;
+        } else {
+            this.segmentCount = Integer.parseInt(segments);
+        }
+        if (autoHashTable) {
+            long entriesPerSegment = (long) Math.ceil(expectedEntries / (double) segmentCount / LOAD_FACTOR);
+            this.hashTableSize = Math.max(MIN_HASH_TABLE_SIZE, roundUpToPowerOf2(entriesPerSegment, MAX_HASH_TABLE_SIZE));
+        } else {
+            this.hashTableSize = Integer.parseInt(hashTable);
+        }
+        if (mode == EntryMode.LINKED) {
+            this.chunkSize = 0;
+        } else if (autoChunk) {
+            long maxChunkSize = capacity / segmentCount / 2;
+            this.chunkSize = (int) Math.min(Math.min(maxChunkSize, Integer.MAX_VALUE),
+                    roundUpToPowerOf2((long) ENTRIES_PER_CHUNK * entrySize, 1 << 30));
+        } else {
+            this.chunkSize = Integer.parseInt(chunk);
+        }
+    }
+
+    static int roundUpToPowerOf2(long n, int max) {
+        if (n >= max) {
+            return max;
+        }
+        return n <= 1 ? 1 : (int) Long.highestOneBit(n - 1) << 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder info = new StringBuilder()
+                .append(String.format("Set cache capacity: %d bytes, %s entries.\n", capacity, mode.name().toLowerCase()))
+                .append(String.format("Expected entry size: %d bytes, %d entries.\n", entrySize, expectedEntries))
+                .append(String.format("# Segments: %d%s, %d bytes each.\n", segmentCount,
+                        autoSegments ? " (auto)" : "", capacity / segmentCount));
+        if (mode == EntryMode.LINKED) {
+            info.append(String.format("Hash table size: %d%s per segment, %d bytes in total.",
+                    hashTableSize, autoHashTable ? " (auto)" : "", (long) hashTableSize * segmentCount * 8));
+        } else {
+            info.append(String.format("Chunk size: %d%s bytes, %d chunks per segment.",
+                    chunkSize, autoChunk ? " (auto)" : "", chunkSize == 0 ? 0 : capacity / segmentCount / chunkSize));
+        }
+        return info.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import org.caffinitas.ohc.CloseableIterator;
+import org.caffinitas.ohc.OHCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The hot keys of the cache, with or without their values, saved in a few files so they can be loaded in parallel.
+ *
+ * A file is a header (magic, version, whether values are included) followed by records of the key length, the key,
+ * and if included the value length and the value, ended by a key length of -1.
+ * The files are named path.0, path.1, ... and are replaced atomically.
+ */
+final class CacheSnapshot {
+
+    static final int MAGIC = 0x4F484353;
+    static final int VERSION = 1;
+
+    interface BatchLoader {
+        /**
+         * @param values null if the snapshot holds the keys only
+         * @return false to stop loading
+         */
+        boolean load(byte keys[][], byte values[][]) throws Exception;
+    }
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * @param valueOffset the length of the header of the cached values, which is not saved
+     * @return the number of keys written
+     */
+    static long write(OHCache<byte[], byte[]> cache, String path, int numFiles, int maxEntries, boolean withValues,
+                      int valueOffset) throws IOException {
+        File files[] = new File[numFiles];
+        File tempFiles[] = new File[numFiles];
+        DataOutputStream outputs[] = new DataOutputStream[numFiles];
+        long numKeys = 0L;
+        try {
+            for (int i = 0; i < numFiles; i++) {
+                files[i] = new File(path + "." + i);
+                tempFiles[i] = new File(path + "." + i + ".tmp");
+                outputs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFiles[i]), 1 << 16));
+                outputs[i].writeInt(MAGIC);
+                outputs[i].writeInt(VERSION);
+                outputs[i].writeBoolean(withValues);
+            }
+            try (CloseableIterator<byte[]> hotKeys = cache.hotKeyIterator(maxEntries)) {
+                while (hotKeys.hasNext()) {
+                    byte key[] = hotKeys.next();
+                    DataOutputStream output = outputs[(int) (numKeys % numFiles)];
+                    if (withValues) {
+                        // a copy, as the chunked implementation of OHC has no direct access
+                        byte value[] = cache.get(key);
+                        if (value == null) continue; // evicted since
+                        output.writeInt(key.length);
+                        output.write(key);
+                        output.writeInt(value.length - valueOffset);
+                        output.write(value, valueOffset, value.length - valueOffset);
+                    } else {
+                        output.writeInt(key.length);
+                        output.write(key);
+                    }
+                    numKeys++;
+                }
+            }
+            for (int i = 0; i < numFiles; i++) {
+                outputs[i].writeInt(-1);
+                outputs[i].close();
+                outputs[i] = null;
+                Files.move(tempFiles[i].toPath(), files[i].toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            for (int i = 0; i < numFiles; i++) {
+                if (outputs[i] != null) {
+                    outputs[i].close();
+                    tempFiles[i].delete();
+                }
+            }
+        }
+        // the files of a larger number of files used before
+        for (int i = numFiles; new File(path + "." + i).delete(); i++) ;
+        return numKeys;
+    }
+
+    static List<File> listFiles(String path) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; new File(path + "." + i).isFile(); i++) {
+            files.add(new File(path + "." + i));
+        }
+        return files;
+    }
+
+    /**
+     * Load the records of a file in batches, until the file ends or the deadline passes.
+     * @return the number of keys loaded
+     */
+    static long read(File file, int batchSize, long deadlineInNanos, BatchLoader loader) throws Exception {
+        long numKeys = 0L;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a cache snapshot of this version: " + file);
+            }
+            boolean withValues = input.readBoolean();
+            byte keys[][] = new byte[batchSize][];
+            byte values[][] = withValues ? new byte[batchSize][] : null;
+            int size = 0;
+            while (System.nanoTime() < deadlineInNanos) {
+                int keyLength = input.readInt();
+                if (keyLength >= 0) {
+                    keys[size] = new byte[keyLength];
+                    input.readFully(keys[size]);
+                    if (withValues) {
+                        values[size] = new byte[input.readInt()];
+                        input.readFully(values[size]);
+                    }
+                    size++;
+                }
+                if (size == batchSize || (keyLength < 0 && size > 0)) {
+                    boolean more = loader.load(size == batchSize ? keys : Arrays.copyOf(keys, size),
+                            values == null || size == batchSize ? values : Arrays.copyOf(values, size));
+                    numKeys += size;
+                    if (!more) break;
+                    keys = new byte[batchSize][];
+                    values = withValues ? new byte[batchSize][] : null;
+                    size = 0;
+                }
+                if (keyLength < 0) break;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated cache snapshot: " + file, e);
+        }
+        return numKeys;
+    }
+}
@@ -0,0 +1,261 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.caffinitas.ohc.OHCache;
+import org.caffinitas.ohc.OHCacheStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statistics of one CachedClient: its counters, the hit and miss latency of its single-key gets,
+ * and the statistics of its off-heap cache, which are read from OHC on each call. They are available from
+ * getStats(), as the JMX MBean cn.edu.nju.pasalab.db:type=CacheStats,name=..., and in the stats file,
+ * which is rewritten every cache.stats.report.interval.in.sec.
+ *
+ * The counters are LongAdders, so the query threads do not contend on them. The latencies are recorded into
+ * wait-free HdrHistogram recorders, and sample() swaps them out as the distributions of the last interval.
+ */
+public class CacheStats implements CacheStatsMXBean {
+
+    private static final long MAX_LATENCY_IN_NANO = TimeUnit.HOURS.toNanos(1);
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    final LongAdder queryCount = new LongAdder();
+    final LongAdder hitCount = new LongAdder();
+    final LongAdder heapHitCount = new LongAdder(); // the hits served by the heap tier
+    final LongAdder absentCount = new LongAdder(); // absent keys answered without the backend, counted as hits
+    final LongAdder coalescedCount = new LongAdder(); // misses served by the read of another request
+    final LongAdder demotedCount = new LongAdder(); // heap evictions put back into the off-heap cache
+    final LongAdder refreshCount = new LongAdder(); // reloads started by refresh-ahead
+    final LongAdder rejectedCount = new LongAdder(); // values read on a miss but not admitted
+    final LongAdder invalidationsSent = new LongAdder(); // keys published to the other JVMs
+    final LongAdder invalidationsReceived = new LongAdder(); // keys evicted for the other JVMs
+
+    private final Recorder hitLatency = new Recorder(MAX_LATENCY_IN_NANO, SIGNIFICANT_DIGITS);
+    private final Recorder missLatency = new Recorder(MAX_LATENCY_IN_NANO, SIGNIFICANT_DIGITS);
+    private volatile Histogram hitLatencyInterval = new Histogram(MAX_LATENCY_IN_NANO, SIGNIFICANT_DIGITS);
+    private volatile Histogram missLatencyInterval = new Histogram(MAX_LATENCY_IN_NANO, SIGNIFICANT_DIGITS);
+    private volatile OHCache<byte[], byte[]> cache; // null when closed
+    private volatile HeapCache heapCache;
+
+    CacheStats() {
+    }
+
+    void setCaches(OHCache<byte[], byte[]> cache, HeapCache heapCache) {
+        this.cache = cache;
+        this.heapCache = heapCache;
+    }
+
+    void recordHitLatency(long latencyInNano) {
+        hitLatency.recordValue(Math.max(0L, Math.min(MAX_LATENCY_IN_NANO, latencyInNano)));
+    }
+
+    void recordMissLatency(long latencyInNano) {
+        missLatency.recordValue(Math.max(0L, Math.min(MAX_LATENCY_IN_NANO, latencyInNano)));
+    }
+
+    /**
+     * Close the current interval of the latency distributions.
+     */
+    synchronized void sample() {
+        hitLatencyInterval = hitLatency.getIntervalHistogram();
+        missLatencyInterval = missLatency.getIntervalHistogram();
+    }
+
+    private OHCacheStats offHeapStats() {
+        OHCache<byte[], byte[]> current = cache;
+        return current == null ? null : current.stats();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return Math.max(0L, queryCount.sum() - hitCount.sum());
+    }
+
+    @Override
+    public double getHitRate() {
+        long queries = queryCount.sum();
+        return queries == 0 ? 0.0 : (double) hitCount.sum() / queries;
+    }
+
+    @Override
+    public long getHeapHitCount() {
+        return heapHitCount.sum();
+    }
+
+    @Override
+    public long getOffHeapHitCount() {
+        return Math.max(0L, hitCount.sum() - absentCount.sum() - heapHitCount.sum());
+    }
+
+    @Override
+    public long getAbsentCount() {
+        return absentCount.sum();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    @Override
+    public long getDemotedCount() {
+        return demotedCount.sum();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public long getInvalidationsSent() {
+        return invalidationsSent.sum();
+    }
+
+    @Override
+    public long getInvalidationsReceived() {
+        return invalidationsReceived.sum();
+    }
+
+    @Override
+    public long getHeapSizeInBytes() {
+        HeapCache current = heapCache;
+        return current == null ? 0L : current.weightInBytes();
+    }
+
+    @Override
+    public long getSize() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getSize();
+    }
+
+    @Override
+    public long getCapacityInBytes() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getCapacity();
+    }
+
+    @Override
+    public long getFreeCapacityInBytes() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getFree();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getEvictionCount();
+    }
+
+    @Override
+    public long getExpireCount() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getExpireCount();
+    }
+
+    @Override
+    public long getRehashCount() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getRehashCount();
+    }
+
+    @Override
+    public long getPutFailCount() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? 0L : stats.getPutFailCount();
+    }
+
+    @Override
+    public long[] getSegmentSizes() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null ? new long[0] : stats.getSegmentSizes();
+    }
+
+    /**
+     * @return the off-heap bytes used per entry, with the headers of OHC, to check the sizing model
+     */
+    @Override
+    public long getAverageEntrySizeInBytes() {
+        OHCacheStats stats = offHeapStats();
+        return stats == null || stats.getSize() == 0 ? 0L : (stats.getCapacity() - stats.getFree()) / stats.getSize();
+    }
+
+    @Override
+    public double getMeanHitLatencyInMicros() {
+        return hitLatencyInterval.getMean() / 1000.0;
+    }
+
+    @Override
+    public long getP50HitLatencyInMicros() {
+        return toMicros(hitLatencyInterval.getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getP99HitLatencyInMicros() {
+        return toMicros(hitLatencyInterval.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public double getMeanMissLatencyInMicros() {
+        return missLatencyInterval.getMean() / 1000.0;
+    }
+
+    @Override
+    public long getP50MissLatencyInMicros() {
+        return toMicros(missLatencyInterval.getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getP99MissLatencyInMicros() {
+        return toMicros(missLatencyInterval.getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public String toString() {
+        OHCacheStats stats = offHeapStats();
+        long segmentSizes[] = stats == null ? new long[0] : stats.getSegmentSizes();
+        long minSegmentSize = Long.MAX_VALUE;
+        long maxSegmentSize = 0L;
+        for (long size : segmentSizes) {
+            minSegmentSize = Math.min(minSegmentSize, size);
+            maxSegmentSize = Math.max(maxSegmentSize, size);
+        }
+        return String.format("CacheStats{hitCount=%d, missCount=%d, hitRate=%.4f, coalescedCount=%d, "
+                        + "absentCount=%d, heapHitCount=%d, offHeapHitCount=%d, demotedCount=%d, heapBytes=%d, "
+                        + "refreshCount=%d, rejectedCount=%d, invalidationsSent=%d, invalidationsReceived=%d, "
+                        + "size=%d, capacity=%d, free=%d, evictionCount=%d, expireCount=%d, rehashCount=%d, "
+                        + "putFailCount=%d, segmentSizes=[%d..%d], averageEntrySize=%d, "
+                        + "hitLatency=%.1fus/p99 %dus, missLatency=%.1fus/p99 %dus, }",
+                getHitCount(), getMissCount(), getHitRate(), getCoalescedCount(),
+                getAbsentCount(), getHeapHitCount(), getOffHeapHitCount(), getDemotedCount(), getHeapSizeInBytes(),
+                getRefreshCount(), getRejectedCount(), getInvalidationsSent(), getInvalidationsReceived(),
+                stats == null ? 0L : stats.getSize(), stats == null ? 0L : stats.getCapacity(),
+                stats == null ? 0L : stats.getFree(), stats == null ? 0L : stats.getEvictionCount(),
+                stats == null ? 0L : stats.getExpireCount(), stats == null ? 0L : stats.getRehashCount(),
+                stats == null ? 0L : stats.getPutFailCount(), segmentSizes.length == 0 ? 0L : minSegmentSize,
+                maxSegmentSize, getAverageEntrySizeInBytes(), getMeanHitLatencyInMicros(), getP99HitLatencyInMicros(),
+                getMeanMissLatencyInMicros(), getP99MissLatencyInMicros());
+    }
+}
@@ -0,0 +1,67 @@
+package cn.edu.nju.pasalab.db.cache;
+
+/**
+ * JMX view of the statistics of a cached client.
+ * Hits include the absent keys answered without the backend. Latencies are in microseconds, cover the single-key
+ * gets only, and are distributions of the last report interval.
+ */
+public interface CacheStatsMXBean {
+
+    long getQueryCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getHeapHitCount();
+
+    long getOffHeapHitCount();
+
+    long getAbsentCount();
+
+    long getCoalescedCount();
+
+    long getDemotedCount();
+
+    long getRefreshCount();
+
+    long getRejectedCount();
+
+    long getInvalidationsSent();
+
+    long getInvalidationsReceived();
+
+    long getHeapSizeInBytes();
+
+    long getSize();
+
+    long getCapacityInBytes();
+
+    long getFreeCapacityInBytes();
+
+    long getEvictionCount();
+
+    long getExpireCount();
+
+    long getRehashCount();
+
+    long getPutFailCount();
+
+    long[] getSegmentSizes();
+
+    long getAverageEntrySizeInBytes();
+
+    double getMeanHitLatencyInMicros();
+
+    long getP50HitLatencyInMicros();
+
+    long getP99HitLatencyInMicros();
+
+    double getMeanMissLatencyInMicros();
+
+    long getP50MissLatencyInMicros();
+
+    long getP99MissLatencyInMicros();
+}
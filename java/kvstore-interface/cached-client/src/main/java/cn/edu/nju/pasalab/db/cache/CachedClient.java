@@ -1,45 +1,202 @@
 package cn.edu.nju.pasalab.db.cache;
 
 import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.InvalidationBus;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
+import cn.edu.nju.pasalab.db.Utils;
 import org.caffinitas.ohc.*;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Created by wzk on 18-4-28.
+ *
+ * A read-through cache of the backend of cache.db.backend.class.name in off-heap memory (OHC). The optional
+ * features are described next to their configurations. The values returned by get must not be modified.
  */
 public class CachedClient extends BasicKVDatabaseClient {
 
     static public final String CONF_CACHE_CAPACITY = "cache.capacity.in.byte"; // in byte
-    static public final String DEFAULT_CACHE_CAPACITY = "8,388,608"; // 8 MB by default
-    static public final String CONF_CACHE_STATS_FILE_PATH = "cache.stats.file.path"; // store cache stats
+    static public final String DEFAULT_CACHE_CAPACITY = "8388608"; // 8 MB by default
+    // see CacheStats
+    static public final String CONF_CACHE_STATS_FILE_PATH = "cache.stats.file.path"; // empty to disable the file
     static public final String DEFAULT_CACHE_STATS_FILE_PATH = "/tmp/cache.stats";
+    static public final String CONF_CACHE_STATS_REPORT_INTERVAL = "cache.stats.report.interval.in.sec";
+    static public final String DEFAULT_CACHE_STATS_REPORT_INTERVAL = "10";
+    static public final String CONF_CACHE_STATS_LATENCY_ENABLED = "cache.stats.latency.enabled";
+    static public final String DEFAULT_CACHE_STATS_LATENCY_ENABLED = "true";
+    static public final String CONF_CACHE_STATS_NAME = "cache.stats.name"; // default: simple class name of the backend
+    static public final String CONF_CACHE_JMX_ENABLED = "cache.jmx.enabled";
+    static public final String DEFAULT_CACHE_JMX_ENABLED = "true";
+    // see CacheSizing
     static public final String CONF_CACHE_CONCURRENCY = "cache.concurrency";
-    static public final String DEFAULT_CACHE_CONCURRENCY = "4";
+    static public final String DEFAULT_CACHE_CONCURRENCY = CacheSizing.AUTO;
     static public final String CONF_CACHE_HASHTABLE_SIZE_PER_SEGMENT = "cache.hashtable.size.per.segment";
-    static public final String DEFAULT_CACHE_HASHTABLE_SIZE_PER_SEGMENT = "8192";
+    static public final String DEFAULT_CACHE_HASHTABLE_SIZE_PER_SEGMENT = CacheSizing.AUTO;
+    static public final String CONF_CACHE_EXPECTED_ENTRY_SIZE = "cache.expected.entry.size.in.byte"; // key and value
+    static public final String DEFAULT_CACHE_EXPECTED_ENTRY_SIZE = "256";
+    static public final String CONF_CACHE_ENTRY_MODE = "cache.entry.mode"; // linked, chunked or fixed
+    static public final String DEFAULT_CACHE_ENTRY_MODE = "linked";
+    static public final String CONF_CACHE_CHUNK_SIZE = "cache.chunk.size.in.byte"; // chunked and fixed modes
+    static public final String DEFAULT_CACHE_CHUNK_SIZE = CacheSizing.AUTO;
+    static public final String CONF_CACHE_FIXED_KEY_SIZE = "cache.fixed.key.size.in.byte"; // the largest key
+    static public final String DEFAULT_CACHE_FIXED_KEY_SIZE = "8";
+    static public final String CONF_CACHE_FIXED_VALUE_SIZE = "cache.fixed.value.size.in.byte"; // required if fixed
+    // see AdmissionPolicy
+    static public final String CONF_ADMISSION_POLICY = "cache.admission.policy"; // see AdmissionPolicy.create
+    static public final String DEFAULT_ADMISSION_POLICY = AdmissionPolicy.ALL;
+    static public final String CONF_SCAN_BATCH_SIZE = "cache.scan.batch.size"; // 0: no getAll is a scan
+    static public final String DEFAULT_SCAN_BATCH_SIZE = "1000";
+    // With a bus, e.g. RedisInvalidationBus, the keys written or deleted here are evicted by the clients of the other
+    // JVMs, and the other way round; see RemoteInvalidation and InvalidationPublisher
+    static public final String CONF_INVALIDATION_BUS = "cache.invalidation.bus.class.name"; // empty disables it
+    static public final String DEFAULT_INVALIDATION_BUS = "";
+    static public final String CONF_INVALIDATION_BATCH_SIZE = "cache.invalidation.batch.size"; // keys per message
+    static public final String DEFAULT_INVALIDATION_BATCH_SIZE = "1024";
+    static public final String CONF_INVALIDATION_QUEUE_SIZE = "cache.invalidation.queue.size"; // keys not yet sent
+    static public final String DEFAULT_INVALIDATION_QUEUE_SIZE = "100000";
     static public final String CONF_DB_BACKEND_CLASS_NAME = "cache.db.backend.class.name"; // required, no default!
+    // A key found absent is remembered for cache.negative.ttl.in.ms in a small cache. The Bloom filter of all the
+    // keys, built by scanning the backend and updated by the puts, is only correct if every put goes through here.
+    static public final String CONF_NEGATIVE_CACHE_TTL = "cache.negative.ttl.in.ms"; // 0 disables the negative cache
+    static public final String DEFAULT_NEGATIVE_CACHE_TTL = "0";
+    static public final String CONF_NEGATIVE_CACHE_CAPACITY = "cache.negative.capacity.in.byte";
+    static public final String DEFAULT_NEGATIVE_CACHE_CAPACITY = "1048576";
+    static public final String CONF_BLOOM_FILTER_EXPECTED_KEYS = "cache.bloom.filter.expected.keys"; // 0 disables it
+    static public final String DEFAULT_BLOOM_FILTER_EXPECTED_KEYS = "0";
+    static public final String CONF_BLOOM_FILTER_FPP = "cache.bloom.filter.fpp"; // false positive probability
+    static public final String DEFAULT_BLOOM_FILTER_FPP = "0.01";
+    static public final String CONF_BLOOM_FILTER_INIT = "cache.bloom.filter.init"; // scan, or empty for a new db
+    static public final String DEFAULT_BLOOM_FILTER_INIT = "scan";
+    static public final String CONF_WRITE_POLICY = "cache.write.policy"; // through, invalidate or around
+    static public final String DEFAULT_WRITE_POLICY = "invalidate";
+    // The hot keys are saved every interval and on close, and loaded back in the background after connect. The entries
+    // mode saves the values too, which skips the backend but restores them as they were; see startSnapshotLoad
+    static public final String CONF_SNAPSHOT_PATH = "cache.snapshot.path"; // empty disables snapshots
+    static public final String DEFAULT_SNAPSHOT_PATH = "";
+    static public final String CONF_SNAPSHOT_MODE = "cache.snapshot.mode"; // keys, or entries
+    static public final String DEFAULT_SNAPSHOT_MODE = "keys";
+    static public final String CONF_SNAPSHOT_MAX_ENTRIES = "cache.snapshot.max.entries";
+    static public final String DEFAULT_SNAPSHOT_MAX_ENTRIES = "1000000";
+    static public final String CONF_SNAPSHOT_INTERVAL = "cache.snapshot.interval.in.sec"; // 0: on close only
+    static public final String DEFAULT_SNAPSHOT_INTERVAL = "600";
+    static public final String CONF_SNAPSHOT_PARALLELISM = "cache.snapshot.parallelism"; // files and loading threads
+    static public final String DEFAULT_SNAPSHOT_PARALLELISM = "4";
+    static public final String CONF_SNAPSHOT_LOAD_BUDGET = "cache.snapshot.load.budget.in.sec";
+    static public final String DEFAULT_SNAPSHOT_LOAD_BUDGET = "300";
+    // see HeapCache; its entries are offered from the backend and off-heap, and put back off-heap when evicted
+    static public final String CONF_HEAP_CACHE_CAPACITY = "cache.heap.capacity.in.byte"; // 0 disables the heap tier
+    static public final String DEFAULT_HEAP_CACHE_CAPACITY = "0";
+    static public final String CONF_HEAP_CACHE_WINDOW_RATIO = "cache.heap.window.ratio"; // of the heap capacity
+    static public final String DEFAULT_HEAP_CACHE_WINDOW_RATIO = "0.01";
+    // The TTL of putWithTTL overrides cache.ttl.in.ms. A value read after the refresh share of its TTL is reloaded
+    // in the background while still served, and gets the default TTL.
+    static public final String CONF_CACHE_TTL = "cache.ttl.in.ms"; // 0: cached values do not expire
+    static public final String DEFAULT_CACHE_TTL = "0";
+    static public final String CONF_REFRESH_AHEAD_RATIO = "cache.refresh.ahead.ratio"; // of the TTL, 0 disables it
+    static public final String DEFAULT_REFRESH_AHEAD_RATIO = "0";
 
-    private static Thread cacheStatsReportThread = null;
+    static final int WRITE_EPOCH_STRIPES = 256;
+    static final int SNAPSHOT_BATCH_SIZE = 1000;
+    static final int MAX_WRITTEN_WHILE_LOADING = 100000; // the snapshot load stops beyond
+    static final int EXPIRY_HEADER_SIZE = 16; // the expiration and refresh times of an off-heap value
+    static final int MAX_FIXED_SIZE = 0xFFFF; // the length prefix of fixed entries is 2 bytes
+    static final String JMX_DOMAIN = "cn.edu.nju.pasalab.db";
+    private static final AtomicInteger instanceCount = new AtomicInteger(0);
+    private static final Set<String> statsFilesInUse = ConcurrentHashMap.newKeySet();
+
+    /**
+     * What a put does to the cached value: THROUGH caches the written value, INVALIDATE evicts it, and AROUND leaves
+     * it, so reads may see the old value until it is evicted. A read that overlaps a put or a delete of a key in the
+     * same stripe does not cache its result. Concurrent puts of one key may leave either value cached under THROUGH.
+     */
+    private enum WritePolicy {
+        THROUGH, INVALIDATE, AROUND
+    }
 
 
     private BasicKVDatabaseClient db;
     private OHCache<byte[], byte[]> cache;
+    private HeapCache heapCache; // null if the heap tier is disabled
     private long cacheCapacityInBytes = 1;
     private String statsFilePath;
-    private int concurrency; // = segment_count in the OHC cache.
-    private int hashTableSizePerSegment;
+    private long statsReportInterval;
+    private boolean latencyEnabled;
+    private String statsName;
+    private boolean jmxEnabled;
+    private ObjectName statsMBeanName; // null if not registered
+    private ScheduledExecutorService statsReporter;
+    private CacheSizing sizing;
+    private int fixedKeySize; // 0 unless in fixed mode
+    private int fixedValueSize;
+    private String admissionPolicyType;
+    private AdmissionPolicy admissionPolicy;
+    private int scanBatchSize;
+    private String invalidationBusClassName;
+    private int invalidationBatchSize;
+    private int invalidationQueueSize;
+    private InvalidationBus invalidationBus; // null if disabled
+    private InvalidationPublisher invalidationPublisher;
     private String dbClassName;
-    private AtomicLong queryCount = new AtomicLong(0L);
-    private AtomicLong hitCount = new AtomicLong(0L);
+    private long negativeCacheTTL;
+    private long negativeCacheCapacity;
+    private long bloomFilterExpectedKeys;
+    private double bloomFilterFPP;
+    private String bloomFilterInit;
+    private OHCache<byte[], byte[]> absentKeys; // null if the negative cache is disabled
+    private BloomFilter keyFilter; // null if disabled
+    private volatile boolean keyFilterReady = false;
+    private WritePolicy writePolicy;
+    private final AtomicLongArray writeEpochs = new AtomicLongArray(WRITE_EPOCH_STRIPES); // writes per key stripe
+    private String snapshotPath;
+    private boolean snapshotWithValues;
+    private int snapshotMaxEntries;
+    private long snapshotInterval;
+    private int snapshotParallelism;
+    private long snapshotLoadBudget;
+    private ScheduledExecutorService snapshotTimer;
+    private volatile Set<ByteBuffer> writtenWhileLoading = null; // not null while a snapshot is loaded
+    private volatile boolean stopSnapshotLoad = false;
+    private long heapCacheCapacity;
+    private double heapCacheWindowRatio;
+    private long cacheTTL;
+    private double refreshAheadRatio;
+    private final Set<ByteBuffer> refreshingKeys = ConcurrentHashMap.newKeySet();
+    private static final byte[] ABSENT = new byte[1]; // OHC does not take empty values
+    private final CacheStats stats = new CacheStats();
+    private final ConcurrentHashMap<ByteBuffer, CompletableFuture<byte[]>> inFlightReads = new ConcurrentHashMap<>();
+    // OHC does not keep the key of a lookup, so long keys are encoded into a reused array instead of boxed
+    private static final ThreadLocal<byte[]> longKeyBuffer = ThreadLocal.withInitial(() -> new byte[8]);
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
 
@@ -51,62 +208,779 @@ public class CachedClient extends BasicKVDatabaseClient {
     @Override
     public byte[] get(byte[] key) throws Exception {
         assert cache != null;
-        this.queryCount.getAndAdd(1L);
-        byte[] result = cache.get(key);
-        if (result == null) {
-            result = db.get(key);
+        long startTime = startTimer();
+        stats.queryCount.increment();
+        byte[] result = lookup(key);
+        if (result != null) {
+            stats.hitCount.increment();
+            recordHit(startTime);
+            return result;
+        }
+        if (isKnownAbsent(key)) {
+            recordHit(startTime);
+            return null;
+        }
+        result = readThrough(key);
+        recordMiss(startTime);
+        return result;
+    }
+
+    private long startTimer() {
+        return latencyEnabled ? System.nanoTime() : 0L;
+    }
+
+    private void recordHit(long startTime) {
+        if (latencyEnabled) {
+            stats.recordHitLatency(System.nanoTime() - startTime);
+        }
+    }
+
+    private void recordMiss(long startTime) {
+        if (latencyEnabled) {
+            stats.recordMissLatency(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Look the key up in the heap tier, then off-heap. An off-heap hit is offered to the heap tier.
+     * @return null on a miss
+     */
+    private byte[] lookup(byte[] key) {
+        if (heapCache == null && cacheTTL <= 0) {
+            return cache.get(key);
+        }
+        long now = cacheTTL > 0 ? System.currentTimeMillis() : 0L;
+        byte[] result = lookupHeap(key, now);
+        if (result != null) {
+            return result;
+        }
+        long epoch = readEpoch(key);
+        if (cacheTTL <= 0) {
+            result = cache.get(key);
             if (result != null) {
-                cache.put(key, result);
+                promote(key, result, epoch, Long.MAX_VALUE, Long.MAX_VALUE);
+            }
+            return result;
+        }
+        try (DirectValueAccess stored = cache.getDirect(key)) {
+            if (stored == null) {
+                return null;
+            }
+            ByteBuffer value = stored.buffer();
+            int header = value.position();
+            if (!isFresh(key, value, now)) {
+                return null;
+            }
+            result = new byte[value.remaining()];
+            value.get(result);
+            if (heapCache != null) {
+                promote(key, result, epoch, value.getLong(header), value.getLong(header + 8));
             }
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // closing a DirectValueAccess does not throw
+        }
+    }
+
+    /**
+     * @return the value in the heap tier, null on a miss or if it has expired
+     */
+    private byte[] lookupHeap(byte[] key, long now) {
+        if (heapCache == null) {
+            return null;
+        }
+        HeapCache.Entry entry = heapCache.get(key);
+        if (entry == null || entry.expireAt <= now) {
+            return null;
+        }
+        stats.heapHitCount.increment();
+        if (now >= entry.refreshAt) {
+            refreshAhead(key);
+        }
+        return entry.value;
+    }
+
+    /**
+     * Read the expiry header of an off-heap value, leaving the buffer at the value, and start a refresh if it is due.
+     * @return false if the value has expired
+     */
+    private boolean isFresh(byte[] key, ByteBuffer stored, long now) {
+        long expireAt = stored.getLong();
+        long refreshAt = stored.getLong();
+        if (expireAt <= now) {
+            return false;
+        }
+        if (now >= refreshAt) {
+            refreshAhead(key);
+        }
+        return true;
+    }
+
+    private long expireTime(long now, long ttl) {
+        return ttl > 0 ? now + ttl : Long.MAX_VALUE;
+    }
+
+    private long refreshTime(long now, long ttl) {
+        return ttl > 0 && refreshAheadRatio > 0 ? now + (long) (ttl * refreshAheadRatio) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Put the value off-heap, after its expiry header if expiry is enabled.
+     */
+    private void store(byte[] key, byte[] value, long expireAt, long refreshAt) {
+        if (fixedValueSize > 0 && value.length > fixedValueSize) {
+            cache.remove(key);
+        } else if (cacheTTL > 0) {
+            cache.put(key, withExpiryHeader(value, expireAt, refreshAt), expireAt);
         } else {
-            this.hitCount.getAndAdd(1L);
+            cache.put(key, value);
+        }
+    }
+
+    private boolean storeIfAbsent(byte[] key, byte[] value, long expireAt, long refreshAt) {
+        if (fixedValueSize > 0 && value.length > fixedValueSize) {
+            return false;
+        }
+        if (cacheTTL > 0) {
+            return cache.putIfAbsent(key, withExpiryHeader(value, expireAt, refreshAt), expireAt);
+        }
+        return cache.putIfAbsent(key, value);
+    }
+
+    private static byte[] withExpiryHeader(byte[] value, long expireAt, long refreshAt) {
+        ByteBuffer stored = ByteBuffer.allocate(EXPIRY_HEADER_SIZE + value.length);
+        stored.putLong(expireAt).putLong(refreshAt).put(value);
+        return stored.array();
+    }
+
+    /**
+     * Reload the value of a key in the background, unless a reload of it is running. The reloaded value is
+     * cached like a read-through one, so it does not replace the value of a write that overlaps the reload.
+     */
+    private void refreshAhead(byte[] key) {
+        if (refreshingKeys.contains(ByteBuffer.wrap(key))) {
+            return;
+        }
+        byte[] keyCopy = key.clone(); // the key of getLong is a reused buffer
+        ByteBuffer refreshingKey = ByteBuffer.wrap(keyCopy);
+        if (!refreshingKeys.add(refreshingKey)) {
+            return;
+        }
+        stats.refreshCount.increment();
+        long epoch = readEpoch(keyCopy);
+        db.getAsync(keyCopy).whenComplete((value, error) -> {
+            try {
+                if (error != null) {
+                    logger.log(Level.FINE, "Fail to refresh a cached value", error);
+                    return;
+                }
+                if (value == null && readEpoch(keyCopy) == epoch) { // deleted by another client
+                    if (heapCache != null) {
+                        heapCache.remove(keyCopy);
+                    }
+                    cache.remove(keyCopy);
+                }
+                cacheValue(keyCopy, value, epoch);
+            } finally {
+                refreshingKeys.remove(refreshingKey);
+            }
+        });
+    }
+
+    /**
+     * Checking the epoch again after the insertion catches the writes racing with it,
+     * since a write bumps the epoch before it evicts the key from the heap tier.
+     */
+    private void promote(byte[] key, byte[] value, long epoch, long expireAt, long refreshAt) {
+        heapCache.put(key, value, epoch, expireAt, refreshAt);
+        if (readEpoch(key) != epoch) {
+            heapCache.remove(key);
+        }
+    }
+
+    /**
+     * Put an entry evicted from the heap tier back, unless the key was written since it was read.
+     */
+    private void demote(HeapCache.Entry entry) {
+        byte[] key = entry.key.array();
+        if (readEpoch(key) == entry.epoch && (cacheTTL <= 0 || entry.expireAt > System.currentTimeMillis())
+                && storeIfAbsent(key, entry.value, entry.expireAt, entry.refreshAt)) {
+            stats.demotedCount.increment();
+        }
+    }
+
+    /**
+     * Check the key filter and the negative cache. A known absent key is counted as a hit.
+     */
+    private boolean isKnownAbsent(byte[] key) {
+        if ((keyFilterReady && !keyFilter.mightContain(key)) || (absentKeys != null && absentKeys.containsKey(key))) {
+            stats.hitCount.increment();
+            stats.absentCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private static int epochStripe(byte[] key) {
+        return Arrays.hashCode(key) & (WRITE_EPOCH_STRIPES - 1);
+    }
+
+    /**
+     * Taken before reading the backend, and checked by cacheValue.
+     */
+    private long readEpoch(byte[] key) {
+        return writeEpochs.get(epochStripe(key));
+    }
+
+    /**
+     * Cache the value read from the backend, or remember that the key is absent,
+     * unless the key may have been written since the read started.
+     */
+    private void cacheValue(byte[] key, byte[] value, long epoch) {
+        cacheValue(key, value, epoch, false);
+    }
+
+    /**
+     * Like promote, the epoch is checked again after the value is stored: a write that evicted the key
+     * just before the store would otherwise leave the value read before it cached.
+     * @param scan whether the value was read by a scan, see CONF_SCAN_BATCH_SIZE
+     */
+    private void cacheValue(byte[] key, byte[] value, long epoch, boolean scan) {
+        if (readEpoch(key) != epoch) {
+            return;
+        }
+        if (value == null) {
+            if (absentKeys == null) {
+                return;
+            }
+            absentKeys.put(key, ABSENT);
+        } else if (!admissionPolicy.admit(key, value.length, scan)) {
+            stats.rejectedCount.increment();
+            return;
+        } else {
+            long now = cacheTTL > 0 ? System.currentTimeMillis() : 0L;
+            long expireAt = expireTime(now, cacheTTL);
+            long refreshAt = refreshTime(now, cacheTTL);
+            store(key, value, expireAt, refreshAt);
+            if (heapCache != null) {
+                promote(key, value, epoch, expireAt, refreshAt);
+            }
+        }
+        if (readEpoch(key) != epoch) {
+            if (heapCache != null) {
+                heapCache.remove(key);
+            }
+            cache.remove(key);
+            if (absentKeys != null) {
+                absentKeys.remove(key);
+            }
         }
-        return result;
+    }
+
+    /**
+     * A written key is added to the key filter before the write, so it is never rejected once written.
+     * After the write, the reads in flight are kept from caching and from being joined by later reads,
+     * the write policy is applied, and the key is dropped from the negative cache.
+     */
+    private void beforeWrite(byte[] key) {
+        if (keyFilter != null) {
+            keyFilter.add(key);
+        }
+    }
+
+    private void afterWrite(byte[] key, byte[] value) {
+        afterWrite(key, value, writePolicy, cacheTTL);
+    }
+
+    private void afterWrite(byte[] key, byte[] value, WritePolicy writePolicy, long ttl) {
+        writeEpochs.incrementAndGet(epochStripe(key));
+        markWritten(key);
+        inFlightReads.remove(ByteBuffer.wrap(key));
+        publishInvalidation(key);
+        if (heapCache != null) {
+            heapCache.remove(key);
+        }
+        if (writePolicy == WritePolicy.THROUGH && admitWritten(key, value)) {
+            long now = cacheTTL > 0 ? System.currentTimeMillis() : 0L;
+            store(key, value, expireTime(now, ttl), refreshTime(now, ttl));
+        } else if (writePolicy != WritePolicy.AROUND) {
+            cache.remove(key);
+        }
+        if (absentKeys != null) {
+            absentKeys.remove(key);
+        }
+    }
+
+    /**
+     * Written values go through the admission policy too, so a large put does not evict the hot keys.
+     * The cached value of a rejected one is evicted by the caller, since it is stale.
+     */
+    private boolean admitWritten(byte[] key, byte[] value) {
+        if (admissionPolicy.admit(key, value.length, false)) {
+            return true;
+        }
+        stats.rejectedCount.increment();
+        return false;
+    }
+
+    private void afterWriteAll(byte[][] keys, byte[][] values) {
+        for (byte[] key : keys) {
+            writeEpochs.incrementAndGet(epochStripe(key));
+            markWritten(key);
+            inFlightReads.remove(ByteBuffer.wrap(key));
+            publishInvalidation(key);
+        }
+        if (heapCache != null) {
+            heapCache.removeAll(keys);
+        }
+        if (writePolicy == WritePolicy.THROUGH && (cacheTTL > 0 || fixedValueSize > 0)) {
+            long now = cacheTTL > 0 ? System.currentTimeMillis() : 0L;
+            for (int i = 0; i < keys.length; i++) {
+                if (admitWritten(keys[i], values[i])) {
+                    store(keys[i], values[i], expireTime(now, cacheTTL), refreshTime(now, cacheTTL));
+                } else {
+                    cache.remove(keys[i]);
+                }
+            }
+        } else if (writePolicy == WritePolicy.THROUGH) {
+            Map<byte[], byte[]> pairs = new LinkedHashMap<>(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (admitWritten(keys[i], values[i])) {
+                    pairs.put(keys[i], values[i]);
+                } else {
+                    cache.remove(keys[i]);
+                }
+            }
+            cache.putAll(pairs);
+        } else if (writePolicy == WritePolicy.INVALIDATE) {
+            cache.removeAll(Arrays.asList(keys));
+        }
+        if (absentKeys != null) {
+            absentKeys.removeAll(Arrays.asList(keys));
+        }
+    }
+
+    private void afterDelete(byte[] key) {
+        writeEpochs.incrementAndGet(epochStripe(key));
+        markWritten(key);
+        inFlightReads.remove(ByteBuffer.wrap(key));
+        publishInvalidation(key);
+        if (heapCache != null) {
+            heapCache.remove(key);
+        }
+        cache.remove(key);
+    }
+
+    /**
+     * Queue the key for the other JVMs, if there is an invalidation bus.
+     */
+    private void publishInvalidation(byte[] key) {
+        if (invalidationPublisher != null) {
+            invalidationPublisher.add(key.clone()); // the key of putLong is a reused buffer
+        }
+    }
+
+    /**
+     * Evicts the keys written by the clients of other JVMs. A received key is handled like a local write: the reads
+     * in flight do not cache it, and it is added to the key filter.
+     */
+    private class RemoteInvalidation implements InvalidationBus.Listener {
+
+        @Override
+        public void invalidate(byte[][] keys) {
+            stats.invalidationsReceived.add(keys.length);
+            for (byte[] key : keys) {
+                beforeWrite(key);
+                writeEpochs.incrementAndGet(epochStripe(key));
+                markWritten(key);
+                inFlightReads.remove(ByteBuffer.wrap(key));
+            }
+            if (heapCache != null) {
+                heapCache.removeAll(keys);
+            }
+            cache.removeAll(Arrays.asList(keys));
+            if (absentKeys != null) {
+                absentKeys.removeAll(Arrays.asList(keys));
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            for (int i = 0; i < WRITE_EPOCH_STRIPES; i++) {
+                writeEpochs.incrementAndGet(i);
+            }
+            inFlightReads.clear();
+            if (heapCache != null) {
+                heapCache.clear();
+            }
+            cache.clear();
+            if (absentKeys != null) {
+                absentKeys.clear();
+            }
+            if (keyFilter != null && keyFilterReady) {
+                // the keys created meanwhile are unknown
+                keyFilterReady = false;
+                buildKeyFilter();
+            }
+        }
+    }
+
+    /**
+     * Remember the keys written while a snapshot is loaded, so the loader evicts the old values it restored.
+     * Past MAX_WRITTEN_WHILE_LOADING keys the load is stopped instead, which evicts the batches being loaded.
+     * Called before the cache is updated for the write.
+     */
+    private void markWritten(byte[] key) {
+        Set<ByteBuffer> written = writtenWhileLoading;
+        if (written == null || stopSnapshotLoad) {
+            return;
+        }
+        if (written.size() >= MAX_WRITTEN_WHILE_LOADING) {
+            stopSnapshotLoad = true;
+            logger.warning("Too many keys written while the cache snapshot is loaded, stop loading it");
+            return;
+        }
+        written.add(ByteBuffer.wrap(key.clone()));
+    }
+
+    /**
+     * Read a missing key from the backend and cache it, or wait for the request already reading it.
+     */
+    private byte[] readThrough(byte[] key) throws Exception {
+        byte[] result;
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+        CompletableFuture<byte[]> pendingRead = inFlightReads.putIfAbsent(wrappedKey, read);
+        if (pendingRead != null) {
+            stats.coalescedCount.increment();
+            return await(pendingRead);
+        }
+        try {
+            long epoch = readEpoch(key);
+            result = db.get(key);
+            cacheValue(key, result, epoch);
+            read.complete(result);
+            return result;
+        } catch (Throwable e) {
+            read.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightReads.remove(wrappedKey, read);
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> read) throws Exception {
+        try {
+            return read.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Cache hits are copied from the off-heap cache into dest directly, without an intermediate array.
+     * Misses join the reads of the same key in flight, like get.
+     * @param key
+     * @param dest the destination buffer
+     * @return the length of the value. Return -1 if the key does not exist.
+     * @throws Exception
+     */
+    @Override
+    public int get(ByteBuffer key, ByteBuffer dest) throws Exception {
+        assert cache != null;
+        long startTime = startTimer();
+        stats.queryCount.increment();
+        byte[] cacheKey = Utils.toByteArray(key);
+        long now = cacheTTL > 0 ? System.currentTimeMillis() : 0L;
+        // the chunked implementation of OHC has no direct access
+        byte[] copiedValue = sizing.mode == CacheSizing.EntryMode.LINKED ? lookupHeap(cacheKey, now) : lookup(cacheKey);
+        if (copiedValue != null) {
+            stats.hitCount.increment();
+            dest.put(copiedValue);
+            recordHit(startTime);
+            return copiedValue.length;
+        }
+        if (sizing.mode == CacheSizing.EntryMode.LINKED) {
+            try (DirectValueAccess cachedValue = cache.getDirect(cacheKey)) {
+                ByteBuffer value = cachedValue == null ? null : cachedValue.buffer();
+                if (value != null && (cacheTTL <= 0 || isFresh(cacheKey, value, now))) {
+                    stats.hitCount.increment();
+                    int length = value.remaining();
+                    dest.put(value);
+                    recordHit(startTime);
+                    return length;
+                }
+            }
+        }
+        if (isKnownAbsent(cacheKey)) {
+            recordHit(startTime);
+            return -1;
+        }
+        byte[] value = readThrough(cacheKey);
+        recordMiss(startTime);
+        if (value == null) return -1;
+        dest.put(value);
+        return value.length;
     }
 
     @Override
     public byte[][] getAll(byte keys[][]) throws Exception{
+        MissBatch misses = new MissBatch(keys);
+        misses.lookupCache();
+        return readThrough(misses);
+    }
+
+    private byte[][] readThrough(MissBatch misses) throws Exception {
+        if (misses.hasQueryKeys()) {
+            try {
+                misses.complete(db.getAll(misses.getQueryKeys()));
+            } catch (Throwable e) {
+                misses.fail(e);
+                throw e;
+            }
+        }
+        misses.awaitOthers();
+        return misses.results;
+    }
+
+    /**
+     * A hit allocates nothing but the value; only a miss creates the byte[] key.
+     */
+    @Override
+    public byte[] getLong(long key) throws Exception {
+        long startTime = startTimer();
+        stats.queryCount.increment();
+        byte[] keyBytes = longKeyBuffer.get();
+        Utils.longToKey(key, keyBytes, 0);
+        byte[] result = lookup(keyBytes);
+        if (result != null) {
+            stats.hitCount.increment();
+            recordHit(startTime);
+            return result;
+        }
+        if (isKnownAbsent(keyBytes)) {
+            recordHit(startTime);
+            return null;
+        }
+        result = readThrough(Utils.longToKey(key));
+        recordMiss(startTime);
+        return result;
+    }
+
+    @Override
+    public byte[][] getAllLong(long[] keys) throws Exception {
         byte[][] results = new byte[keys.length][];
-        IntArrayList queryKeysIDs = new IntArrayList();
-        long localQueryCount = 0L;
+        IntArrayList queryKeysIDs = null;
         long localHitCount = 0L;
-
+        byte[] keyBytes = longKeyBuffer.get();
         for (int i = 0; i < keys.length; i++) {
-            localQueryCount++;
-            byte[] result = cache.get(keys[i]);
-            if (result == null) {
-                queryKeysIDs.add(i);
-            } else {
-                results[i] = result;
+            Utils.longToKey(keys[i], keyBytes, 0);
+            results[i] = lookup(keyBytes);
+            if (results[i] != null) {
                 localHitCount++;
+            } else if (!isKnownAbsent(keyBytes)) {
+                if (queryKeysIDs == null) queryKeysIDs = new IntArrayList();
+                queryKeysIDs.add(i);
             }
         }
-        this.queryCount.addAndGet(localQueryCount);
-        this.hitCount.addAndGet(localHitCount);
+        stats.queryCount.add(keys.length);
+        stats.hitCount.add(localHitCount);
+        if (queryKeysIDs == null) {
+            return results;
+        }
         byte[][] queryKeys = new byte[queryKeysIDs.size()][];
-        for (int i = 0; i < queryKeysIDs.size(); i++) {
-            queryKeys[i] = keys[queryKeysIDs.getInt(i)];
+        for (int i = 0; i < queryKeys.length; i++) {
+            queryKeys[i] = Utils.longToKey(keys[queryKeysIDs.getInt(i)]);
         }
-        byte[][] queryResults = db.getAll(queryKeys);
-        for (int i = 0; i < queryKeysIDs.size(); i++) {
-            int kID = queryKeysIDs.getInt(i);
-            results[kID] = queryResults[i];
-            if (queryResults[i] != null) {
-                cache.put(queryKeys[i], queryResults[i]);
-            }
-
+        MissBatch misses = new MissBatch(queryKeys);
+        misses.addAllMisses();
+        byte[][] queryResults = readThrough(misses);
+        for (int i = 0; i < queryKeys.length; i++) {
+            results[queryKeysIDs.getInt(i)] = queryResults[i];
         }
         return results;
     }
 
     @Override
     public void put(byte[] key, byte[] value) throws Exception {
+        beforeWrite(key);
         db.put(key, value);
+        afterWrite(key, value);
+    }
+
+    /**
+     * Put the key, and cache the written value for the given TTL instead of cache.ttl.in.ms,
+     * whatever the write policy, if the admission policy admits it.
+     * @throws IllegalStateException if expiry is not enabled by cache.ttl.in.ms
+     */
+    public void putWithTTL(byte[] key, byte[] value, long ttl, TimeUnit unit) throws Exception {
+        if (cacheTTL <= 0) {
+            throw new IllegalStateException("Set " + CONF_CACHE_TTL + " to cache values with a TTL");
+        }
+        beforeWrite(key);
+        db.put(key, value);
+        afterWrite(key, value, WritePolicy.THROUGH, Math.max(1L, unit.toMillis(ttl)));
     }
 
     @Override
     public void putAll(byte[][] keys, byte[][] values) throws Exception {
+        for (byte[] key : keys) {
+            beforeWrite(key);
+        }
         db.putAll(keys, values);
+        afterWriteAll(keys, values);
+    }
+
+    @Override
+    public void putLong(long key, byte[] value) throws Exception {
+        byte[] keyBytes = longKeyBuffer.get();
+        Utils.longToKey(key, keyBytes, 0);
+        beforeWrite(keyBytes);
+        db.putLong(key, value);
+        Utils.longToKey(key, keyBytes, 0);
+        afterWrite(keyBytes, value);
+    }
+
+    @Override
+    public void putAllLong(long[] keys, byte[][] values) throws Exception {
+        byte[] keyBytes = longKeyBuffer.get();
+        for (long key : keys) {
+            Utils.longToKey(key, keyBytes, 0);
+            beforeWrite(keyBytes);
+        }
+        db.putAllLong(keys, values);
+        for (int i = 0; i < keys.length; i++) {
+            Utils.longToKey(keys[i], keyBytes, 0);
+            afterWrite(keyBytes, values[i]);
+        }
+    }
+
+    /**
+     * Cache hits complete immediately; only misses go to the backend.
+     * @param key
+     * @return a future of the value. The value is null if the key does not exist.
+     */
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        assert cache != null;
+        long startTime = startTimer();
+        stats.queryCount.increment();
+        byte[] result = lookup(key);
+        if (result != null) {
+            stats.hitCount.increment();
+            recordHit(startTime);
+            return CompletableFuture.completedFuture(result);
+        }
+        if (isKnownAbsent(key)) {
+            recordHit(startTime);
+            return CompletableFuture.completedFuture(null);
+        }
+        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+        CompletableFuture<byte[]> pendingRead = inFlightReads.putIfAbsent(wrappedKey, read);
+        if (pendingRead != null) {
+            stats.coalescedCount.increment();
+            return pendingRead;
+        }
+        long epoch = readEpoch(key);
+        db.getAsync(key).whenComplete((value, error) -> {
+            try {
+                if (error == null) {
+                    cacheValue(key, value, epoch);
+                    recordMiss(startTime);
+                }
+            } finally {
+                inFlightReads.remove(wrappedKey, read);
+                if (error != null) {
+                    read.completeExceptionally(error);
+                } else {
+                    read.complete(value);
+                }
+            }
+        });
+        return read;
+    }
+
+    @Override
+    public CompletableFuture<byte[][]> getAllAsync(byte[][] keys) {
+        MissBatch misses = new MissBatch(keys);
+        misses.lookupCache();
+        CompletableFuture<Void> ownReads = CompletableFuture.completedFuture(null);
+        if (misses.hasQueryKeys()) {
+            ownReads = db.getAllAsync(misses.getQueryKeys()).handle((queryResults, error) -> {
+                try {
+                    if (error == null) {
+                        misses.complete(queryResults);
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                }
+                if (error != null) {
+                    misses.fail(error);
+                }
+                return null;
+            });
+        }
+        return ownReads.thenCompose(v -> misses.othersDone()).thenApply(v -> misses.collectResults());
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        beforeWrite(key);
+        return db.putAsync(key, value).thenRun(() -> afterWrite(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(byte[][] keys, byte[][] values) {
+        for (byte[] key : keys) {
+            beforeWrite(key);
+        }
+        return db.putAllAsync(keys, values).thenRun(() -> afterWriteAll(keys, values));
+    }
+
+    /**
+     * Delete the key from the database, then evict it from the cache.
+     */
+    @Override
+    public void delete(byte[] key) throws Exception {
+        db.delete(key);
+        afterDelete(key);
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        db.deleteAll(keys);
+        for (byte[] key : keys) {
+            writeEpochs.incrementAndGet(epochStripe(key));
+            markWritten(key);
+            inFlightReads.remove(ByteBuffer.wrap(key));
+            publishInvalidation(key);
+        }
+        if (heapCache != null) {
+            heapCache.removeAll(keys);
+        }
+        cache.removeAll(Arrays.asList(keys));
+    }
+
+    /**
+     * Scans go to the backend directly and do not fill the cache.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        return db.getScanSplits();
+    }
+
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        return db.scan(split);
+    }
+
+    @Override
+    public KVScanIterator scan(byte[] startKey, byte[] stopKey) throws Exception {
+        return db.scan(startKey, stopKey);
     }
 
     /**
@@ -114,10 +988,41 @@ public class CachedClient extends BasicKVDatabaseClient {
      */
     @Override
     public void close() throws Exception {
+        stopSnapshotLoad = true;
+        if (invalidationBus != null) {
+            invalidationPublisher.close();
+            invalidationBus.close();
+        }
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdown();
+            snapshotTimer.awaitTermination(1, TimeUnit.MINUTES);
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Fail to write the cache snapshot", e);
+            }
+        }
+        if (statsReporter != null) {
+            statsReporter.shutdown();
+            statsReporter.awaitTermination(1, TimeUnit.MINUTES);
+            reportStats();
+            statsFilesInUse.remove(statsFilePath);
+        }
+        if (stats.getSize() > 0) {
+            logger.info(String.format("Observed entry size: %d bytes, expected %d bytes.",
+                    stats.getAverageEntrySizeInBytes(), sizing.entrySize));
+        }
+        unregisterMBean();
+        stats.setCaches(null, null);
+        if (heapCache != null) {
+            heapCache.clear();
+        }
         cache.clear();
         cache.close();
+        if (absentKeys != null) {
+            absentKeys.close();
+        }
         db.close();
-        cacheStatsReportThread.interrupt();
     }
 
     /**
@@ -125,8 +1030,20 @@ public class CachedClient extends BasicKVDatabaseClient {
      */
     @Override
     public void clearDB() throws Exception {
+        stopSnapshotLoad = true;
+        if (heapCache != null) {
+            heapCache.clear();
+        }
         cache.clear();
+        if (absentKeys != null) {
+            absentKeys.clear();
+        }
+        if (keyFilter != null) {
+            keyFilterReady = false;
+            keyFilter.clear();
+        }
         db.clearDB();
+        keyFilterReady = keyFilter != null;
     }
 
     @Override
@@ -138,17 +1055,75 @@ public class CachedClient extends BasicKVDatabaseClient {
         String capacityString = conf.getProperty(CONF_CACHE_CAPACITY, DEFAULT_CACHE_CAPACITY);
         this.cacheCapacityInBytes = Long.valueOf(capacityString);
         this.statsFilePath = conf.getProperty(CONF_CACHE_STATS_FILE_PATH, DEFAULT_CACHE_STATS_FILE_PATH);
-        this.concurrency = Integer.parseInt(conf.getProperty(CONF_CACHE_CONCURRENCY, DEFAULT_CACHE_CONCURRENCY));
-        this.hashTableSizePerSegment = Integer.parseInt(
-                conf.getProperty(CONF_CACHE_HASHTABLE_SIZE_PER_SEGMENT,
-                        DEFAULT_CACHE_HASHTABLE_SIZE_PER_SEGMENT));
+        this.statsReportInterval = Long.parseLong(
+                conf.getProperty(CONF_CACHE_STATS_REPORT_INTERVAL, DEFAULT_CACHE_STATS_REPORT_INTERVAL));
+        this.latencyEnabled = Boolean.parseBoolean(
+                conf.getProperty(CONF_CACHE_STATS_LATENCY_ENABLED, DEFAULT_CACHE_STATS_LATENCY_ENABLED));
+        this.statsName = conf.getProperty(CONF_CACHE_STATS_NAME);
+        this.jmxEnabled = Boolean.parseBoolean(conf.getProperty(CONF_CACHE_JMX_ENABLED, DEFAULT_CACHE_JMX_ENABLED));
         this.dbClassName = conf.getProperty(CONF_DB_BACKEND_CLASS_NAME);
-        long totalHashTableSize = hashTableSizePerSegment * concurrency * 8; // according to the equation
-        String configurationInfo = String.format("Get configurations: %s.\n"
-                + "Set cache capacity: %d bytes.\n"
-                + "# Segments: %d.\n"
-                + "Total hash table size: %d bytes.",
-                conf, this.cacheCapacityInBytes, this.concurrency, totalHashTableSize);
+        this.negativeCacheTTL = Long.parseLong(conf.getProperty(CONF_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL));
+        this.negativeCacheCapacity = Long.parseLong(
+                conf.getProperty(CONF_NEGATIVE_CACHE_CAPACITY, DEFAULT_NEGATIVE_CACHE_CAPACITY));
+        this.bloomFilterExpectedKeys = Long.parseLong(
+                conf.getProperty(CONF_BLOOM_FILTER_EXPECTED_KEYS, DEFAULT_BLOOM_FILTER_EXPECTED_KEYS));
+        this.bloomFilterFPP = Double.parseDouble(conf.getProperty(CONF_BLOOM_FILTER_FPP, DEFAULT_BLOOM_FILTER_FPP));
+        this.bloomFilterInit = conf.getProperty(CONF_BLOOM_FILTER_INIT, DEFAULT_BLOOM_FILTER_INIT);
+        this.writePolicy = WritePolicy.valueOf(
+                conf.getProperty(CONF_WRITE_POLICY, DEFAULT_WRITE_POLICY).toUpperCase());
+        this.snapshotPath = conf.getProperty(CONF_SNAPSHOT_PATH, DEFAULT_SNAPSHOT_PATH);
+        this.snapshotWithValues = conf.getProperty(CONF_SNAPSHOT_MODE, DEFAULT_SNAPSHOT_MODE).equals("entries");
+        this.snapshotMaxEntries = Integer.parseInt(
+                conf.getProperty(CONF_SNAPSHOT_MAX_ENTRIES, DEFAULT_SNAPSHOT_MAX_ENTRIES));
+        this.snapshotInterval = Long.parseLong(conf.getProperty(CONF_SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL));
+        this.snapshotParallelism = Integer.parseInt(
+                conf.getProperty(CONF_SNAPSHOT_PARALLELISM, DEFAULT_SNAPSHOT_PARALLELISM));
+        this.snapshotLoadBudget = Long.parseLong(
+                conf.getProperty(CONF_SNAPSHOT_LOAD_BUDGET, DEFAULT_SNAPSHOT_LOAD_BUDGET));
+        this.heapCacheCapacity = Long.parseLong(
+                conf.getProperty(CONF_HEAP_CACHE_CAPACITY, DEFAULT_HEAP_CACHE_CAPACITY));
+        this.heapCacheWindowRatio = Double.parseDouble(
+                conf.getProperty(CONF_HEAP_CACHE_WINDOW_RATIO, DEFAULT_HEAP_CACHE_WINDOW_RATIO));
+        this.cacheTTL = Long.parseLong(conf.getProperty(CONF_CACHE_TTL, DEFAULT_CACHE_TTL));
+        this.refreshAheadRatio = Double.parseDouble(
+                conf.getProperty(CONF_REFRESH_AHEAD_RATIO, DEFAULT_REFRESH_AHEAD_RATIO));
+        CacheSizing.EntryMode entryMode = CacheSizing.EntryMode.valueOf(
+                conf.getProperty(CONF_CACHE_ENTRY_MODE, DEFAULT_CACHE_ENTRY_MODE).toUpperCase());
+        int dataSize;
+        if (entryMode == CacheSizing.EntryMode.FIXED) {
+            this.fixedKeySize = Integer.parseInt(
+                    conf.getProperty(CONF_CACHE_FIXED_KEY_SIZE, DEFAULT_CACHE_FIXED_KEY_SIZE));
+            this.fixedValueSize = Integer.parseInt(conf.getProperty(CONF_CACHE_FIXED_VALUE_SIZE, "0"));
+            if (fixedKeySize <= 0 || fixedKeySize > MAX_FIXED_SIZE
+                    || fixedValueSize <= 0 || fixedValueSize > MAX_FIXED_SIZE) {
+                throw new IllegalArgumentException(String.format("Set %s and %s between 1 and %d for fixed entries",
+                        CONF_CACHE_FIXED_KEY_SIZE, CONF_CACHE_FIXED_VALUE_SIZE, MAX_FIXED_SIZE));
+            }
+            dataSize = fixedKeySize + fixedValueSize + 2 * LengthPrefixedSerializer.PREFIX_SIZE;
+        } else {
+            dataSize = Integer.parseInt(
+                    conf.getProperty(CONF_CACHE_EXPECTED_ENTRY_SIZE, DEFAULT_CACHE_EXPECTED_ENTRY_SIZE));
+            if (cacheTTL > 0) {
+                dataSize += EXPIRY_HEADER_SIZE;
+            }
+        }
+        if (entryMode != CacheSizing.EntryMode.LINKED && cacheTTL > 0) {
+            throw new IllegalArgumentException("OHC does not expire " + entryMode.name().toLowerCase()
+                    + " entries, unset " + CONF_CACHE_TTL);
+        }
+        this.admissionPolicyType = conf.getProperty(CONF_ADMISSION_POLICY, DEFAULT_ADMISSION_POLICY);
+        this.scanBatchSize = Integer.parseInt(conf.getProperty(CONF_SCAN_BATCH_SIZE, DEFAULT_SCAN_BATCH_SIZE));
+        this.invalidationBusClassName = conf.getProperty(CONF_INVALIDATION_BUS, DEFAULT_INVALIDATION_BUS);
+        this.invalidationBatchSize = Integer.parseInt(
+                conf.getProperty(CONF_INVALIDATION_BATCH_SIZE, DEFAULT_INVALIDATION_BATCH_SIZE));
+        this.invalidationQueueSize = Integer.parseInt(
+                conf.getProperty(CONF_INVALIDATION_QUEUE_SIZE, DEFAULT_INVALIDATION_QUEUE_SIZE));
+        this.sizing = new CacheSizing(entryMode, cacheCapacityInBytes, dataSize,
+                Runtime.getRuntime().availableProcessors(),
+                conf.getProperty(CONF_CACHE_CONCURRENCY, DEFAULT_CACHE_CONCURRENCY),
+                conf.getProperty(CONF_CACHE_HASHTABLE_SIZE_PER_SEGMENT, DEFAULT_CACHE_HASHTABLE_SIZE_PER_SEGMENT),
+                conf.getProperty(CONF_CACHE_CHUNK_SIZE, DEFAULT_CACHE_CHUNK_SIZE));
+        String configurationInfo = String.format("Get configurations: %s.\n%s", conf, sizing);
         logger.info(configurationInfo);
     }
 
@@ -170,19 +1145,359 @@ public class CachedClient extends BasicKVDatabaseClient {
         OHCacheBuilder<byte[], byte[]> builder = OHCacheBuilder.<byte[], byte[]>newBuilder()
                 .keySerializer(new ByteArraySerializer())
                 .valueSerializer(new ByteArraySerializer())
-                .segmentCount(concurrency)
-                .hashTableSize(hashTableSizePerSegment)
+                .segmentCount(sizing.segmentCount)
+                .hashTableSize(sizing.hashTableSize)
                 .capacity(cacheCapacityInBytes)
                 .throwOOME(true);
+        if (sizing.mode != CacheSizing.EntryMode.LINKED) {
+            builder.chunkSize(sizing.chunkSize);
+        }
+        if (sizing.mode == CacheSizing.EntryMode.FIXED) {
+            // the slots are padded, so the lengths are kept in the entries
+            builder.keySerializer(new LengthPrefixedSerializer())
+                    .valueSerializer(new LengthPrefixedSerializer())
+                    .fixedEntrySize(fixedKeySize + LengthPrefixedSerializer.PREFIX_SIZE,
+                            fixedValueSize + LengthPrefixedSerializer.PREFIX_SIZE);
+        }
+        if (cacheTTL > 0) {
+            builder.timeouts(true).defaultTTLmillis(cacheTTL);
+            logger.info(String.format("Cached values expire after %d ms, refreshed after %.0f%% of it.",
+                    cacheTTL, refreshAheadRatio * 100));
+        }
         this.cache = builder.build();
-        cacheStatsReportThread = new Thread(new CacheStatsReportRunnable(2));
-        cacheStatsReportThread.setDaemon(true);
-        cacheStatsReportThread.setName("Cache Stats Reporter");
-        cacheStatsReportThread.start();
+        this.admissionPolicy = AdmissionPolicy.create(admissionPolicyType, conf, sizing.expectedEntries);
+        if (!admissionPolicyType.equals(AdmissionPolicy.ALL)) {
+            logger.info("Admission policy: " + admissionPolicyType);
+        }
+        if (heapCacheCapacity > 0) {
+            this.heapCache = new HeapCache(heapCacheCapacity, heapCacheWindowRatio, this::demote);
+            logger.info(String.format("Heap tier: %d bytes.", heapCacheCapacity));
+        }
+        if (negativeCacheTTL > 0) {
+            this.absentKeys = OHCacheBuilder.<byte[], byte[]>newBuilder()
+                    .keySerializer(new ByteArraySerializer())
+                    .valueSerializer(new ByteArraySerializer())
+                    .capacity(negativeCacheCapacity)
+                    .timeouts(true)
+                    .defaultTTLmillis(negativeCacheTTL)
+                    .build();
+            logger.info(String.format("Cache absent keys for %d ms.", negativeCacheTTL));
+        }
+        if (bloomFilterExpectedKeys > 0) {
+            this.keyFilter = new BloomFilter(bloomFilterExpectedKeys, bloomFilterFPP);
+            logger.info(String.format("Key filter: %d bytes, %d hash functions.",
+                    keyFilter.sizeInBytes(), keyFilter.getNumHashes()));
+            if (bloomFilterInit.equals("empty")) {
+                this.keyFilterReady = true;
+            } else {
+                buildKeyFilter();
+            }
+        }
+        if (!snapshotPath.isEmpty()) {
+            File parent = new File(snapshotPath).getAbsoluteFile().getParentFile();
+            if (parent != null) parent.mkdirs();
+            startSnapshotLoad();
+            this.snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("Cache Snapshot Writer");
+                return thread;
+            });
+            if (snapshotInterval > 0) {
+                snapshotTimer.scheduleWithFixedDelay(() -> {
+                    try {
+                        writeSnapshot();
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Fail to write the cache snapshot", e);
+                    }
+                }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+            }
+        }
+        stats.setCaches(cache, heapCache);
+        if (!invalidationBusClassName.isEmpty()) {
+            this.invalidationBus = (InvalidationBus) Class.forName(invalidationBusClassName).newInstance();
+            invalidationBus.connect(conf, new RemoteInvalidation());
+            this.invalidationPublisher = new InvalidationPublisher(invalidationBus, invalidationQueueSize,
+                    invalidationBatchSize, stats);
+            logger.info("Invalidation bus: " + invalidationBusClassName);
+        }
+        if (statsName == null) {
+            statsName = dbClass.getSimpleName();
+        }
+        if (jmxEnabled) {
+            registerMBean();
+        }
+        if (!statsFilePath.isEmpty() && !statsFilesInUse.add(statsFilePath)) {
+            // Another client in this JVM writes this file
+            statsFilePath = statsFilePath + "-" + instanceCount.incrementAndGet();
+            statsFilesInUse.add(statsFilePath);
+        }
+        this.statsReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Cache Stats Reporter");
+            return thread;
+        });
+        statsReporter.scheduleAtFixedRate(this::reportStats,
+                statsReportInterval, statsReportInterval, TimeUnit.SECONDS);
+
+    }
+
+    /**
+     * Save the hot keys of the cache to cache.snapshot.path, with their values in the entries mode.
+     * Skipped while a snapshot is loaded, so a partly warmed cache does not replace a complete snapshot.
+     * @return the number of keys saved
+     * @throws IOException
+     */
+    public synchronized long writeSnapshot() throws IOException {
+        if (snapshotPath.isEmpty() || writtenWhileLoading != null) {
+            return 0L;
+        }
+        long start = System.currentTimeMillis();
+        long numKeys = CacheSnapshot.write(cache, snapshotPath, snapshotParallelism, snapshotMaxEntries,
+                snapshotWithValues, cacheTTL > 0 ? EXPIRY_HEADER_SIZE : 0);
+        logger.info(String.format("Saved %d keys to the cache snapshot in %d ms.",
+                numKeys, System.currentTimeMillis() - start));
+        return numKeys;
+    }
+
+    /**
+     * Load the snapshot files in parallel in the background, within cache.snapshot.load.budget.in.sec.
+     * connect() does not wait for it. Loading never replaces a cached value, and the keys written while loading
+     * are evicted; if more than MAX_WRITTEN_WHILE_LOADING keys are written meanwhile, the load stops.
+     */
+    private void startSnapshotLoad() {
+        List<File> files = CacheSnapshot.listFiles(snapshotPath);
+        if (files.isEmpty()) {
+            return;
+        }
+        this.writtenWhileLoading = ConcurrentHashMap.newKeySet();
+        Thread loader = new Thread(() -> {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(snapshotLoadBudget);
+            ExecutorService readers = Executors.newFixedThreadPool(files.size(), r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("Cache Snapshot Reader");
+                return thread;
+            });
+            long numKeys = 0L;
+            try {
+                List<Future<Long>> futures = new ArrayList<>(files.size());
+                for (File file : files) {
+                    futures.add(readers.submit(() ->
+                            CacheSnapshot.read(file, SNAPSHOT_BATCH_SIZE, deadline, this::loadSnapshotBatch)));
+                }
+                for (Future<Long> future : futures) {
+                    try {
+                        numKeys += future.get();
+                    } catch (ExecutionException e) {
+                        logger.log(Level.WARNING, "Fail to load the cache snapshot", e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                writtenWhileLoading = null;
+                readers.shutdownNow();
+            }
+            logger.info(String.format("Loaded %d keys of the cache snapshot in %d ms.",
+                    numKeys, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        });
+        loader.setDaemon(true);
+        loader.setName("Cache Snapshot Loader");
+        loader.start();
+    }
+
+    private boolean loadSnapshotBatch(byte[][] keys, byte[][] values) throws Exception {
+        if (stopSnapshotLoad) {
+            return false;
+        }
+        if (values == null) {
+            values = db.getAll(keys);
+        }
+        long now = cacheTTL > 0 ? System.currentTimeMillis() : 0L;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null && admissionPolicy.admitRestored(keys[i], values[i].length)) {
+                storeIfAbsent(keys[i], values[i], expireTime(now, cacheTTL), refreshTime(now, cacheTTL));
+            }
+        }
+        Set<ByteBuffer> written = writtenWhileLoading;
+        for (int i = 0; i < keys.length; i++) {
+            if (stopSnapshotLoad || written.contains(ByteBuffer.wrap(keys[i]))) {
+                if (heapCache != null) {
+                    heapCache.remove(keys[i]); // the restored value may have been promoted already
+                }
+                cache.remove(keys[i]);
+            }
+        }
+        return !stopSnapshotLoad;
+    }
+
+    /**
+     * Add the keys of the backend to the key filter in the background. Until it is done, absent keys are read
+     * from the backend; the puts in the meantime are added by the put methods.
+     */
+    private void buildKeyFilter() {
+        Thread builder = new Thread(() -> {
+            long numKeys = 0L;
+            try (KVScanIterator iterator = db.scan()) {
+                while (iterator.hasNext()) {
+                    keyFilter.add(iterator.next().getKey());
+                    numKeys++;
+                }
+                keyFilterReady = true;
+                logger.info("Key filter built from " + numKeys + " keys.");
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Fail to build the key filter, absent keys are read from the backend", e);
+            }
+        });
+        builder.setDaemon(true);
+        builder.setName("Cache Key Filter Builder");
+        builder.start();
+    }
+
+    /**
+     * The misses of a getAll batch. Each distinct missing key is either read by this batch,
+     * or already being read by another request, which the batch waits for.
+     */
+    private class MissBatch {
+        final byte[][] keys;
+        final byte[][] results;
+        final boolean scan;
+        private final IntArrayList queryKeysIDs = new IntArrayList();
+        private final List<CompletableFuture<byte[]>> ownReads = new ArrayList<>();
+        private final LongArrayList ownReadEpochs = new LongArrayList();
+        private final IntArrayList waitingKeysIDs = new IntArrayList();
+        private final List<CompletableFuture<byte[]>> otherReads = new ArrayList<>();
+        private final IntArrayList duplicateKeysIDs = new IntArrayList();
+        private final IntArrayList duplicateOf = new IntArrayList();
+
+        MissBatch(byte[][] keys) {
+            this.keys = keys;
+            this.results = new byte[keys.length][];
+            this.scan = scanBatchSize > 0 && keys.length >= scanBatchSize;
+        }
+
+        private Object2IntOpenHashMap<ByteBuffer> firstMissOfKey = null;
+
+        void lookupCache() {
+            long localHitCount = 0L;
+            for (int i = 0; i < keys.length; i++) {
+                byte[] result = lookup(keys[i]);
+                if (result != null) {
+                    results[i] = result;
+                    localHitCount++;
+                } else if (!isKnownAbsent(keys[i])) {
+                    addMiss(i);
+                }
+            }
+            stats.queryCount.add(keys.length);
+            stats.hitCount.add(localHitCount);
+            stats.coalescedCount.add(waitingKeysIDs.size() + duplicateKeysIDs.size());
+        }
+
+        /**
+         * All the keys are known to miss the cache, and are already counted by the caller.
+         */
+        void addAllMisses() {
+            for (int i = 0; i < keys.length; i++) {
+                addMiss(i);
+            }
+            stats.coalescedCount.add(waitingKeysIDs.size() + duplicateKeysIDs.size());
+        }
+
+        private void addMiss(int i) {
+            if (firstMissOfKey == null) {
+                firstMissOfKey = new Object2IntOpenHashMap<>();
+                firstMissOfKey.defaultReturnValue(-1);
+            }
+            ByteBuffer wrappedKey = ByteBuffer.wrap(keys[i]);
+            int firstMiss = firstMissOfKey.putIfAbsent(wrappedKey, i);
+            if (firstMiss >= 0) {
+                duplicateKeysIDs.add(i);
+                duplicateOf.add(firstMiss);
+                return;
+            }
+            CompletableFuture<byte[]> read = new CompletableFuture<>();
+            CompletableFuture<byte[]> pendingRead = inFlightReads.putIfAbsent(wrappedKey, read);
+            if (pendingRead == null) {
+                queryKeysIDs.add(i);
+                ownReads.add(read);
+                ownReadEpochs.add(readEpoch(keys[i]));
+            } else {
+                waitingKeysIDs.add(i);
+                otherReads.add(pendingRead);
+            }
+        }
+
+        boolean hasQueryKeys() {
+            return !queryKeysIDs.isEmpty();
+        }
+
+        byte[][] getQueryKeys() {
+            byte[][] queryKeys = new byte[queryKeysIDs.size()][];
+            for (int i = 0; i < queryKeysIDs.size(); i++) {
+                queryKeys[i] = keys[queryKeysIDs.getInt(i)];
+            }
+            return queryKeys;
+        }
+
+        /**
+         * Cache the values read by this batch, then release the requests waiting for them.
+         */
+        void complete(byte[][] queryResults) {
+            for (int i = 0; i < queryKeysIDs.size(); i++) {
+                int kID = queryKeysIDs.getInt(i);
+                results[kID] = queryResults[i];
+                cacheValue(keys[kID], queryResults[i], ownReadEpochs.getLong(i), scan);
+                inFlightReads.remove(ByteBuffer.wrap(keys[kID]), ownReads.get(i));
+                ownReads.get(i).complete(queryResults[i]);
+            }
+        }
+
+        /**
+         * Release the requests waiting for the reads of this batch that are not completed yet.
+         */
+        void fail(Throwable error) {
+            for (int i = 0; i < queryKeysIDs.size(); i++) {
+                inFlightReads.remove(ByteBuffer.wrap(keys[queryKeysIDs.getInt(i)]), ownReads.get(i));
+                ownReads.get(i).completeExceptionally(error);
+            }
+        }
+
+        /**
+         * Must be called after the own reads are completed, otherwise two batches waiting for each other deadlock.
+         */
+        void awaitOthers() throws Exception {
+            for (int i = 0; i < waitingKeysIDs.size(); i++) {
+                results[waitingKeysIDs.getInt(i)] = await(otherReads.get(i));
+            }
+            fillDuplicates();
+        }
 
+        CompletableFuture<Void> othersDone() {
+            List<CompletableFuture<byte[]>> reads = new ArrayList<>(ownReads);
+            reads.addAll(otherReads);
+            return CompletableFuture.allOf(reads.toArray(new CompletableFuture[reads.size()]));
+        }
+
+        byte[][] collectResults() {
+            for (int i = 0; i < waitingKeysIDs.size(); i++) {
+                results[waitingKeysIDs.getInt(i)] = otherReads.get(i).join();
+            }
+            fillDuplicates();
+            return results;
+        }
+
+        private void fillDuplicates() {
+            for (int i = 0; i < duplicateKeysIDs.size(); i++) {
+                results[duplicateKeysIDs.getInt(i)] = results[duplicateOf.getInt(i)];
+            }
+        }
     }
 
-    private class ByteArraySerializer implements CacheSerializer<byte[]> {
+    static class ByteArraySerializer implements CacheSerializer<byte[]> {
 
         @Override
         public void serialize(byte[] bytes, ByteBuffer byteBuffer) {
@@ -202,40 +1517,82 @@ public class CachedClient extends BasicKVDatabaseClient {
         }
     }
 
+    /**
+     * For the padded slots of fixed entries: the array after its length.
+     */
+    static class LengthPrefixedSerializer implements CacheSerializer<byte[]> {
 
-    private class CacheStatsReportRunnable implements Runnable {
+        static final int PREFIX_SIZE = 2;
 
-        private long sleepTimeInSecond = 2;
+        @Override
+        public void serialize(byte[] bytes, ByteBuffer byteBuffer) {
+            byteBuffer.putShort((short) bytes.length);
+            byteBuffer.put(bytes);
+        }
 
-        public CacheStatsReportRunnable() {
+        @Override
+        public byte[] deserialize(ByteBuffer byteBuffer) {
+            byte[] array = new byte[byteBuffer.getShort() & 0xFFFF];
+            byteBuffer.get(array, 0, array.length);
+            return array;
         }
 
-        public CacheStatsReportRunnable(long sleepTimeInSecond) {
-            this.sleepTimeInSecond = sleepTimeInSecond;
+        @Override
+        public int serializedSize(byte[] bytes) {
+            return PREFIX_SIZE + bytes.length;
         }
+    }
 
-        private void writeStatsToFile() {
-            try {
-                PrintWriter writer = new PrintWriter(new File(statsFilePath));
-                long missCount = queryCount.get() - hitCount.get();
-                writer.println(String.format("CacheStats{hitCount=%d, missCount=%d, }", hitCount.get(), missCount));
-                writer.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+    /**
+     * @return the statistics of this client, updated as it runs. The latency distributions are the ones
+     * of the last report interval.
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    private void registerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(JMX_DOMAIN + ":type=CacheStats,name=" + ObjectName.quote(statsName));
+        if (server.isRegistered(name)) {
+            // Another client of the same name lives in this JVM
+            name = new ObjectName(JMX_DOMAIN + ":type=CacheStats,name="
+                    + ObjectName.quote(statsName + "-" + instanceCount.incrementAndGet()));
         }
+        server.registerMBean(stats, name);
+        this.statsMBeanName = name;
+    }
 
+    private void unregisterMBean() {
+        if (statsMBeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsMBeanName);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Fail to unregister " + statsMBeanName, e);
+        }
+        statsMBeanName = null;
+    }
 
-        @Override
-        public void run() {
-            while (true) {
-                writeStatsToFile();
-                try {
-                    Thread.sleep(sleepTimeInSecond * 1000, 0);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Close the latency interval, and replace the stats file with the current statistics.
+     */
+    private synchronized void reportStats() {
+        stats.sample();
+        if (statsFilePath.isEmpty()) {
+            return;
+        }
+        File file = new File(statsFilePath);
+        File tempFile = new File(statsFilePath + ".tmp");
+        try (PrintWriter writer = new PrintWriter(tempFile)) {
+            writer.println(stats);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Fail to write the cache stats to " + statsFilePath, e);
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            logger.warning("Fail to replace the cache stats file " + statsFilePath);
         }
     }
 
@@ -0,0 +1,340 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small on-heap cache of byte[] keys and values bounded in bytes, with the W-TinyLFU policy:
+ * new entries enter an LRU window, and an entry leaving the window is admitted to the main SLRU area
+ * (probation and protected) only if its estimated frequency is higher than the one of the entry it would evict.
+ * The frequencies are estimated by a count-min sketch of 4-bit counters, halved periodically.
+ *
+ * Lookups do not lock. A hit reorders the queues only if the lock is free, so under contention some hits
+ * are not counted in the recency order. The sketch counters are updated with CAS. The values are stored and
+ * returned as is, without copying.
+ * The entries carry the expiration and refresh times given by the caller, but expired entries are only
+ * evicted by the policy; the caller checks the times.
+ */
+class HeapCache {
+
+    static final int ENTRY_OVERHEAD = 64; // the entry, the key buffer and the map entry, roughly
+    static final double PROTECTED_RATIO = 0.8; // of the main area
+    static final int ASSUMED_ENTRY_SIZE = 128; // to size the sketch
+    static final int MIN_ADMISSION_FREQUENCY = 2; // lookups before a key enters the window
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = -1;
+
+    /**
+     * Receives the entries evicted from the heap cache, outside of its lock.
+     */
+    interface Demotion {
+        void demote(Entry entry);
+    }
+
+    static final class Entry {
+        final ByteBuffer key;
+        final byte[] value;
+        final long epoch; // of the write epoch stripe of the key, when the value was read
+        final long expireAt; // in millisecond
+        final long refreshAt;
+        private final long hash;
+        private final int weight;
+        private int queue;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(ByteBuffer key, byte[] value, long epoch, long expireAt, long refreshAt, long hash, int weight) {
+            this.key = key;
+            this.value = value;
+            this.epoch = epoch;
+            this.expireAt = expireAt;
+            this.refreshAt = refreshAt;
+            this.hash = hash;
+            this.weight = weight;
+        }
+    }
+
+    private final ConcurrentHashMap<ByteBuffer, Entry> map = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Entry heads[] = new Entry[3]; // sentinels of the circular queues, least recently used first
+    private final long weights[] = new long[3];
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final long protectedCapacity;
+    private final Demotion demotion;
+
+    /**
+     * @param capacityInBytes the total weight of the entries, counting ENTRY_OVERHEAD for each
+     * @param windowRatio the share of the window, e.g. 0.01
+     */
+    HeapCache(long capacityInBytes, double windowRatio, Demotion demotion) {
+        this.windowCapacity = Math.max(1L, (long) (capacityInBytes * windowRatio));
+        this.mainCapacity = Math.max(0L, capacityInBytes - windowCapacity);
+        this.protectedCapacity = (long) (mainCapacity * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(Math.max(64L, capacityInBytes / ASSUMED_ENTRY_SIZE));
+        this.demotion = demotion;
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = new Entry(null, null, 0L, 0L, 0L, 0L, 0);
+            heads[i].prev = heads[i];
+            heads[i].next = heads[i];
+        }
+    }
+
+    /**
+     * Every lookup, hit or miss, counts in the frequency of the key.
+     * @return the cached entry, whose value is not a copy. Null on a miss.
+     */
+    Entry get(byte key[]) {
+        Entry entry = map.get(ByteBuffer.wrap(key));
+        if (entry == null) {
+            sketch.increment(BloomFilter.hash(key));
+            return null;
+        }
+        sketch.increment(entry.hash);
+        if (lock.tryLock()) {
+            try {
+                onHit(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Add the entry to the window, replacing the cached value if any. The key is copied.
+     * Skipped if the key was not looked up before, or if the lock is busy; the entry is still cached off-heap,
+     * and removals always take the lock, so skipping never leaves a stale value.
+     */
+    void put(byte key[], byte value[], long epoch, long expireAt, long refreshAt) {
+        long hash = BloomFilter.hash(key);
+        if (sketch.frequency(hash) < MIN_ADMISSION_FREQUENCY || !lock.tryLock()) {
+            return;
+        }
+        Entry entry = new Entry(ByteBuffer.wrap(key.clone()), value, epoch, expireAt, refreshAt, hash,
+                key.length + value.length + ENTRY_OVERHEAD);
+        List<Entry> evicted = new ArrayList<>(2);
+        try {
+            Entry old = map.put(entry.key, entry);
+            if (old != null) {
+                unlink(old);
+            }
+            link(WINDOW, entry);
+            evict(evicted);
+        } finally {
+            lock.unlock();
+        }
+        demote(evicted);
+    }
+
+    void remove(byte key[]) {
+        lock.lock();
+        try {
+            Entry entry = map.remove(ByteBuffer.wrap(key));
+            if (entry != null) {
+                unlink(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void removeAll(byte keys[][]) {
+        lock.lock();
+        try {
+            for (byte[] key : keys) {
+                Entry entry = map.remove(ByteBuffer.wrap(key));
+                if (entry != null) {
+                    unlink(entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : map.values()) {
+                entry.queue = REMOVED;
+            }
+            map.clear();
+            for (int i = 0; i < heads.length; i++) {
+                heads[i].prev = heads[i];
+                heads[i].next = heads[i];
+                weights[i] = 0L;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long weightInBytes() {
+        lock.lock();
+        try {
+            return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onHit(Entry entry) {
+        if (entry.queue == REMOVED) {
+            return;
+        }
+        int queue = entry.queue == PROBATION ? PROTECTED : entry.queue;
+        unlink(entry);
+        link(queue, entry);
+        while (weights[PROTECTED] > protectedCapacity) {
+            Entry demoted = heads[PROTECTED].next;
+            unlink(demoted);
+            link(PROBATION, demoted);
+        }
+    }
+
+    /**
+     * Move the entries overflowing the window to the main area, if they are more frequent than its victims.
+     */
+    private void evict(List<Entry> evicted) {
+        while (weights[WINDOW] > windowCapacity) {
+            Entry candidate = heads[WINDOW].next;
+            unlink(candidate);
+            int candidateFrequency = sketch.frequency(candidate.hash);
+            boolean admitted = true;
+            while (weights[PROBATION] + weights[PROTECTED] + candidate.weight > mainCapacity) {
+                Entry victim = heads[PROBATION].next != heads[PROBATION] ? heads[PROBATION].next : heads[PROTECTED].next;
+                if (victim == heads[PROTECTED] || candidateFrequency <= sketch.frequency(victim.hash)) {
+                    admitted = false;
+                    break;
+                }
+                unlink(victim);
+                map.remove(victim.key, victim);
+                evicted.add(victim);
+            }
+            if (admitted) {
+                link(PROBATION, candidate);
+            } else {
+                candidate.queue = REMOVED;
+                map.remove(candidate.key, candidate);
+                evicted.add(candidate);
+            }
+        }
+    }
+
+    private void demote(List<Entry> evicted) {
+        for (Entry entry : evicted) {
+            demotion.demote(entry);
+        }
+    }
+
+    private void link(int queue, Entry entry) {
+        Entry head = heads[queue];
+        entry.queue = queue;
+        entry.prev = head.prev;
+        entry.next = head;
+        head.prev.next = entry;
+        head.prev = entry;
+        weights[queue] += entry.weight;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.queue == REMOVED) {
+            return;
+        }
+        weights[entry.queue] -= entry.weight;
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.queue = REMOVED;
+    }
+
+    /**
+     * A count-min sketch of depth 4 with 4-bit counters, 16 in a long. All the counters are halved
+     * after 10 increments per counted key, so old frequencies fade.
+     */
+    static final class FrequencySketch {
+        private static final long SEEDS[] = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final AtomicLongArray table;
+        private final int tableMask;
+        private final int sampleSize;
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        FrequencySketch(long expectedKeys) {
+            int length = (int) Math.min(1 << 30, Long.highestOneBit(Math.max(2L, expectedKeys - 1)) << 1);
+            this.table = new AtomicLongArray(length);
+            this.tableMask = length - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * expectedKeys);
+        }
+
+        int frequency(long hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = rehash(hash, i);
+                int offset = ((int) h & 15) << 2;
+                frequency = Math.min(frequency, (int) ((table.get((int) (h >>> 32) & tableMask) >>> offset) & 0xF));
+            }
+            return frequency;
+        }
+
+        void increment(long hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long h = rehash(hash, i);
+                added |= incrementCounter((int) (h >>> 32) & tableMask, ((int) h & 15) << 2);
+            }
+            if (added && size.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+        /**
+         * @return false if the counter is saturated
+         */
+        private boolean incrementCounter(int index, int offset) {
+            while (true) {
+                long word = table.get(index);
+                if (((word >>> offset) & 0xF) == 0xF) {
+                    return false;
+                }
+                if (table.compareAndSet(index, word, word + (1L << offset))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Halve all the counters, once per sample even if several threads reach it.
+         */
+        private synchronized void reset() {
+            if (size.get() < sampleSize) {
+                return;
+            }
+            for (int i = 0; i < table.length(); i++) {
+                long word;
+                do {
+                    word = table.get(i);
+                } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+            }
+            size.updateAndGet(n -> n / 2);
+        }
+
+        private static long rehash(long hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return h ^ (h >>> 29);
+        }
+    }
+}
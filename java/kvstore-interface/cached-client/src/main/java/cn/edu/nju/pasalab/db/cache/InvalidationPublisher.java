@@ -0,0 +1,122 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import cn.edu.nju.pasalab.db.InvalidationBus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the written keys from one thread: the keys written while a message is sent go together in the next one,
+ * so the messages grow with the write rate instead of waiting for a timer.
+ *
+ * A failed message is retried with a growing backoff. The writers never wait: when the queue is full, or a message
+ * still fails after the retries, its keys are dropped and the other JVMs are told to invalidate all their keys.
+ */
+final class InvalidationPublisher implements Runnable {
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long INITIAL_BACKOFF_IN_MS = 100L; // doubled after each failed attempt
+
+    private final InvalidationBus bus;
+    private final BlockingQueue<byte[]> queue;
+    private final int maxBatchSize;
+    private final CacheStats stats;
+    private final Logger logger = Logger.getLogger(InvalidationPublisher.class.getName());
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean keysLost = false; // the other JVMs must invalidate all their keys
+
+    InvalidationPublisher(InvalidationBus bus, int queueSize, int maxBatchSize, CacheStats stats) {
+        this.bus = bus;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.maxBatchSize = maxBatchSize;
+        this.stats = stats;
+        this.thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.setName("Cache Invalidation Publisher");
+        thread.start();
+    }
+
+    /**
+     * @param key not modified afterwards
+     */
+    void add(byte key[]) {
+        if (!queue.offer(key)) {
+            keysLost = true;
+        }
+    }
+
+    @Override
+    public void run() {
+        List<byte[]> batch = new ArrayList<>();
+        while (running || !queue.isEmpty() || keysLost) {
+            try {
+                if (keysLost) {
+                    keysLost = false;
+                    queue.clear(); // covered by the message, which is sent after their writes
+                    logger.warning("Some written keys could not be published, invalidate all the keys of the others");
+                    if (!publish(bus::publishInvalidateAll, "the invalidation of all the keys")) {
+                        keysLost = true;
+                    }
+                } else {
+                    byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    byte keys[][] = batch.toArray(new byte[batch.size()][]);
+                    if (publish(() -> bus.publish(keys), keys.length + " invalidated keys")) {
+                        stats.invalidationsSent.add(keys.length);
+                    } else {
+                        keysLost = true;
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (keysLost && !running) {
+                logger.warning("Closed before the invalidations could be published");
+                break;
+            }
+        }
+    }
+
+    private interface Message {
+        void send() throws Exception;
+    }
+
+    /**
+     * @return false if the message still fails after MAX_ATTEMPTS attempts
+     */
+    private boolean publish(Message message, String description) throws InterruptedException {
+        long backoff = INITIAL_BACKOFF_IN_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                message.send();
+                return true;
+            } catch (Exception e) {
+                if (attempt == MAX_ATTEMPTS || !running) {
+                    logger.log(Level.WARNING, "Fail to publish " + description + " after " + attempt + " attempts", e);
+                    return false;
+                }
+            }
+            Thread.sleep(backoff);
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * Publish the keys queued, then stop.
+     */
+    void close() throws InterruptedException {
+        running = false;
+        thread.join(TimeUnit.MINUTES.toMillis(1));
+    }
+}
@@ -0,0 +1,63 @@
+package cn.edu.nju.pasalab.db.cache;
+
+import java.util.Properties;
+
+/**
+ * Reject the values larger than cache.admission.max.value.size.in.byte, and the keys that missed or were written
+ * less than cache.admission.min.frequency times, so one-off reads and writes do not evict the hot keys.
+ * The accesses are counted by a count-min sketch of its own, of the same kind as the one of the heap tier,
+ * whose frequencies fade over time.
+ *
+ * The misses of a scan are not counted: a scan only caches the keys already frequent in the other traffic,
+ * so a large getAll over cold keys leaves the cache as it was.
+ */
+public class SizeFrequencyAdmission implements AdmissionPolicy {
+
+    public static final String CONF_MAX_VALUE_SIZE = "cache.admission.max.value.size.in.byte"; // 0: no limit
+    public static final String DEFAULT_MAX_VALUE_SIZE = "65536";
+    public static final String CONF_MIN_FREQUENCY = "cache.admission.min.frequency"; // 1 to check the size only
+    public static final String DEFAULT_MIN_FREQUENCY = "2";
+
+    private final int maxValueSize;
+    private final int minFrequency;
+    private final HeapCache.FrequencySketch sketch;
+
+    public SizeFrequencyAdmission(Properties conf, long expectedEntries) {
+        this.maxValueSize = Integer.parseInt(conf.getProperty(CONF_MAX_VALUE_SIZE, DEFAULT_MAX_VALUE_SIZE));
+        this.minFrequency = Integer.parseInt(conf.getProperty(CONF_MIN_FREQUENCY, DEFAULT_MIN_FREQUENCY));
+        this.sketch = new HeapCache.FrequencySketch(Math.max(64L, expectedEntries));
+    }
+
+    @Override
+    public boolean admit(byte key[], int valueLength, boolean scan) {
+        if (isTooLarge(valueLength)) {
+            return false;
+        }
+        if (minFrequency <= 1) {
+            return true;
+        }
+        long hash = BloomFilter.hash(key);
+        if (!scan) {
+            sketch.increment(hash);
+        }
+        return sketch.frequency(hash) >= minFrequency;
+    }
+
+    /**
+     * The keys of a snapshot were hot, so only their size is checked, and they are counted once.
+     */
+    @Override
+    public boolean admitRestored(byte key[], int valueLength) {
+        if (isTooLarge(valueLength)) {
+            return false;
+        }
+        if (minFrequency > 1) {
+            sketch.increment(BloomFilter.hash(key));
+        }
+        return true;
+    }
+
+    private boolean isTooLarge(int valueLength) {
+        return maxValueSize > 0 && valueLength > maxValueSize;
+    }
+}
@@ -1,14 +1,20 @@
 package cn.edu.nju.pasalab.db.cassandra;
 
 import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.utils.Bytes;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -28,6 +34,10 @@ public class CassandraClient extends BasicKVDatabaseClient {
     public static final String DEFAULT_CONTACT_POINTS = "127.0.0.1";
     public static final String CONF_CONCURRENT_QUERY = "cassandra.concurrent.query";
     public static final String DEFAULT_CONCURRENT_QUERY = "1000";
+    public static final String CONF_SCAN_FETCH_SIZE = "cassandra.scan.fetch.size"; // rows per page in scans
+    public static final String DEFAULT_SCAN_FETCH_SIZE = "1000";
+    public static final String CONF_READ_TIMEOUT = "cassandra.read.timeout.in.ms"; // per request
+    public static final String DEFAULT_READ_TIMEOUT = "12000";
 
 
     private List<String> contactPoints;
@@ -38,13 +48,22 @@ public class CassandraClient extends BasicKVDatabaseClient {
     private String valueColumnName;
     private boolean useHashedKey;
     private int numConcurrentQuery;
+    private int scanFetchSize;
+    private int readTimeout;
 
     private Cluster cluster;
     private Session session;
     private PreparedStatement putStatement;
     private PreparedStatement getStatement;
+    private PreparedStatement deleteStatement;
+    private PreparedStatement scanStatement;
+    private PreparedStatement scanFromStatement;
+    private PreparedStatement scanToStatement;
+    private PreparedStatement scanRangeStatement;
     private Semaphore querySemaphore;
     private FutureSemaphoreCallback callback;
+    private final Queue<Runnable> pendingQueries = new ConcurrentLinkedQueue<>(); // async statements beyond the limit
+    private final AtomicInteger pendingQueriesDrainers = new AtomicInteger(0);
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -58,8 +77,42 @@ public class CassandraClient extends BasicKVDatabaseClient {
         Row row = resultSet.one();
         if (row == null || row.isNull(0))
             return null;
-        ByteBuffer buf = row.getBytes(0);
-        return buf.array();
+        return Bytes.getArray(row.getBytes(0));
+    }
+
+    /**
+     * The value buffer is a read-only view of the driver's response, no copy is made.
+     */
+    @Override
+    public ByteBuffer get(ByteBuffer key) throws Exception {
+        if (key == null)
+            return null;
+        BoundStatement statement = getStatement.bind(key.duplicate());
+        ResultSet resultSet = session.execute(statement);
+        Row row = resultSet.one();
+        if (row == null || row.isNull(0))
+            return null;
+        return row.getBytes(0).asReadOnlyBuffer();
+    }
+
+    @Override
+    public ByteBuffer[] getAll(ByteBuffer[] keys) throws Exception {
+        ByteBuffer[] result = new ByteBuffer[keys.length];
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            BoundStatement s = getStatement.bind(keys[i].duplicate());
+            querySemaphore.acquire();
+            ResultSetFuture resultFuture = session.executeAsync(s);
+            Futures.addCallback(resultFuture, this.callback);
+            futures.add(resultFuture);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            Row row = futures.get(i).getUninterruptibly().one();
+            if (row != null && !row.isNull(0)) {
+                result[i] = row.getBytes(0).asReadOnlyBuffer();
+            }
+        }
+        return result;
     }
 
     @Override
@@ -81,7 +134,7 @@ public class CassandraClient extends BasicKVDatabaseClient {
             assert r != null;
             Row row = r.one();
             if (row != null && !row.isNull(0)) {
-                result[i] = row.getBytes(0).array();
+                result[i] = Bytes.getArray(row.getBytes(0));
             }
         }
         return result;
@@ -95,6 +148,12 @@ public class CassandraClient extends BasicKVDatabaseClient {
         session.execute(statement);
     }
 
+    @Override
+    public void put(ByteBuffer key, ByteBuffer value) throws Exception {
+        BoundStatement statement = putStatement.bind(key.duplicate(), value.duplicate());
+        session.execute(statement);
+    }
+
     public void putAll(byte[][] keys, byte[][] values) throws Exception {
         List<ResultSetFuture> futures = new ArrayList<>();
         for (int i = 0; i < keys.length; i++) {
@@ -109,6 +168,206 @@ public class CassandraClient extends BasicKVDatabaseClient {
         futures.forEach(f -> f.getUninterruptibly());
     }
 
+    @Override
+    public void delete(byte[] key) throws Exception {
+        BoundStatement statement = deleteStatement.bind(ByteBuffer.wrap(key));
+        session.execute(statement);
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            BoundStatement s = deleteStatement.bind(ByteBuffer.wrap(keys[i]));
+            querySemaphore.acquire();
+            ResultSetFuture future = this.session.executeAsync(s);
+            Futures.addCallback(future, this.callback);
+            futures.add(future);
+        }
+        futures.forEach(f -> f.getUninterruptibly());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        if (key == null)
+            return CompletableFuture.completedFuture(null);
+        BoundStatement s = getStatement.bind(ByteBuffer.wrap(key));
+        return executeAsync(s).thenApply(r -> {
+            Row row = r.one();
+            if (row == null || row.isNull(0))
+                return null;
+            return Bytes.getArray(row.getBytes(0));
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[][]> getAllAsync(byte[][] keys) {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>(keys.length);
+        for (byte[] key : keys) {
+            futures.add(getAsync(key));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[keys.length])).thenApply(v -> {
+            byte[][] result = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                result[i] = futures.get(i).join();
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        BoundStatement s = putStatement.bind(ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+        return executeAsync(s).thenApply(r -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(byte[][] keys, byte[][] values) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            futures[i] = putAsync(keys[i], values[i]);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Execute the statement asynchronously under the concurrent query limit, without blocking the caller:
+     * beyond the limit, the statement is queued and sent when a query in flight completes.
+     * The returned future is completed on the driver's I/O thread.
+     */
+    private CompletableFuture<ResultSet> executeAsync(Statement statement) {
+        CompletableFuture<ResultSet> result = new CompletableFuture<>();
+        if (pendingQueries.isEmpty() && querySemaphore.tryAcquire()) {
+            execute(statement, result);
+        } else {
+            pendingQueries.add(() -> execute(statement, result));
+            runPendingQueries();
+        }
+        return result;
+    }
+
+    /**
+     * Send the queued statements while there are permits. Only one thread runs the loop at a time,
+     * so a statement that fails at once does not recurse through the release of its permit.
+     */
+    private void runPendingQueries() {
+        if (pendingQueriesDrainers.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (!pendingQueries.isEmpty() && querySemaphore.tryAcquire()) {
+                Runnable query = pendingQueries.poll();
+                if (query == null) {
+                    querySemaphore.release();
+                } else {
+                    query.run();
+                }
+            }
+            missed = pendingQueriesDrainers.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * @param result completed with the result of the statement, whose permit is already acquired
+     */
+    private void execute(Statement statement, CompletableFuture<ResultSet> result) {
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            releaseQuery();
+            result.completeExceptionally(e);
+            return;
+        }
+        Futures.addCallback(future, this.callback);
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rows) {
+                result.complete(rows);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+        });
+    }
+
+    private void releaseQuery() {
+        querySemaphore.release();
+        if (!pendingQueries.isEmpty()) {
+            runPendingQueries();
+        }
+    }
+
+    /**
+     * One split per token range of the ring. A wrapping range is cut at the end of the ring.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        List<ScanSplit> splits = new ArrayList<>();
+        for (TokenRange range : this.cluster.getMetadata().getTokenRanges()) {
+            String start = range.getStart().toString();
+            String end = range.getEnd().toString();
+            if (range.getStart().equals(range.getEnd())) {
+                // A single token owns the whole ring
+                splits.add(new CassandraScanSplit(null, null));
+            } else if (range.isWrappedAround()) {
+                splits.add(new CassandraScanSplit(start, null));
+                splits.add(new CassandraScanSplit(null, end));
+            } else {
+                splits.add(new CassandraScanSplit(start, end));
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * The rows are fetched page by page with cassandra.scan.fetch.size rows per page.
+     * The next page is prefetched asynchronously when half of the current page is consumed.
+     */
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        CassandraScanSplit tokenRange = (CassandraScanSplit) split;
+        Metadata metadata = this.cluster.getMetadata();
+        BoundStatement statement;
+        if (tokenRange.getStartToken() == null && tokenRange.getEndToken() == null) {
+            statement = scanStatement.bind();
+        } else if (tokenRange.getEndToken() == null) {
+            statement = scanFromStatement.bind().setToken(0, metadata.newToken(tokenRange.getStartToken()));
+        } else if (tokenRange.getStartToken() == null) {
+            statement = scanToStatement.bind().setToken(0, metadata.newToken(tokenRange.getEndToken()));
+        } else {
+            statement = scanRangeStatement.bind()
+                    .setToken(0, metadata.newToken(tokenRange.getStartToken()))
+                    .setToken(1, metadata.newToken(tokenRange.getEndToken()));
+        }
+        statement.setFetchSize(scanFetchSize);
+        ResultSet resultSet = session.execute(statement);
+        Iterator<Row> rows = resultSet.iterator();
+        return new KVScanIterator() {
+            @Override
+            public boolean hasNext() {
+                if (resultSet.getAvailableWithoutFetching() == scanFetchSize / 2 && !resultSet.isFullyFetched()) {
+                    resultSet.fetchMoreResults();
+                }
+                return rows.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                Row row = rows.next();
+                byte[] value = row.isNull(1) ? null : Bytes.getArray(row.getBytes(1));
+                return new AbstractMap.SimpleImmutableEntry<>(Bytes.getArray(row.getBytes(0)), value);
+            }
+
+            @Override
+            public void close() throws Exception {
+            }
+        };
+    }
+
     @Override
     public void close() throws Exception {
         session.close();
@@ -126,6 +385,8 @@ public class CassandraClient extends BasicKVDatabaseClient {
         this.valueColumnName = conf.getProperty(CONF_COLUMN_VALUE, DEFAULT_COLUMN_VALUE);
         this.useHashedKey = Boolean.parseBoolean(conf.getProperty(CONF_USE_HASHED_KEY, DEFAULT_USE_HASHED_KEY));
         this.numConcurrentQuery = Integer.parseInt(conf.getProperty(CONF_CONCURRENT_QUERY, DEFAULT_CONCURRENT_QUERY));
+        this.scanFetchSize = Integer.parseInt(conf.getProperty(CONF_SCAN_FETCH_SIZE, DEFAULT_SCAN_FETCH_SIZE));
+        this.readTimeout = Integer.parseInt(conf.getProperty(CONF_READ_TIMEOUT, DEFAULT_READ_TIMEOUT));
     }
 
     private void initKeyspaceAndTable() throws Exception {
@@ -148,7 +409,7 @@ public class CassandraClient extends BasicKVDatabaseClient {
             System.out.println(point);
             builder.addContactPoint(point);
         });
-        builder.withSocketOptions(new SocketOptions().setReadTimeoutMillis(20 * 60 * 1000)); // Set read timeout to 20min
+        builder.withSocketOptions(new SocketOptions().setReadTimeoutMillis(readTimeout));
         this.cluster = builder.build();
         this.session = this.cluster.connect();
         logger.info("Cassandra database connection established.");
@@ -192,6 +453,22 @@ public class CassandraClient extends BasicKVDatabaseClient {
         this.putStatement = this.session.prepare(putQuery);
         //For write query, we want the most severe consistency level
         this.putStatement.setConsistencyLevel(ConsistencyLevel.ALL);
+        String deleteQuery = "DELETE FROM " + this.qulifiedTableName
+                + " WHERE " + this.keyColumnName + " = ?";
+        this.deleteStatement = this.session.prepare(deleteQuery);
+        this.deleteStatement.setConsistencyLevel(ConsistencyLevel.ALL);
+        String scanQuery = "SELECT " + this.keyColumnName + "," + this.valueColumnName
+                + " FROM " + this.qulifiedTableName;
+        String tokenColumn = "token(" + this.keyColumnName + ")";
+        this.scanStatement = this.session.prepare(scanQuery);
+        this.scanFromStatement = this.session.prepare(scanQuery + " WHERE " + tokenColumn + " > ?");
+        this.scanToStatement = this.session.prepare(scanQuery + " WHERE " + tokenColumn + " <= ?");
+        this.scanRangeStatement = this.session.prepare(scanQuery
+                + " WHERE " + tokenColumn + " > ? AND " + tokenColumn + " <= ?");
+        for (PreparedStatement statement : Arrays.asList(scanStatement, scanFromStatement,
+                scanToStatement, scanRangeStatement)) {
+            statement.setConsistencyLevel(ConsistencyLevel.ONE);
+        }
     }
 
     private void createTable() {
@@ -230,12 +507,12 @@ public class CassandraClient extends BasicKVDatabaseClient {
 
         @Override
         public void onSuccess(ResultSet rows) {
-            querySemaphore.release();
+            releaseQuery();
         }
 
         @Override
         public void onFailure(Throwable throwable) {
-            querySemaphore.release();
+            releaseQuery();
         }
     }
 }
@@ -0,0 +1,35 @@
+package cn.edu.nju.pasalab.db.cassandra;
+
+import cn.edu.nju.pasalab.db.ScanSplit;
+
+/**
+ * A token range (startToken, endToken] of the Cassandra ring.
+ * The tokens are kept as strings so that the split can be shipped to other processes.
+ */
+public final class CassandraScanSplit implements ScanSplit {
+
+    private final String startToken;
+    private final String endToken;
+
+    /**
+     * @param startToken the start of the range, exclusive. Null for the start of the ring.
+     * @param endToken the end of the range, inclusive. Null for the end of the ring.
+     */
+    public CassandraScanSplit(String startToken, String endToken) {
+        this.startToken = startToken;
+        this.endToken = endToken;
+    }
+
+    public String getStartToken() {
+        return startToken;
+    }
+
+    public String getEndToken() {
+        return endToken;
+    }
+
+    @Override
+    public String toString() {
+        return "CassandraScanSplit(" + startToken + ", " + endToken + "]";
+    }
+}
@@ -0,0 +1,309 @@
+package cn.edu.nju.pasalab.db.compress;
+
+import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Compress the values before they are written to the backend database, and decompress them when they are read.
+ *
+ * Every stored value starts with a header byte naming its codec (see ValueCodecs), followed by the raw length
+ * as a 4-byte int and the compressed bytes. Values shorter than compression.min.value.size, and values that do not
+ * shrink below compression.max.ratio of their size, are stored raw after a 0 header. Since the header is stored,
+ * compression.codec can be changed at any time, but the backend must not hold values written without this client.
+ * Batches of at least compression.parallel.threshold values are (de)compressed on several cores.
+ */
+public class CompressedClient extends BasicKVDatabaseClient {
+
+    public static final String CONF_DB_BACKEND_CLASS_NAME = "compression.db.backend.class.name"; // required, no default!
+    public static final String CONF_CODEC = "compression.codec"; // lz4, snappy, zstd or deflate
+    public static final String DEFAULT_CODEC = "lz4";
+    public static final String CONF_LEVEL = "compression.level"; // for zstd and deflate; -1 for the default level
+    public static final String DEFAULT_LEVEL = "-1";
+    public static final String CONF_MIN_VALUE_SIZE = "compression.min.value.size"; // in byte
+    public static final String DEFAULT_MIN_VALUE_SIZE = "64";
+    public static final String CONF_MAX_RATIO = "compression.max.ratio"; // compressed size / raw size
+    public static final String DEFAULT_MAX_RATIO = "0.9";
+    public static final String CONF_PARALLEL_THRESHOLD = "compression.parallel.threshold"; // values per batch
+    public static final String DEFAULT_PARALLEL_THRESHOLD = "256";
+    public static final String CONF_NUM_THREADS = "compression.num.threads"; // default: number of cores
+
+    static final int HEADER_LENGTH = 5; // codec id + raw length
+
+    private BasicKVDatabaseClient db;
+    private String dbClassName;
+    private ValueCodec codec;
+    private int minValueSize;
+    private double maxRatio;
+    private int parallelThreshold;
+    private ForkJoinPool pool;
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    byte[] encode(byte value[]) throws IOException {
+        if (value == null) return null;
+        int length = value.length;
+        rawBytes.add(length);
+        if (length >= minValueSize) {
+            byte buffer[] = new byte[HEADER_LENGTH + codec.maxCompressedLength(length)];
+            int compressedLength = codec.compress(value, buffer, HEADER_LENGTH);
+            if (compressedLength <= length * maxRatio) {
+                buffer[0] = codec.getId();
+                buffer[1] = (byte) (length >>> 24);
+                buffer[2] = (byte) (length >>> 16);
+                buffer[3] = (byte) (length >>> 8);
+                buffer[4] = (byte) length;
+                storedBytes.add(HEADER_LENGTH + compressedLength);
+                return Arrays.copyOf(buffer, HEADER_LENGTH + compressedLength);
+            }
+        }
+        byte stored[] = new byte[length + 1];
+        stored[0] = ValueCodecs.NONE_ID;
+        System.arraycopy(value, 0, stored, 1, length);
+        storedBytes.add(stored.length);
+        return stored;
+    }
+
+    static byte[] decode(byte stored[]) throws IOException {
+        if (stored == null) return null;
+        if (stored.length == 0) {
+            throw new IOException("Value without compression header");
+        }
+        if (stored[0] == ValueCodecs.NONE_ID) {
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        }
+        if (stored.length < HEADER_LENGTH) {
+            throw new IOException("Truncated compressed value");
+        }
+        ValueCodec valueCodec = ValueCodecs.forId(stored[0]);
+        int length = (stored[1] & 0xFF) << 24 | (stored[2] & 0xFF) << 16 | (stored[3] & 0xFF) << 8 | stored[4] & 0xFF;
+        byte value[] = new byte[length];
+        valueCodec.decompress(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH, value);
+        return value;
+    }
+
+    private interface Transform {
+        byte[] apply(byte value[]) throws IOException;
+    }
+
+    private byte[][] transformAll(byte values[][], Transform transform) throws IOException {
+        byte results[][] = new byte[values.length][];
+        if (values.length < parallelThreshold) {
+            for (int i = 0; i < values.length; i++) {
+                results[i] = transform.apply(values[i]);
+            }
+            return results;
+        }
+        try {
+            pool.submit(() -> IntStream.range(0, values.length).parallel().forEach(i -> {
+                try {
+                    results[i] = transform.apply(values[i]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            throw new IOException(cause);
+        }
+        return results;
+    }
+
+    byte[][] encodeAll(byte values[][]) throws IOException {
+        return transformAll(values, this::encode);
+    }
+
+    byte[][] decodeAll(byte values[][]) throws IOException {
+        return transformAll(values, CompressedClient::decode);
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws Exception {
+        return decode(db.get(key));
+    }
+
+    @Override
+    public byte[][] getAll(byte[][] keys) throws Exception {
+        byte values[][] = db.getAll(keys);
+        return values == null ? null : decodeAll(values);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws Exception {
+        db.put(key, encode(value));
+    }
+
+    @Override
+    public void putAll(byte[][] keys, byte[][] values) throws Exception {
+        db.putAll(keys, encodeAll(values));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        return db.getAsync(key).thenApply(stored -> {
+            try {
+                return decode(stored);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[][]> getAllAsync(byte[][] keys) {
+        return db.getAllAsync(keys).thenApply(values -> {
+            try {
+                return values == null ? null : decodeAll(values);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        try {
+            return db.putAsync(key, encode(value));
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(byte[][] keys, byte[][] values) {
+        try {
+            return db.putAllAsync(keys, encodeAll(values));
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        db.delete(key);
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        db.deleteAll(keys);
+    }
+
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        return db.getScanSplits();
+    }
+
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        return new DecodingScanIterator(db.scan(split));
+    }
+
+    @Override
+    public KVScanIterator scan(byte[] startKey, byte[] stopKey) throws Exception {
+        return new DecodingScanIterator(db.scan(startKey, stopKey));
+    }
+
+    private static class DecodingScanIterator implements KVScanIterator {
+        private final KVScanIterator iterator;
+
+        DecodingScanIterator(KVScanIterator iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            Map.Entry<byte[], byte[]> pair = iterator.next();
+            try {
+                return new AbstractMap.SimpleImmutableEntry<>(pair.getKey(), decode(pair.getValue()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            iterator.close();
+        }
+    }
+
+    /**
+     * @return stored bytes / raw bytes of the values written so far, headers included
+     */
+    public double getCompressionRatio() {
+        long raw = rawBytes.sum();
+        return raw == 0 ? 1.0 : (double) storedBytes.sum() / raw;
+    }
+
+    @Override
+    public void close() throws Exception {
+        logger.info(String.format("Compression (%s): %d raw bytes written as %d bytes.",
+                codec.getName(), rawBytes.sum(), storedBytes.sum()));
+        pool.shutdown();
+        db.close();
+    }
+
+    @Override
+    public void clearDB() throws Exception {
+        db.clearDB();
+    }
+
+    @Override
+    public void createDB() throws Exception {
+        db.createDB();
+    }
+
+    private void loadConfigurations(Properties conf) {
+        this.dbClassName = conf.getProperty(CONF_DB_BACKEND_CLASS_NAME);
+        int level = Integer.parseInt(conf.getProperty(CONF_LEVEL, DEFAULT_LEVEL));
+        this.codec = ValueCodecs.forName(conf.getProperty(CONF_CODEC, DEFAULT_CODEC), level);
+        this.minValueSize = Integer.parseInt(conf.getProperty(CONF_MIN_VALUE_SIZE, DEFAULT_MIN_VALUE_SIZE));
+        this.maxRatio = Double.parseDouble(conf.getProperty(CONF_MAX_RATIO, DEFAULT_MAX_RATIO));
+        this.parallelThreshold = Integer.parseInt(
+                conf.getProperty(CONF_PARALLEL_THRESHOLD, DEFAULT_PARALLEL_THRESHOLD));
+        int numThreads = Integer.parseInt(conf.getProperty(CONF_NUM_THREADS,
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.pool = new ForkJoinPool(numThreads);
+        logger.info(String.format("Compress values of at least %d bytes with %s.", minValueSize, codec.getName()));
+    }
+
+    /**
+     * Connect to the underlying database
+     *
+     * @param conf Database connection-related configurations
+     * @throws Exception database connection exception
+     */
+    @Override
+    public void connect(Properties conf) throws Exception {
+        loadConfigurations(conf);
+        logger.info("Database backend:" + dbClassName);
+        this.db = (BasicKVDatabaseClient) Class.forName(dbClassName).newInstance();
+        db.connect(conf);
+    }
+}
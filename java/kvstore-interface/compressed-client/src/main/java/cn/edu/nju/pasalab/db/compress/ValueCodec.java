@@ -0,0 +1,30 @@
+package cn.edu.nju.pasalab.db.compress;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm for the values. Implementations are thread-safe.
+ */
+public interface ValueCodec {
+
+    /**
+     * @return the header byte of the values compressed by this codec. 0 is reserved for uncompressed values.
+     */
+    byte getId();
+
+    String getName();
+
+    int maxCompressedLength(int length);
+
+    /**
+     * @param src the raw value
+     * @param dest at least maxCompressedLength(src.length) bytes after destOffset
+     * @return the compressed length
+     */
+    int compress(byte src[], byte dest[], int destOffset) throws IOException;
+
+    /**
+     * @param dest sized to the raw length
+     */
+    void decompress(byte src[], int srcOffset, int srcLength, byte dest[]) throws IOException;
+}
@@ -0,0 +1,238 @@
+package cn.edu.nju.pasalab.db.compress;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codecs known by CompressedClient. The ids are stored with the values, so never change them.
+ * The native libraries are loaded only when a codec is used.
+ */
+public final class ValueCodecs {
+
+    public static final byte NONE_ID = 0;
+    public static final byte SNAPPY_ID = 1;
+    public static final byte LZ4_ID = 2;
+    public static final byte ZSTD_ID = 3;
+    public static final byte DEFLATE_ID = 4;
+
+    private ValueCodecs() {
+    }
+
+    /**
+     * @param name snappy, lz4, zstd or deflate
+     * @param level compression level of zstd and deflate; negative for the default level
+     */
+    public static ValueCodec forName(String name, int level) {
+        switch (name) {
+            case "snappy":
+                return new SnappyCodec();
+            case "lz4":
+                return new LZ4Codec();
+            case "zstd":
+                return new ZstdCodec(level < 0 ? 3 : level);
+            case "deflate":
+                return new DeflateCodec(level < 0 ? Deflater.DEFAULT_COMPRESSION : level);
+            default:
+                throw new IllegalArgumentException("Unknown compression codec: " + name);
+        }
+    }
+
+    /**
+     * The codec that decompresses the values of the header byte.
+     * Decompression does not depend on the level.
+     */
+    static ValueCodec forId(byte id) throws IOException {
+        switch (id) {
+            case SNAPPY_ID:
+                return SnappyHolder.CODEC;
+            case LZ4_ID:
+                return LZ4Holder.CODEC;
+            case ZSTD_ID:
+                return ZstdHolder.CODEC;
+            case DEFLATE_ID:
+                return DeflateHolder.CODEC;
+            default:
+                throw new IOException("Unknown compression header: " + id);
+        }
+    }
+
+    private static class SnappyHolder {
+        static final ValueCodec CODEC = new SnappyCodec();
+    }
+
+    private static class LZ4Holder {
+        static final ValueCodec CODEC = new LZ4Codec();
+    }
+
+    private static class ZstdHolder {
+        static final ValueCodec CODEC = new ZstdCodec(3);
+    }
+
+    private static class DeflateHolder {
+        static final ValueCodec CODEC = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    static class SnappyCodec implements ValueCodec {
+
+        @Override
+        public byte getId() {
+            return SNAPPY_ID;
+        }
+
+        @Override
+        public String getName() {
+            return "snappy";
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return Snappy.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(byte[] src, byte[] dest, int destOffset) throws IOException {
+            return Snappy.compress(src, 0, src.length, dest, destOffset);
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest) throws IOException {
+            Snappy.uncompress(src, srcOffset, srcLength, dest, 0);
+        }
+    }
+
+    static class LZ4Codec implements ValueCodec {
+        private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+        @Override
+        public byte getId() {
+            return LZ4_ID;
+        }
+
+        @Override
+        public String getName() {
+            return "lz4";
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return compressor.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(byte[] src, byte[] dest, int destOffset) {
+            return compressor.compress(src, 0, src.length, dest, destOffset, dest.length - destOffset);
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest) {
+            decompressor.decompress(src, srcOffset, dest, 0, dest.length);
+        }
+    }
+
+    static class ZstdCodec implements ValueCodec {
+        private final int level;
+
+        ZstdCodec(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public byte getId() {
+            return ZSTD_ID;
+        }
+
+        @Override
+        public String getName() {
+            return "zstd";
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return (int) Zstd.compressBound(length);
+        }
+
+        @Override
+        public int compress(byte[] src, byte[] dest, int destOffset) throws IOException {
+            long size = Zstd.compressByteArray(dest, destOffset, dest.length - destOffset, src, 0, src.length, level);
+            if (Zstd.isError(size)) {
+                throw new IOException("Zstd compression failed: " + Zstd.getErrorName(size));
+            }
+            return (int) size;
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest) throws IOException {
+            long size = Zstd.decompressByteArray(dest, 0, dest.length, src, srcOffset, srcLength);
+            if (Zstd.isError(size)) {
+                throw new IOException("Zstd decompression failed: " + Zstd.getErrorName(size));
+            }
+        }
+    }
+
+    /**
+     * java.util.zip, needs no native library.
+     */
+    static class DeflateCodec implements ValueCodec {
+        private final int level;
+
+        DeflateCodec(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public byte getId() {
+            return DEFLATE_ID;
+        }
+
+        @Override
+        public String getName() {
+            return "deflate";
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6; // deflateBound of zlib
+        }
+
+        @Override
+        public int compress(byte[] src, byte[] dest, int destOffset) throws IOException {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(src);
+                deflater.finish();
+                int length = deflater.deflate(dest, destOffset, dest.length - destOffset);
+                if (!deflater.finished()) {
+                    throw new IOException("Deflate output exceeds the bound");
+                }
+                return length;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(src, srcOffset, srcLength);
+                inflater.inflate(dest);
+                if (!inflater.finished()) {
+                    throw new IOException("Truncated deflate value");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package cn.edu.nju.pasalab.db.hbase;
 
 import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
+import cn.edu.nju.pasalab.db.Utils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
@@ -32,6 +45,10 @@ public final class HBaseClient extends BasicKVDatabaseClient {
     public static final String DEFAULT_USE_HASHED_KEY = "false";
     public static final String CONF_NUM_CONNECTION = "hbase.num.connection";
     public static final String DEFAULT_NUM_CONNECTION = "8";
+    public static final String CONF_ASYNC_POOL_SIZE = "hbase.async.pool.size";
+    public static final String DEFAULT_ASYNC_POOL_SIZE = "32";
+    public static final String CONF_SCAN_CACHING = "hbase.scan.caching"; // rows fetched per RPC in scans
+    public static final String DEFAULT_SCAN_CACHING = "1000";
 
 
 
@@ -42,6 +59,9 @@ public final class HBaseClient extends BasicKVDatabaseClient {
     private byte[] columnName;
     private int numRegion;
     private int numConnection;
+    private int asyncPoolSize;
+    private int scanCaching;
+    private ExecutorService asyncExecutor;
     private AtomicInteger currentConnectionID;
     private String zookeeperQuorum;
     private boolean useHashedKey;
@@ -63,13 +83,53 @@ public final class HBaseClient extends BasicKVDatabaseClient {
             byte hashValue = (byte) Arrays.hashCode(key);
             byte[] newHashKey = new byte[key.length + 1];
             newHashKey[0] = hashValue;
-            for (int i = 0; i < key.length; i++) {
-                newHashKey[i + 1] = key[i];
+            System.arraycopy(key, 0, newHashKey, 1, key.length);
+            return newHashKey;
+        }
+    }
+
+    private byte[] transformKey(ByteBuffer key) {
+        if (!useHashedKey) {
+            return Utils.toByteArray(key);
+        } else {
+            // Copy the key bytes only once, straight behind the hash byte
+            byte[] newHashKey = new byte[key.remaining() + 1];
+            key.duplicate().get(newHashKey, 1, key.remaining());
+            int hash = 1; // the same as Arrays.hashCode(originalKey)
+            for (int i = 1; i < newHashKey.length; i++) {
+                hash = 31 * hash + newHashKey[i];
+            }
+            newHashKey[0] = (byte) hash;
+            return newHashKey;
+        }
+    }
+
+    /**
+     * Encode the key straight into the row, without the intermediate 8-byte array.
+     */
+    private byte[] transformKey(long key) {
+        if (!useHashedKey) {
+            return Utils.longToKey(key);
+        } else {
+            byte[] newHashKey = new byte[9];
+            Utils.longToKey(key, newHashKey, 1);
+            int hash = 1; // the same as Arrays.hashCode(originalKey)
+            for (int i = 1; i < 9; i++) {
+                hash = 31 * hash + newHashKey[i];
             }
+            newHashKey[0] = (byte) hash;
             return newHashKey;
         }
     }
 
+    private byte[] restoreKey(byte[] row) {
+        if (!useHashedKey) {
+            return row;
+        } else {
+            return Arrays.copyOfRange(row, 1, row.length);
+        }
+    }
+
     private Connection getNextConnection() {
         int id = currentConnectionID.addAndGet(1);
         if (id < 0) id = -id;
@@ -121,6 +181,56 @@ public final class HBaseClient extends BasicKVDatabaseClient {
     }
 
 
+    /**
+     * The value buffer is a read-only view of the HBase result, no copy is made.
+     */
+    @Override
+    public ByteBuffer get(ByteBuffer key) throws Exception {
+        assert isConnectionEstablished();
+        Table table = getNextConnection().getTable(dataTableName);
+        Get get = new Get(transformKey(key));
+        get.addColumn(this.columnFamily, this.columnName);
+        Result result = table.get(get);
+        table.close();
+        ByteBuffer value = result.getValueAsByteBuffer(this.columnFamily, this.columnName);
+        return value == null ? null : value.asReadOnlyBuffer();
+    }
+
+    /**
+     * The value is copied from the HBase result into dest directly.
+     */
+    @Override
+    public int get(ByteBuffer key, ByteBuffer dest) throws Exception {
+        assert isConnectionEstablished();
+        Table table = getNextConnection().getTable(dataTableName);
+        Get get = new Get(transformKey(key));
+        get.addColumn(this.columnFamily, this.columnName);
+        Result result = table.get(get);
+        table.close();
+        int start = dest.position();
+        if (!result.loadValue(this.columnFamily, this.columnName, dest)) {
+            return -1;
+        }
+        return dest.position() - start;
+    }
+
+    @Override
+    public ByteBuffer[] getAll(ByteBuffer keys[]) throws Exception {
+        ByteBuffer[] results = new ByteBuffer[keys.length];
+        Table table = getNextConnection().getTable(this.dataTableName);
+        ArrayList<Get> gets = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            gets.add(new Get(transformKey(keys[i])));
+        }
+        Result[] hbaseResults = table.get(gets);
+        for (int i = 0; i < hbaseResults.length; i++) {
+            ByteBuffer value = hbaseResults[i].getValueAsByteBuffer(this.columnFamily, this.columnName);
+            results[i] = value == null ? null : value.asReadOnlyBuffer();
+        }
+        table.close();
+        return results;
+    }
+
     @Override
     public void put(byte[] key, byte[] value) throws Exception {
         assert isConnectionEstablished();
@@ -150,11 +260,157 @@ public final class HBaseClient extends BasicKVDatabaseClient {
         mutator.close();
     }
 
+    @Override
+    public byte[] getLong(long key) throws Exception {
+        assert isConnectionEstablished();
+        Table table = getNextConnection().getTable(dataTableName);
+        Get get = new Get(transformKey(key));
+        get.addColumn(this.columnFamily, this.columnName);
+        Result result = table.get(get);
+        table.close();
+        return result.getValue(this.columnFamily, this.columnName);
+    }
+
+    @Override
+    public byte[][] getAllLong(long keys[]) throws Exception {
+        byte[][] results = new byte[keys.length][];
+        Table table = getNextConnection().getTable(this.dataTableName);
+        ArrayList<Get> gets = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            gets.add(new Get(transformKey(keys[i])));
+        }
+        Result[] hbaseResults = table.get(gets);
+        for (int i = 0; i < hbaseResults.length; i++) {
+            results[i] = hbaseResults[i].getValue(this.columnFamily, this.columnName);
+        }
+        table.close();
+        return results;
+    }
+
+    @Override
+    public void putLong(long key, byte[] value) throws Exception {
+        assert isConnectionEstablished();
+        Table table = getNextConnection().getTable(dataTableName);
+        Put put = new Put(transformKey(key));
+        put.addColumn(this.columnFamily, this.columnName, value);
+        table.put(put);
+        table.close();
+    }
+
+    @Override
+    public void putAllLong(long keys[], byte values[][]) throws Exception {
+        BufferedMutator mutator = getNextConnection().getBufferedMutator(dataTableName);
+        for (int i = 0; i < keys.length; i++) {
+            Put put = new Put(transformKey(keys[i]));
+            put.addColumn(this.columnFamily, this.columnName, values[i]);
+            mutator.mutate(put);
+        }
+        mutator.close();
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        assert isConnectionEstablished();
+        Table table = getNextConnection().getTable(dataTableName);
+        table.delete(new Delete(transformKey(key)));
+        table.close();
+    }
+
+    /**
+     * Delete the keys in batch through a BufferedMutator
+     * @param keys
+     * @throws Exception
+     */
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        BufferedMutator mutator = getNextConnection().getBufferedMutator(dataTableName);
+        for (int i = 0; i < keys.length; i++) {
+            mutator.mutate(new Delete(transformKey(keys[i])));
+        }
+        mutator.close();
+    }
+
+    /**
+     * One split per region of the data table.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        assert isConnectionEstablished();
+        List<ScanSplit> splits = new ArrayList<>();
+        try (RegionLocator locator = getNextConnection().getRegionLocator(dataTableName)) {
+            Pair<byte[][], byte[][]> startEndKeys = locator.getStartEndKeys();
+            for (int i = 0; i < startEndKeys.getFirst().length; i++) {
+                splits.add(new HBaseScanSplit(startEndKeys.getFirst()[i], startEndKeys.getSecond()[i]));
+            }
+        }
+        return splits;
+    }
+
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        HBaseScanSplit region = (HBaseScanSplit) split;
+        return scan(new Scan(region.getStartRow(), region.getStopRow()));
+    }
+
+    /**
+     * Range scans are only supported when the keys are not hashed,
+     * since the hash byte breaks the order of the original keys.
+     */
+    @Override
+    public KVScanIterator scan(byte[] startKey, byte[] stopKey) throws Exception {
+        if (useHashedKey) {
+            throw new UnsupportedOperationException("Range scans need " + CONF_USE_HASHED_KEY + "=false");
+        }
+        Scan scan = new Scan();
+        if (startKey != null) scan.setStartRow(startKey);
+        if (stopKey != null) scan.setStopRow(stopKey);
+        return scan(scan);
+    }
+
+    private KVScanIterator scan(Scan scan) throws IOException {
+        assert isConnectionEstablished();
+        scan.addColumn(this.columnFamily, this.columnName);
+        scan.setCaching(scanCaching);
+        scan.setCacheBlocks(false); // do not flush the hot blocks out of the block cache
+        Table table = getNextConnection().getTable(dataTableName);
+        ResultScanner scanner = table.getScanner(scan);
+        Iterator<Result> results = scanner.iterator();
+        return new KVScanIterator() {
+            @Override
+            public boolean hasNext() {
+                return results.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                Result result = results.next();
+                return new AbstractMap.SimpleImmutableEntry<>(restoreKey(result.getRow()),
+                        result.getValue(columnFamily, columnName));
+            }
+
+            @Override
+            public void close() throws Exception {
+                scanner.close();
+                table.close();
+            }
+        };
+    }
+
+    /**
+     * The HBase 1.x client has no non-blocking table API,
+     * so the async operations run on a pool bounded by hbase.async.pool.size.
+     */
+    @Override
+    protected Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
     /**
      * Close the database connections.
      */
     @Override
     public void close() throws Exception {
+        asyncExecutor.shutdown();
         for (Connection connection: hbaseConnections)
             connection.close();
         hBaseOperation.close();
@@ -177,6 +433,10 @@ public final class HBaseClient extends BasicKVDatabaseClient {
         conf.setProperty(CONF_ZOOKEEPER_QUORUM, this.zookeeperQuorum); // further used by HBaseOperation
         String numConnectionString = conf.getProperty(CONF_NUM_CONNECTION, DEFAULT_NUM_CONNECTION);
         this.numConnection = Integer.parseInt(numConnectionString);
+        String asyncPoolSizeString = conf.getProperty(CONF_ASYNC_POOL_SIZE, DEFAULT_ASYNC_POOL_SIZE);
+        this.asyncPoolSize = Integer.parseInt(asyncPoolSizeString);
+        String scanCachingString = conf.getProperty(CONF_SCAN_CACHING, DEFAULT_SCAN_CACHING);
+        this.scanCaching = Integer.parseInt(scanCachingString);
     }
 
     /**
@@ -195,6 +455,12 @@ public final class HBaseClient extends BasicKVDatabaseClient {
             hbaseConnections[i] = ConnectionFactory.createConnection(hadoopConf);
         }
         currentConnectionID = new AtomicInteger(0);
+        asyncExecutor = Executors.newFixedThreadPool(asyncPoolSize, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("HBase Client Async Worker");
+            return thread;
+        });
         dataTableName = TableName.valueOf(this.dataTableNameString);
         logger.info("HBase connections established.");
     }
@@ -0,0 +1,37 @@
+package cn.edu.nju.pasalab.db.hbase;
+
+import cn.edu.nju.pasalab.db.ScanSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The row range of an HBase region.
+ */
+public final class HBaseScanSplit implements ScanSplit {
+
+    private final byte[] startRow;
+    private final byte[] stopRow;
+
+    public HBaseScanSplit(byte[] startRow, byte[] stopRow) {
+        this.startRow = startRow;
+        this.stopRow = stopRow;
+    }
+
+    /**
+     * @return the first row of the region, inclusive. An empty array for the first region.
+     */
+    public byte[] getStartRow() {
+        return startRow;
+    }
+
+    /**
+     * @return the last row of the region, exclusive. An empty array for the last region.
+     */
+    public byte[] getStopRow() {
+        return stopRow;
+    }
+
+    @Override
+    public String toString() {
+        return "HBaseScanSplit[" + Bytes.toStringBinary(startRow) + ", " + Bytes.toStringBinary(stopRow) + ")";
+    }
+}
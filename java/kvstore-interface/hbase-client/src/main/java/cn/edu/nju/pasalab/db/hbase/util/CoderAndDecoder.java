@@ -35,4 +35,15 @@ public final class CoderAndDecoder {
             return Snappy.uncompressLongArray(data);
         }
 
+        /**
+         * @param codec one of LongArrayCodecs; toByteArray(long[]) is LongArrayCodecs.SNAPPY
+         */
+        public static byte[] toByteArray(long array[], LongArrayCodec codec) throws IOException {
+            return codec.encode(array);
+        }
+
+        public static long[] toLongArray(byte data[], LongArrayCodec codec) throws IOException {
+            return codec.decode(data);
+        }
+
 }
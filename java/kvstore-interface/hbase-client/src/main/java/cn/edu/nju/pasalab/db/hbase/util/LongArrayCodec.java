@@ -0,0 +1,35 @@
+package cn.edu.nju.pasalab.db.hbase.util;
+
+import java.io.IOException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An encoding of long[] values, such as neighbour lists. Implementations are thread-safe.
+ * The codec is not recorded in the encoded bytes, so decode with the codec that encoded them.
+ */
+public interface LongArrayCodec {
+
+    String getName();
+
+    byte[] encode(long array[]) throws IOException;
+
+    long[] decode(byte data[]) throws IOException;
+
+    /**
+     * @return the number of longs in the encoded array
+     */
+    int decodedLength(byte data[]) throws IOException;
+
+    /**
+     * Decode into a reused array.
+     *
+     * @param dest at least decodedLength(data) long
+     * @return the number of longs decoded
+     */
+    int decode(byte data[], long dest[]) throws IOException;
+
+    /**
+     * Decode lazily, so reading a prefix of the array skips decoding the rest.
+     */
+    PrimitiveIterator.OfLong iterator(byte data[]) throws IOException;
+}
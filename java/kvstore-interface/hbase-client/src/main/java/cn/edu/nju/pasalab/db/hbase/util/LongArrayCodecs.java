@@ -0,0 +1,576 @@
+package cn.edu.nju.pasalab.db.hbase.util;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * The long[] codecs of CoderAndDecoder.
+ * Except SNAPPY, the codecs start with the number of elements as a varint and store each element as its
+ * difference to the previous one, taken as an unsigned number. The differences of sorted arrays, like neighbour
+ * lists, are small; unsorted arrays are still decoded correctly, only larger.
+ */
+public final class LongArrayCodecs {
+
+    /**
+     * Snappy on the raw longs, the encoding of CoderAndDecoder.toByteArray(long[])
+     */
+    public static final LongArrayCodec SNAPPY = new SnappyCodec();
+    /**
+     * One LEB128 varint per difference
+     */
+    public static final LongArrayCodec DELTA_VARINT = new DeltaVarintCodec();
+    /**
+     * Groups of 4 differences: a 2-byte tag with their byte lengths, followed by their little-endian bytes
+     */
+    public static final LongArrayCodec GROUP_VARINT = new GroupVarintCodec();
+    /**
+     * Blocks of 128 differences bit-packed to a common width, with the wider ones patched as exceptions
+     */
+    public static final LongArrayCodec PFOR = new PForCodec();
+
+    private static final String SNAPPY_SUFFIX = "+snappy";
+
+    private LongArrayCodecs() {
+    }
+
+    /**
+     * @param name snappy, delta-varint, group-varint or pfor; append +snappy to compress the result with Snappy
+     */
+    public static LongArrayCodec forName(String name) {
+        if (name.endsWith(SNAPPY_SUFFIX)) {
+            return withSnappy(forName(name.substring(0, name.length() - SNAPPY_SUFFIX.length())));
+        }
+        switch (name) {
+            case "snappy":
+                return SNAPPY;
+            case "delta-varint":
+                return DELTA_VARINT;
+            case "group-varint":
+                return GROUP_VARINT;
+            case "pfor":
+                return PFOR;
+            default:
+                throw new IllegalArgumentException("Unknown long array codec: " + name);
+        }
+    }
+
+    /**
+     * Compress the encoding of the codec with Snappy, for arrays with repeated patterns that survive delta encoding.
+     */
+    public static LongArrayCodec withSnappy(LongArrayCodec codec) {
+        return new SnappyWrappedCodec(codec);
+    }
+
+    static int varLongLength(long value) {
+        return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    static int writeVarLong(long value, byte buffer[], int pos) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    static long getLongLE(byte data[], int index) {
+        return (data[index] & 0xFFL) | (data[index + 1] & 0xFFL) << 8 | (data[index + 2] & 0xFFL) << 16
+                | (data[index + 3] & 0xFFL) << 24 | (data[index + 4] & 0xFFL) << 32 | (data[index + 5] & 0xFFL) << 40
+                | (data[index + 6] & 0xFFL) << 48 | (data[index + 7] & 0xFFL) << 56;
+    }
+
+    private static void checkCapacity(int length, long dest[]) {
+        if (dest.length < length) {
+            throw new IllegalArgumentException("Decoding " + length + " longs into an array of " + dest.length);
+        }
+    }
+
+    /**
+     * A position in the encoded bytes
+     */
+    static final class Reader {
+        final byte data[];
+        int pos;
+
+        Reader(byte data[]) {
+            this.data = data;
+        }
+
+        void require(int length) throws IOException {
+            if (data.length - pos < length) {
+                throw new IOException("Truncated long array");
+            }
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return data[pos++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readLongLE(int length) throws IOException {
+            require(length);
+            if (length == 8) {
+                long value = getLongLE(data, pos);
+                pos += 8;
+                return value;
+            }
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                value |= (data[pos++] & 0xFFL) << (i << 3);
+            }
+            return value;
+        }
+
+        int readLength() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Malformed long array length: " + length);
+            }
+            return (int) length;
+        }
+    }
+
+    /**
+     * Adds up the differences of a delta codec one at a time.
+     */
+    private abstract static class DeltaIterator implements PrimitiveIterator.OfLong {
+        final Reader reader;
+        final int length;
+        int index = 0;
+        long previous = 0;
+
+        DeltaIterator(Reader reader) throws IOException {
+            this.reader = reader;
+            this.length = reader.readLength();
+        }
+
+        abstract long nextDelta() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            return index < length;
+        }
+
+        @Override
+        public long nextLong() {
+            if (index >= length) {
+                throw new NoSuchElementException();
+            }
+            try {
+                previous += nextDelta();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            index++;
+            return previous;
+        }
+    }
+
+    private abstract static class DeltaCodec implements LongArrayCodec {
+
+        @Override
+        public long[] decode(byte[] data) throws IOException {
+            long array[] = new long[decodedLength(data)];
+            decode(data, array);
+            return array;
+        }
+
+        @Override
+        public int decodedLength(byte[] data) throws IOException {
+            return new Reader(data).readLength();
+        }
+    }
+
+    static class DeltaVarintCodec extends DeltaCodec {
+
+        @Override
+        public String getName() {
+            return "delta-varint";
+        }
+
+        @Override
+        public byte[] encode(long[] array) {
+            int size = varLongLength(array.length);
+            long previous = 0;
+            for (long value : array) {
+                size += varLongLength(value - previous);
+                previous = value;
+            }
+            byte buffer[] = new byte[size];
+            int pos = writeVarLong(array.length, buffer, 0);
+            previous = 0;
+            for (long value : array) {
+                pos = writeVarLong(value - previous, buffer, pos);
+                previous = value;
+            }
+            return buffer;
+        }
+
+        @Override
+        public int decode(byte[] data, long[] dest) throws IOException {
+            Reader reader = new Reader(data);
+            int length = reader.readLength();
+            checkCapacity(length, dest);
+            long previous = 0;
+            for (int i = 0; i < length; i++) {
+                previous += reader.readVarLong();
+                dest[i] = previous;
+            }
+            return length;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator(byte[] data) throws IOException {
+            return new DeltaIterator(new Reader(data)) {
+                @Override
+                long nextDelta() throws IOException {
+                    return reader.readVarLong();
+                }
+            };
+        }
+    }
+
+    static class GroupVarintCodec extends DeltaCodec {
+        static final int GROUP_SIZE = 4;
+
+        private static int byteLength(long value) {
+            return (71 - Long.numberOfLeadingZeros(value)) >>> 3;
+        }
+
+        @Override
+        public String getName() {
+            return "group-varint";
+        }
+
+        @Override
+        public byte[] encode(long[] array) {
+            int size = varLongLength(array.length) + 2 * ((array.length + GROUP_SIZE - 1) / GROUP_SIZE);
+            long previous = 0;
+            for (long value : array) {
+                size += byteLength(value - previous);
+                previous = value;
+            }
+            byte buffer[] = new byte[size];
+            int pos = writeVarLong(array.length, buffer, 0);
+            previous = 0;
+            for (int i = 0; i < array.length; i += GROUP_SIZE) {
+                int tagPos = pos;
+                int tag = 0;
+                pos += 2;
+                for (int j = 0; j < GROUP_SIZE && i + j < array.length; j++) {
+                    long delta = array[i + j] - previous;
+                    previous = array[i + j];
+                    int length = byteLength(delta);
+                    tag |= length << (j << 2);
+                    for (int k = 0; k < length; k++) {
+                        buffer[pos++] = (byte) delta;
+                        delta >>>= 8;
+                    }
+                }
+                buffer[tagPos] = (byte) tag;
+                buffer[tagPos + 1] = (byte) (tag >>> 8);
+            }
+            return buffer;
+        }
+
+        private static int deltaLength(int tag, int j) throws IOException {
+            int length = tag >>> (j << 2) & 0xF;
+            if (length > 8) {
+                throw new IOException("Malformed group varint tag");
+            }
+            return length;
+        }
+
+        @Override
+        public int decode(byte[] data, long[] dest) throws IOException {
+            Reader reader = new Reader(data);
+            int length = reader.readLength();
+            checkCapacity(length, dest);
+            long previous = 0;
+            for (int i = 0; i < length; i += GROUP_SIZE) {
+                int tag = (int) reader.readLongLE(2);
+                for (int j = 0; j < GROUP_SIZE && i + j < length; j++) {
+                    previous += reader.readLongLE(deltaLength(tag, j));
+                    dest[i + j] = previous;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator(byte[] data) throws IOException {
+            return new DeltaIterator(new Reader(data)) {
+                int tag;
+
+                @Override
+                long nextDelta() throws IOException {
+                    int j = index % GROUP_SIZE;
+                    if (j == 0) {
+                        tag = (int) reader.readLongLE(2);
+                    }
+                    return reader.readLongLE(deltaLength(tag, j));
+                }
+            };
+        }
+    }
+
+    /**
+     * Each block is the bit width, the number of exceptions, the low bits of the differences packed little-endian,
+     * and for each exception its index in the block and its high bits as a varint.
+     * The width minimizes the size of the block, so a few large gaps do not widen the others.
+     */
+    static class PForCodec extends DeltaCodec {
+        static final int BLOCK_SIZE = 128;
+
+        @Override
+        public String getName() {
+            return "pfor";
+        }
+
+        static int chooseWidth(long deltas[], int count) {
+            int widthCounts[] = new int[65];
+            int maxWidth = 0;
+            for (int i = 0; i < count; i++) {
+                int width = 64 - Long.numberOfLeadingZeros(deltas[i]);
+                widthCounts[width]++;
+                maxWidth = Math.max(maxWidth, width);
+            }
+            int bestWidth = maxWidth;
+            long bestSize = ((long) count * maxWidth + 7) >>> 3;
+            for (int width = 0; width < maxWidth; width++) {
+                long size = ((long) count * width + 7) >>> 3;
+                for (int w = width + 1; w <= maxWidth && size < bestSize; w++) {
+                    size += widthCounts[w] * (1L + (w - width + 6) / 7);
+                }
+                if (size < bestSize) {
+                    bestSize = size;
+                    bestWidth = width;
+                }
+            }
+            return bestWidth;
+        }
+
+        /**
+         * @param buffer zeroed after start
+         */
+        private static void writeBits(byte buffer[], int start, int bitPos, long value, int width) {
+            int index = start + (bitPos >>> 3);
+            int shift = bitPos & 7;
+            buffer[index] |= (byte) (value << shift);
+            for (int written = 8 - shift; written < width; written += 8) {
+                buffer[++index] = (byte) (value >>> written);
+            }
+        }
+
+        private static long readBits(byte data[], int start, int end, int bitPos, int width) {
+            int index = start + (bitPos >>> 3);
+            int shift = bitPos & 7;
+            long word;
+            if (index + 8 <= end) {
+                word = getLongLE(data, index);
+            } else {
+                word = 0;
+                for (int k = 0; index + k < end; k++) {
+                    word |= (data[index + k] & 0xFFL) << (k << 3);
+                }
+            }
+            long value = word >>> shift;
+            if (shift + width > 64) {
+                value |= (data[index + 8] & 0xFFL) << (64 - shift);
+            }
+            return width == 64 ? value : value & ((1L << width) - 1);
+        }
+
+        @Override
+        public byte[] encode(long[] array) {
+            int numBlocks = (array.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            // the chosen width is never larger than storing every difference in 64 bits
+            byte buffer[] = new byte[varLongLength(array.length) + 2 * numBlocks + 8 * array.length];
+            int pos = writeVarLong(array.length, buffer, 0);
+            long deltas[] = new long[BLOCK_SIZE];
+            long previous = 0;
+            for (int offset = 0; offset < array.length; offset += BLOCK_SIZE) {
+                int count = Math.min(BLOCK_SIZE, array.length - offset);
+                for (int j = 0; j < count; j++) {
+                    deltas[j] = array[offset + j] - previous;
+                    previous = array[offset + j];
+                }
+                int width = chooseWidth(deltas, count);
+                long mask = width == 64 ? -1L : (1L << width) - 1;
+                buffer[pos++] = (byte) width;
+                int exceptionCountPos = pos++;
+                if (width > 0) {
+                    for (int j = 0; j < count; j++) {
+                        writeBits(buffer, pos, j * width, deltas[j] & mask, width);
+                    }
+                }
+                pos += (count * width + 7) >>> 3;
+                int exceptions = 0;
+                for (int j = 0; j < count && width < 64; j++) {
+                    if (deltas[j] >>> width != 0) {
+                        buffer[pos++] = (byte) j;
+                        pos = writeVarLong(deltas[j] >>> width, buffer, pos);
+                        exceptions++;
+                    }
+                }
+                buffer[exceptionCountPos] = (byte) exceptions;
+            }
+            return Arrays.copyOf(buffer, pos);
+        }
+
+        /**
+         * Decode the differences of one block into dest[offset, offset + count).
+         */
+        static void decodeBlock(Reader reader, long dest[], int offset, int count) throws IOException {
+            int width = reader.readByte();
+            int exceptions = reader.readByte();
+            if (width > 64 || exceptions > count) {
+                throw new IOException("Malformed PFOR block header");
+            }
+            int packedBytes = (count * width + 7) >>> 3;
+            reader.require(packedBytes);
+            int start = reader.pos;
+            if (width == 0) {
+                Arrays.fill(dest, offset, offset + count, 0L);
+            } else {
+                for (int j = 0; j < count; j++) {
+                    dest[offset + j] = readBits(reader.data, start, start + packedBytes, j * width, width);
+                }
+            }
+            reader.pos += packedBytes;
+            for (int e = 0; e < exceptions; e++) {
+                int j = reader.readByte();
+                if (j >= count || width == 64) {
+                    throw new IOException("Malformed PFOR exception");
+                }
+                dest[offset + j] |= reader.readVarLong() << width;
+            }
+        }
+
+        @Override
+        public int decode(byte[] data, long[] dest) throws IOException {
+            Reader reader = new Reader(data);
+            int length = reader.readLength();
+            checkCapacity(length, dest);
+            long previous = 0;
+            for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+                int count = Math.min(BLOCK_SIZE, length - offset);
+                decodeBlock(reader, dest, offset, count);
+                for (int j = offset; j < offset + count; j++) {
+                    previous += dest[j];
+                    dest[j] = previous;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator(byte[] data) throws IOException {
+            return new DeltaIterator(new Reader(data)) {
+                final long block[] = new long[BLOCK_SIZE];
+
+                @Override
+                long nextDelta() throws IOException {
+                    int j = index % BLOCK_SIZE;
+                    if (j == 0) {
+                        decodeBlock(reader, block, 0, Math.min(BLOCK_SIZE, length - index));
+                    }
+                    return block[j];
+                }
+            };
+        }
+    }
+
+    static class SnappyCodec implements LongArrayCodec {
+
+        @Override
+        public String getName() {
+            return "snappy";
+        }
+
+        @Override
+        public byte[] encode(long[] array) throws IOException {
+            return Snappy.compress(array);
+        }
+
+        @Override
+        public long[] decode(byte[] data) throws IOException {
+            return Snappy.uncompressLongArray(data);
+        }
+
+        @Override
+        public int decodedLength(byte[] data) throws IOException {
+            return Snappy.uncompressedLength(data) / 8;
+        }
+
+        @Override
+        public int decode(byte[] data, long[] dest) throws IOException {
+            int length = decodedLength(data);
+            checkCapacity(length, dest);
+            Snappy.rawUncompress(data, 0, data.length, dest, 0);
+            return length;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator(byte[] data) throws IOException {
+            return Arrays.stream(decode(data)).iterator();
+        }
+    }
+
+    static class SnappyWrappedCodec implements LongArrayCodec {
+        private final LongArrayCodec codec;
+
+        SnappyWrappedCodec(LongArrayCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public String getName() {
+            return codec.getName() + SNAPPY_SUFFIX;
+        }
+
+        @Override
+        public byte[] encode(long[] array) throws IOException {
+            return Snappy.compress(codec.encode(array));
+        }
+
+        @Override
+        public long[] decode(byte[] data) throws IOException {
+            return codec.decode(Snappy.uncompress(data));
+        }
+
+        @Override
+        public int decodedLength(byte[] data) throws IOException {
+            return codec.decodedLength(Snappy.uncompress(data));
+        }
+
+        @Override
+        public int decode(byte[] data, long[] dest) throws IOException {
+            return codec.decode(Snappy.uncompress(data), dest);
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator(byte[] data) throws IOException {
+            return codec.iterator(Snappy.uncompress(data));
+        }
+    }
+}
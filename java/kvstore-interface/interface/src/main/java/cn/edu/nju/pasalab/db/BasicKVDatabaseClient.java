@@ -1,8 +1,23 @@
 package cn.edu.nju.pasalab.db;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 /**
  * The abstract class for a simple key-value database client.
@@ -90,6 +105,411 @@ public abstract class BasicKVDatabaseClient {
         putAll(insertKeys, insertValues);
     }
 
+    /**
+     * Get the value of a 64-bit key, encoded by Utils.longToKey.
+     * Backends override the long-key methods to encode the keys straight into their requests.
+     * thread-safe
+     * @param key
+     * @return the value. Return null if the key does not exist.
+     * @throws Exception
+     */
+    public byte[] getLong(long key) throws Exception {
+        return get(Utils.longToKey(key));
+    }
+
+    /**
+     * Get the values of a group of 64-bit keys
+     * thread-safe
+     * @param keys
+     * @return the values of the keys
+     * @throws Exception
+     */
+    public byte[][] getAllLong(long keys[]) throws Exception {
+        byte byteKeys[][] = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            byteKeys[i] = Utils.longToKey(keys[i]);
+        }
+        return getAll(byteKeys);
+    }
+
+    public void putLong(long key, byte value[]) throws Exception {
+        put(Utils.longToKey(key), value);
+    }
+
+    /**
+     * Set the values of a group of 64-bit keys in batch
+     * thread-safe
+     * @param keys
+     * @param values
+     * @throws Exception
+     */
+    public void putAllLong(long keys[], byte values[][]) throws Exception {
+        assert keys.length == values.length;
+        byte byteKeys[][] = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            byteKeys[i] = Utils.longToKey(keys[i]);
+        }
+        putAll(byteKeys, values);
+    }
+
+    /**
+     * Delete a key. Deleting a key that does not exist has no effect.
+     * thread-safe
+     * @param key
+     * @throws UnsupportedOperationException if the backend does not support deletes
+     * @throws Exception
+     */
+    public void delete(byte key[]) throws Exception {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not support deletes");
+    }
+
+    /**
+     * Delete a group of keys in batch
+     * thread-safe
+     * @param keys
+     * @throws Exception
+     */
+    public void deleteAll(byte keys[][]) throws Exception {
+        for (int i = 0; i < keys.length; i++) {
+            delete(keys[i]);
+        }
+    }
+
+    /**
+     * Get the value of a key held in a ByteBuffer.
+     * The remaining bytes of the buffer are the key. The buffer position is not changed.
+     * thread-safe
+     * @param key
+     * @return a read-only buffer of the value. Return null if the key does not exist.
+     * @throws Exception
+     */
+    public ByteBuffer get(ByteBuffer key) throws Exception {
+        byte value[] = get(Utils.toByteArray(key));
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy the value of a key into a caller-supplied buffer.
+     * The value is written at the current position of dest, and the position is advanced.
+     * thread-safe
+     * @param key
+     * @param dest the destination buffer
+     * @return the length of the value. Return -1 if the key does not exist.
+     * @throws java.nio.BufferOverflowException if dest does not have enough remaining space
+     * @throws Exception
+     */
+    public int get(ByteBuffer key, ByteBuffer dest) throws Exception {
+        ByteBuffer value = get(key);
+        if (value == null) return -1;
+        int length = value.remaining();
+        dest.put(value);
+        return length;
+    }
+
+    /**
+     * Get the values of a group of keys held in ByteBuffers
+     * thread-safe
+     * @param keys
+     * @return read-only buffers of the values. Null for the keys that do not exist.
+     * @throws Exception
+     */
+    public ByteBuffer[] getAll(ByteBuffer keys[]) throws Exception {
+        byte queryKeys[][] = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            queryKeys[i] = Utils.toByteArray(keys[i]);
+        }
+        byte values[][] = getAll(queryKeys);
+        ByteBuffer result[] = new ByteBuffer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = values[i] == null ? null : ByteBuffer.wrap(values[i]).asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    /**
+     * Set the value of a key, both held in ByteBuffers.
+     * The remaining bytes of the buffers are used. The buffer positions are not changed.
+     * thread-safe
+     * @param key
+     * @param value
+     * @throws Exception
+     */
+    public void put(ByteBuffer key, ByteBuffer value) throws Exception {
+        put(Utils.toByteArray(key), Utils.toByteArray(value));
+    }
+
+    /**
+     * Get the value of a key asynchronously.
+     * The default implementation runs the blocking get() on the async executor.
+     * Backends with a non-blocking driver should override it.
+     * @param key
+     * @return a future of the value. The value is null if the key does not exist.
+     */
+    public CompletableFuture<byte[]> getAsync(byte key[]) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return get(key);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Get the values of a group of keys asynchronously.
+     * The default implementation runs the blocking getAll() on the async executor.
+     * @param keys
+     * @return a future of the values of the keys
+     */
+    public CompletableFuture<byte[][]> getAllAsync(byte keys[][]) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getAll(keys);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Set the value of a key asynchronously.
+     * The default implementation runs the blocking put() on the async executor.
+     * @param key
+     * @param value
+     * @return a future completed when the value is written
+     */
+    public CompletableFuture<Void> putAsync(byte key[], byte value[]) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                put(key, value);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Set the key-value pairs in batch asynchronously.
+     * The default implementation runs the blocking putAll() on the async executor.
+     * @param keys
+     * @param values
+     * @return a future completed when all the values are written
+     */
+    public CompletableFuture<Void> putAllAsync(byte keys[][], byte values[][]) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                putAll(keys, values);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Get the value of a key, waiting at most the timeout.
+     * The default implementation waits for getAsync() and cancels it on timeout. A backend without a non-blocking
+     * driver keeps running the cancelled get in the background.
+     * thread-safe
+     * @param key
+     * @param timeout
+     * @param unit
+     * @return the value. Return null if the key does not exist.
+     * @throws TimeoutException if the value is not got in time
+     * @throws Exception
+     */
+    public byte[] get(byte key[], long timeout, TimeUnit unit) throws Exception {
+        return await(getAsync(key), timeout, unit);
+    }
+
+    /**
+     * Get the values of a group of keys, waiting at most the timeout.
+     * thread-safe
+     * @param keys
+     * @param timeout
+     * @param unit
+     * @return the values of the keys
+     * @throws TimeoutException if the values are not got in time
+     * @throws Exception
+     */
+    public byte[][] getAll(byte keys[][], long timeout, TimeUnit unit) throws Exception {
+        return await(getAllAsync(keys), timeout, unit);
+    }
+
+    /**
+     * Set the value of a key, waiting at most the timeout.
+     * The value may still be written after a timeout.
+     * thread-safe
+     * @throws TimeoutException if the value is not written in time
+     * @throws Exception
+     */
+    public void put(byte key[], byte value[], long timeout, TimeUnit unit) throws Exception {
+        await(putAsync(key, value), timeout, unit);
+    }
+
+    /**
+     * Set the key-value pairs in batch, waiting at most the timeout.
+     * Some of the values may still be written after a timeout.
+     * thread-safe
+     * @throws TimeoutException if the values are not written in time
+     * @throws Exception
+     */
+    public void putAll(byte keys[][], byte values[][], long timeout, TimeUnit unit) throws Exception {
+        await(putAllAsync(keys, values), timeout, unit);
+    }
+
+    /**
+     * Wait for a future of the async methods, and cancel it on timeout.
+     * @throws TimeoutException if the future is not completed in time
+     * @throws Exception the exception completing the future
+     */
+    protected static <T> T await(CompletableFuture<T> future, long timeout, TimeUnit unit) throws Exception {
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the splits of the stored data. Each split can be scanned independently and in parallel.
+     * @return the splits covering all the stored data
+     * @throws UnsupportedOperationException if the backend does not support scans
+     * @throws Exception
+     */
+    public List<ScanSplit> getScanSplits() throws Exception {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not support scans");
+    }
+
+    /**
+     * Scan the key-value pairs in a split
+     * thread-safe
+     * @param split a split returned by getScanSplits()
+     * @return an iterator over the pairs. It must be closed after use.
+     * @throws Exception
+     */
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not support scans");
+    }
+
+    /**
+     * Scan the key-value pairs whose keys are in [startKey, stopKey).
+     * Only backends that keep the keys ordered support it.
+     * thread-safe
+     * @param startKey the first key, inclusive. Null to start from the first key.
+     * @param stopKey the last key, exclusive. Null to stop at the last key.
+     * @return an iterator over the pairs in key order. It must be closed after use.
+     * @throws Exception
+     */
+    public KVScanIterator scan(byte startKey[], byte stopKey[]) throws Exception {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not support range scans");
+    }
+
+    /**
+     * Scan all the key-value pairs, split by split.
+     * thread-safe
+     * @return an iterator over the pairs. It must be closed after use.
+     * @throws Exception
+     */
+    public KVScanIterator scan() throws Exception {
+        return new SplitChainScanIterator(getScanSplits().iterator());
+    }
+
+    /**
+     * Scan all the key-value pairs with the splits scanned in parallel.
+     * @param parallelism the number of splits scanned at the same time
+     * @param consumer consume the pairs. It is called concurrently from several threads.
+     * @throws Exception the first exception thrown by the scans or the consumer
+     */
+    public void scanAll(int parallelism, BiConsumer<byte[], byte[]> consumer) throws Exception {
+        List<ScanSplit> splits = getScanSplits();
+        ExecutorService scanners = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("KV Client Scanner");
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(splits.size());
+            for (ScanSplit split : splits) {
+                futures.add(scanners.submit(() -> {
+                    try (KVScanIterator iterator = scan(split)) {
+                        while (iterator.hasNext()) {
+                            Map.Entry<byte[], byte[]> pair = iterator.next();
+                            consumer.accept(pair.getKey(), pair.getValue());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                    throw e;
+                }
+            }
+        } finally {
+            scanners.shutdownNow();
+        }
+    }
+
+    private class SplitChainScanIterator implements KVScanIterator {
+        private final Iterator<ScanSplit> splits;
+        private KVScanIterator current = null;
+
+        SplitChainScanIterator(Iterator<ScanSplit> splits) {
+            this.splits = splits;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while ((current == null || !current.hasNext()) && splits.hasNext()) {
+                    if (current != null) current.close();
+                    current = scan(splits.next());
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Fail to scan the next split", e);
+            }
+            return current != null && current.hasNext();
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return current.next();
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (current != null) current.close();
+        }
+    }
+
+    /**
+     * The executor used by the default async adapters.
+     * All the clients share a daemon thread pool unless a backend overrides this method.
+     */
+    protected Executor getAsyncExecutor() {
+        return DefaultAsyncExecutorHolder.EXECUTOR;
+    }
+
+    private static class DefaultAsyncExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("KV Client Async Worker");
+            return thread;
+        });
+    }
+
     /**
      * Close the database connections.
      */
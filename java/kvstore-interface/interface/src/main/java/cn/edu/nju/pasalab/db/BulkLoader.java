@@ -0,0 +1,207 @@
+package cn.edu.nju.pasalab.db;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Load a large number of key-value pairs into a database with several batches in flight.
+ *
+ * The input is consumed on the caller thread and cut into batches, which are written by a pool of workers.
+ * At most bulkload.max.inflight.batches batches exist at the same time, so the memory is bounded
+ * no matter how large the input is: the caller blocks until a worker finishes a batch.
+ *
+ * The workers call putAll concurrently, so the client must be thread-safe, and the batches complete in any order:
+ * a key repeated in several batches may keep any of its values. Utils.batchInput writes the batches in order instead.
+ */
+public class BulkLoader {
+
+    public static final String CONF_BATCH_SIZE = "bulkload.batch.size"; // pairs per batch
+    public static final String DEFAULT_BATCH_SIZE = "1000";
+    public static final String CONF_BATCH_BYTES = "bulkload.batch.bytes"; // a batch is sent once it holds so many bytes
+    public static final String DEFAULT_BATCH_BYTES = "4194304";
+    public static final String CONF_NUM_WORKERS = "bulkload.num.workers";
+    public static final String DEFAULT_NUM_WORKERS = "4";
+    public static final String CONF_MAX_INFLIGHT_BATCHES = "bulkload.max.inflight.batches";
+    public static final String DEFAULT_MAX_INFLIGHT_BATCHES = "8";
+    public static final String CONF_REPORT_INTERVAL = "bulkload.report.interval.in.sec"; // 0 to disable the report
+    public static final String DEFAULT_REPORT_INTERVAL = "10";
+
+    private final BasicKVDatabaseClient dbClient;
+    private int batchSize;
+    private long batchBytes;
+    private int numWorkers;
+    private int maxInFlightBatches;
+    private long reportIntervalInSecond;
+
+    private final AtomicLong loadedPairs = new AtomicLong(0L);
+    private final AtomicLong loadedBytes = new AtomicLong(0L);
+    private final AtomicLong loadedBatches = new AtomicLong(0L);
+    private long startTimeInNano;
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    public BulkLoader(BasicKVDatabaseClient dbClient) {
+        this(dbClient, new Properties());
+    }
+
+    public BulkLoader(BasicKVDatabaseClient dbClient, Properties conf) {
+        this.dbClient = dbClient;
+        loadConfiguration(conf);
+    }
+
+    private void loadConfiguration(Properties conf) {
+        this.batchSize = Integer.parseInt(conf.getProperty(CONF_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.batchBytes = Long.parseLong(conf.getProperty(CONF_BATCH_BYTES, DEFAULT_BATCH_BYTES));
+        this.numWorkers = Integer.parseInt(conf.getProperty(CONF_NUM_WORKERS, DEFAULT_NUM_WORKERS));
+        this.maxInFlightBatches = Integer.parseInt(
+                conf.getProperty(CONF_MAX_INFLIGHT_BATCHES, DEFAULT_MAX_INFLIGHT_BATCHES));
+        this.reportIntervalInSecond = Long.parseLong(conf.getProperty(CONF_REPORT_INTERVAL, DEFAULT_REPORT_INTERVAL));
+        assert batchSize > 0 && numWorkers > 0 && maxInFlightBatches > 0;
+    }
+
+    /**
+     * Load all the key-value pairs of the input.
+     * @param input key-value pairs
+     * @return the number of pairs loaded
+     * @throws Exception the first exception thrown by the database client; an Error is rethrown as well
+     */
+    public long load(Iterator<? extends Map.Entry<byte[], byte[]>> input) throws Exception {
+        loadedPairs.set(0L);
+        loadedBytes.set(0L);
+        loadedBatches.set(0L);
+        startTimeInNano = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Bulk Loader Worker");
+            return thread;
+        });
+        ScheduledExecutorService reporter = null;
+        if (reportIntervalInSecond > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("Bulk Loader Reporter");
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(this::reportProgress,
+                    reportIntervalInSecond, reportIntervalInSecond, TimeUnit.SECONDS);
+        }
+        Semaphore inFlightBatches = new Semaphore(maxInFlightBatches);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        try {
+            while (input.hasNext() && error.get() == null) {
+                byte keys[][] = new byte[batchSize][];
+                byte values[][] = new byte[batchSize][];
+                int size = 0;
+                long bytes = 0L;
+                while (size < batchSize && bytes < batchBytes && input.hasNext()) {
+                    Map.Entry<byte[], byte[]> pair = input.next();
+                    keys[size] = pair.getKey();
+                    values[size] = pair.getValue();
+                    bytes += keys[size].length + (values[size] == null ? 0 : values[size].length);
+                    size++;
+                }
+                if (size < batchSize) {
+                    keys = trim(keys, size);
+                    values = trim(values, size);
+                }
+                inFlightBatches.acquire();
+                submitBatch(workers, inFlightBatches, error, keys, values, bytes);
+            }
+            // Wait for all the batches in flight
+            inFlightBatches.acquire(maxInFlightBatches);
+            inFlightBatches.release(maxInFlightBatches);
+        } finally {
+            workers.shutdown();
+            if (reporter != null) reporter.shutdown();
+        }
+        Throwable failure = error.get();
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw (Exception) failure;
+        }
+        if (reportIntervalInSecond > 0) reportProgress();
+        return loadedPairs.get();
+    }
+
+    public long load(Stream<? extends Map.Entry<byte[], byte[]>> input) throws Exception {
+        return load(input.iterator());
+    }
+
+    public long load(byte keys[][], byte values[][]) throws Exception {
+        assert keys.length == values.length;
+        return load(new Iterator<Map.Entry<byte[], byte[]>>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < keys.length;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Map.Entry<byte[], byte[]> pair = new AbstractMap.SimpleImmutableEntry<>(keys[i], values[i]);
+                i++;
+                return pair;
+            }
+        });
+    }
+
+    private void submitBatch(ExecutorService workers, Semaphore inFlightBatches, AtomicReference<Throwable> error,
+                             byte keys[][], byte values[][], long bytes) {
+        workers.execute(() -> {
+            try {
+                dbClient.putAll(keys, values);
+                loadedPairs.addAndGet(keys.length);
+                loadedBytes.addAndGet(bytes);
+                loadedBatches.incrementAndGet();
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                inFlightBatches.release();
+            }
+        });
+    }
+
+    private static byte[][] trim(byte array[][], int size) {
+        byte result[][] = new byte[size][];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    private void reportProgress() {
+        double elapsedInSecond = (System.nanoTime() - startTimeInNano) / 1e9;
+        long pairs = loadedPairs.get();
+        long bytes = loadedBytes.get();
+        logger.info(String.format("Loaded %d pairs in %d batches, %d bytes, %.1f s elapsed. "
+                        + "Throughput: %.0f pairs/s, %.2f MB/s.",
+                pairs, loadedBatches.get(), bytes, elapsedInSecond,
+                pairs / elapsedInSecond, bytes / elapsedInSecond / (1 << 20)));
+    }
+
+    public long getLoadedPairs() {
+        return loadedPairs.get();
+    }
+
+    public long getLoadedBytes() {
+        return loadedBytes.get();
+    }
+
+    public long getLoadedBatches() {
+        return loadedBatches.get();
+    }
+}
@@ -0,0 +1,347 @@
+package cn.edu.nju.pasalab.db;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Re-issue the reads that are slower than usual, and use whichever answer arrives first.
+ *
+ * A get or getAll not answered after the hedge delay is sent again, to a replica if the configurations contain
+ * hedge.replica.* properties, otherwise to the backend itself. The delay is hedge.delay.in.ms, or if it is 0,
+ * the hedge.delay.percentile of the latencies of the last 1024 reads. The first answer completes the read and
+ * the other one is cancelled. At most hedge.max.ratio of the reads are hedged, so a slow backend is not
+ * flooded with twice the load.
+ *
+ * The replica is connected with the configurations overridden by the hedge.replica.* properties without
+ * the prefix, e.g. hedge.replica.redis.hosts.list. Writes, deletes and scans go to the backend only.
+ */
+public class HedgedReadClient extends BasicKVDatabaseClient {
+
+    public static final String CONF_DB_BACKEND_CLASS_NAME = "hedge.db.backend.class.name"; // required, no default!
+    public static final String CONF_DELAY = "hedge.delay.in.ms"; // 0: the latency percentile below
+    public static final String DEFAULT_DELAY = "0";
+    public static final String CONF_DELAY_PERCENTILE = "hedge.delay.percentile";
+    public static final String DEFAULT_DELAY_PERCENTILE = "95";
+    public static final String CONF_MIN_DELAY = "hedge.min.delay.in.ms";
+    public static final String DEFAULT_MIN_DELAY = "1";
+    public static final String CONF_MAX_RATIO = "hedge.max.ratio"; // hedged reads / all the reads
+    public static final String DEFAULT_MAX_RATIO = "0.05";
+    public static final String REPLICA_CONF_PREFIX = "hedge.replica.";
+
+    static final int LATENCY_WINDOW = 1024;
+    static final long DELAY_UPDATE_INTERVAL_IN_MS = 1000L;
+
+    private BasicKVDatabaseClient db;
+    private BasicKVDatabaseClient replica; // the backend itself if there is no replica
+    private String dbClassName;
+    private long fixedDelayInNanos;
+    private double delayPercentile;
+    private long minDelayInNanos;
+    private double maxRatio;
+
+    private ScheduledThreadPoolExecutor timer;
+    private ExecutorService sender; // sends the hedged reads
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_WINDOW); // in nanosecond
+    private final AtomicLong latencyCount = new AtomicLong(0L);
+    private volatile long hedgeDelayInNanos = -1L; // no hedging until the latency window is filled
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hedgedReads = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    /**
+     * A read sent to the backend, and to the replica after the hedge delay.
+     */
+    private class HedgedRead<T> {
+        private final Function<BasicKVDatabaseClient, CompletableFuture<T>> read;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final AtomicInteger pendingAttempts = new AtomicInteger(1);
+        private volatile CompletableFuture<T> primary;
+        private volatile CompletableFuture<T> backup;
+        private volatile ScheduledFuture<?> hedgeTask;
+
+        HedgedRead(Function<BasicKVDatabaseClient, CompletableFuture<T>> read) {
+            this.read = read;
+            result.whenComplete((v, e) -> {
+                cancel(primary);
+                cancel(backup);
+                ScheduledFuture<?> task = hedgeTask;
+                if (task != null) {
+                    task.cancel(false);
+                }
+            });
+        }
+
+        CompletableFuture<T> start() {
+            long start = System.nanoTime();
+            primary = read.apply(db);
+            primary.whenComplete((v, e) -> {
+                if (e == null) { // a primary cancelled by the hedge would bias the percentile low
+                    recordLatency(System.nanoTime() - start);
+                }
+            });
+            attach(primary, false);
+            long delay = hedgeDelayInNanos;
+            if (delay >= 0 && !result.isDone()) {
+                hedgeTask = timer.schedule(() -> sender.execute(this::hedge), delay, TimeUnit.NANOSECONDS);
+                if (result.isDone()) {
+                    hedgeTask.cancel(false);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Run by the sender threads, so a backend that blocks in getAsync does not hold the timer.
+         */
+        private void hedge() {
+            if (result.isDone() || !allowHedge()) {
+                return;
+            }
+            pendingAttempts.incrementAndGet();
+            hedgedReads.increment();
+            backup = read.apply(replica);
+            attach(backup, true);
+            if (result.isDone()) {
+                cancel(backup);
+            }
+        }
+
+        private void attach(CompletableFuture<T> attempt, boolean isBackup) {
+            attempt.whenComplete((value, e) -> {
+                if (e == null) {
+                    if (result.complete(value) && isBackup) {
+                        hedgeWins.increment();
+                    }
+                } else if (pendingAttempts.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+
+        private void cancel(CompletableFuture<T> attempt) {
+            if (attempt != null && !attempt.isDone()) {
+                attempt.cancel(false);
+            }
+        }
+    }
+
+    private boolean allowHedge() {
+        return hedgedReads.sum() < maxRatio * reads.sum();
+    }
+
+    private void recordLatency(long latencyInNanos) {
+        long index = latencyCount.getAndIncrement();
+        latencies.lazySet((int) (index % LATENCY_WINDOW), latencyInNanos);
+    }
+
+    private void updateHedgeDelay() {
+        if (latencyCount.get() < LATENCY_WINDOW) {
+            return;
+        }
+        long window[] = new long[LATENCY_WINDOW];
+        for (int i = 0; i < LATENCY_WINDOW; i++) {
+            window[i] = latencies.get(i);
+        }
+        Arrays.sort(window);
+        int index = (int) Math.ceil(delayPercentile / 100.0 * LATENCY_WINDOW) - 1;
+        index = Math.max(0, Math.min(LATENCY_WINDOW - 1, index));
+        hedgeDelayInNanos = Math.max(minDelayInNanos, window[index]);
+    }
+
+    private <T> CompletableFuture<T> hedged(Function<BasicKVDatabaseClient, CompletableFuture<T>> read) {
+        reads.increment();
+        return new HedgedRead<>(read).start();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws Exception {
+        return await(getAsync(key));
+    }
+
+    @Override
+    public byte[][] getAll(byte[][] keys) throws Exception {
+        return await(getAllAsync(keys));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        return hedged(client -> client.getAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<byte[][]> getAllAsync(byte[][] keys) {
+        return hedged(client -> client.getAllAsync(keys));
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws Exception {
+        db.put(key, value);
+    }
+
+    @Override
+    public void putAll(byte[][] keys, byte[][] values) throws Exception {
+        db.putAll(keys, values);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        return db.putAsync(key, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(byte[][] keys, byte[][] values) {
+        return db.putAllAsync(keys, values);
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        db.delete(key);
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        db.deleteAll(keys);
+    }
+
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        return db.getScanSplits();
+    }
+
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        return db.scan(split);
+    }
+
+    @Override
+    public KVScanIterator scan(byte[] startKey, byte[] stopKey) throws Exception {
+        return db.scan(startKey, stopKey);
+    }
+
+    /**
+     * @return the current hedge delay in millisecond. Negative if reads are not hedged yet.
+     */
+    public double getHedgeDelayInMillis() {
+        long delay = hedgeDelayInNanos;
+        return delay < 0 ? -1.0 : delay / 1e6;
+    }
+
+    @Override
+    public void close() throws Exception {
+        timer.shutdownNow();
+        sender.shutdown();
+        logger.info(String.format("Hedged %d of %d reads, %d answered by the hedge first.",
+                hedgedReads.sum(), reads.sum(), hedgeWins.sum()));
+        db.close();
+        if (replica != db) {
+            replica.close();
+        }
+    }
+
+    @Override
+    public void clearDB() throws Exception {
+        db.clearDB();
+    }
+
+    @Override
+    public void createDB() throws Exception {
+        db.createDB();
+    }
+
+    private void loadConfigurations(Properties conf) {
+        this.dbClassName = conf.getProperty(CONF_DB_BACKEND_CLASS_NAME);
+        this.fixedDelayInNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(conf.getProperty(CONF_DELAY, DEFAULT_DELAY)));
+        this.delayPercentile = Double.parseDouble(conf.getProperty(CONF_DELAY_PERCENTILE, DEFAULT_DELAY_PERCENTILE));
+        this.minDelayInNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(conf.getProperty(CONF_MIN_DELAY, DEFAULT_MIN_DELAY)));
+        this.maxRatio = Double.parseDouble(conf.getProperty(CONF_MAX_RATIO, DEFAULT_MAX_RATIO));
+        if (fixedDelayInNanos > 0) {
+            logger.info(String.format("Hedge the reads after %d ms.", TimeUnit.NANOSECONDS.toMillis(fixedDelayInNanos)));
+        } else {
+            logger.info(String.format("Hedge the reads after the p%s latency.", delayPercentile));
+        }
+    }
+
+    /**
+     * @return the configurations overridden by the hedge.replica.* properties; null if there are none
+     */
+    static Properties getReplicaConfigurations(Properties conf) {
+        Properties replicaConf = null;
+        for (String name : conf.stringPropertyNames()) {
+            if (!name.startsWith(REPLICA_CONF_PREFIX)) continue;
+            if (replicaConf == null) {
+                replicaConf = new Properties();
+                for (String original : conf.stringPropertyNames()) {
+                    replicaConf.setProperty(original, conf.getProperty(original));
+                }
+            }
+            replicaConf.setProperty(name.substring(REPLICA_CONF_PREFIX.length()), conf.getProperty(name));
+        }
+        return replicaConf;
+    }
+
+    /**
+     * Connect to the underlying database
+     *
+     * @param conf Database connection-related configurations
+     * @throws Exception database connection exception
+     */
+    @Override
+    public void connect(Properties conf) throws Exception {
+        loadConfigurations(conf);
+        logger.info("Database backend:" + dbClassName);
+        this.db = (BasicKVDatabaseClient) Class.forName(dbClassName).newInstance();
+        db.connect(conf);
+        Properties replicaConf = getReplicaConfigurations(conf);
+        if (replicaConf == null) {
+            this.replica = db;
+        } else {
+            this.replica = (BasicKVDatabaseClient) Class.forName(dbClassName).newInstance();
+            replica.connect(replicaConf);
+        }
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Hedged Read Timer");
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true); // most reads cancel their hedge
+        this.sender = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Hedged Read Sender");
+            return thread;
+        });
+        if (fixedDelayInNanos > 0) {
+            this.hedgeDelayInNanos = fixedDelayInNanos;
+        } else {
+            timer.scheduleWithFixedDelay(this::updateHedgeDelay,
+                    DELAY_UPDATE_INTERVAL_IN_MS, DELAY_UPDATE_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package cn.edu.nju.pasalab.db;
+
+import java.util.Properties;
+
+/**
+ * A channel between the caches of several JVMs: each one publishes the keys it writes,
+ * and evicts the keys written by the others. Implementations are thread-safe,
+ * and do not deliver the messages of a bus to itself.
+ */
+public interface InvalidationBus extends AutoCloseable {
+
+    interface Listener {
+        /**
+         * The keys written by another JVM. Called from the thread of the bus.
+         */
+        void invalidate(byte keys[][]);
+
+        /**
+         * Messages may have been lost, e.g. while reconnecting, so every cached key is suspect.
+         */
+        void invalidateAll();
+    }
+
+    /**
+     * @param conf the configuration of the cache, which also holds the one of the bus
+     */
+    void connect(Properties conf, Listener listener) throws Exception;
+
+    /**
+     * Send the keys to the other JVMs in one message.
+     */
+    void publish(byte keys[][]) throws Exception;
+
+    /**
+     * Tell the other JVMs to invalidate every key, e.g. when the written keys could not all be published.
+     */
+    void publishInvalidateAll() throws Exception;
+}
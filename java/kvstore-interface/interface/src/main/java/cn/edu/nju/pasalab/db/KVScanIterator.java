@@ -0,0 +1,12 @@
+package cn.edu.nju.pasalab.db;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Iterate over the key-value pairs of a scan.
+ * The pairs are fetched from the database page by page, so the memory used is bounded by the page size.
+ * Close the iterator to release the underlying scanner.
+ */
+public interface KVScanIterator extends Iterator<Map.Entry<byte[], byte[]>>, AutoCloseable {
+}
@@ -0,0 +1,52 @@
+package cn.edu.nju.pasalab.db;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A scan iterator that fetches the key-value pairs page by page.
+ * Subclasses only have to fetch the next page.
+ */
+public abstract class PagedKVScanIterator implements KVScanIterator {
+
+    private Iterator<Map.Entry<byte[], byte[]>> currentPage = Collections.emptyIterator();
+    private boolean finished = false;
+
+    /**
+     * Fetch the next page of the scan.
+     * @return the pairs of the next page, may be empty. Return null if the scan is finished.
+     * @throws Exception
+     */
+    protected abstract List<Map.Entry<byte[], byte[]>> nextPage() throws Exception;
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext() && !finished) {
+            List<Map.Entry<byte[], byte[]>> page;
+            try {
+                page = nextPage();
+            } catch (Exception e) {
+                throw new RuntimeException("Fail to fetch the next page of the scan", e);
+            }
+            if (page == null) {
+                finished = true;
+            } else {
+                currentPage = page.iterator();
+            }
+        }
+        return currentPage.hasNext();
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return currentPage.next();
+    }
+
+    @Override
+    public void close() throws Exception {
+    }
+}
@@ -0,0 +1,12 @@
+package cn.edu.nju.pasalab.db;
+
+import java.io.Serializable;
+
+/**
+ * A part of the stored data that can be scanned independently of the other parts,
+ * e.g. an HBase region, a Cassandra token range or a Redis shard.
+ * The splits of a database can be scanned in parallel, also by other client instances
+ * connected to the same database.
+ */
+public interface ScanSplit extends Serializable {
+}
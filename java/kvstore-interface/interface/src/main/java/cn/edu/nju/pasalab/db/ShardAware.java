@@ -0,0 +1,16 @@
+package cn.edu.nju.pasalab.db;
+
+/**
+ * Implemented by the clients that spread keys on several servers,
+ * so that wrappers can group keys by the server storing them.
+ */
+public interface ShardAware {
+
+    int getNumShards();
+
+    /**
+     * @param key
+     * @return the shard of the key, in [0, getNumShards())
+     */
+    int getShard(byte key[]);
+}
@@ -1,11 +1,14 @@
 package cn.edu.nju.pasalab.db;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by wangzhaokang on 4/12/18.
  */
 public class Utils {
     /**
-     * Input a lot of key-value pairs via several batches
+     * Input a lot of key-value pairs via several batches, written one after another in order.
+     * Use BulkLoader to write the batches in parallel.
      * @param dbClient
      * @param keys
      * @param values
@@ -18,4 +21,39 @@ public class Utils {
             i = to;
         }
     }
+
+    /**
+     * Get the remaining bytes of a buffer as an array without changing the buffer position.
+     * The backing array is returned directly if the buffer wraps the whole of it, otherwise the bytes are copied.
+     * @param buffer
+     * @return the bytes
+     */
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte result[] = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    /**
+     * Encode a 64-bit key in 8 bytes, the least significant byte first.
+     * It is the same encoding as CoderAndDecoder.toByteArray(long) of hbase-client.
+     * @param key
+     * @return the key bytes
+     */
+    public static byte[] longToKey(long key) {
+        byte result[] = new byte[8];
+        longToKey(key, result, 0);
+        return result;
+    }
+
+    public static void longToKey(long key, byte dest[], int offset) {
+        for (int i = 0; i < 8; i++) {
+            dest[offset + i] = (byte) key;
+            key >>= 8;
+        }
+    }
 }
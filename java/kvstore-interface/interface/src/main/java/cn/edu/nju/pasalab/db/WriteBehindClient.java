@@ -0,0 +1,502 @@
+package cn.edu.nju.pasalab.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffer the puts and write them to the backend database in large putAll batches.
+ *
+ * Puts are collected per shard if the backend is ShardAware, otherwise in writebehind.num.buffers buffers chosen
+ * by the hash of the key. Repeated puts of a key in a buffer collapse into the last one. A buffer is flushed when it
+ * holds writebehind.batch.size keys or writebehind.batch.bytes bytes, or every writebehind.flush.interval.in.ms.
+ * The batches of a buffer are written one after another, so the last put of a key always wins.
+ *
+ * Reads see the buffered puts. Deletes and scans flush first. A failed batch goes back into its buffer, to be
+ * written again with the next one; until a batch of that buffer is written, its puts and flush fail. A sync fails
+ * if a batch it waits for fails, and so do the putAsync futures of its keys, which complete when their batch is
+ * written. The arrays passed to put must not be modified afterwards.
+ */
+public class WriteBehindClient extends BasicKVDatabaseClient {
+
+    public static final String CONF_DB_BACKEND_CLASS_NAME = "writebehind.db.backend.class.name"; // required, no default!
+    public static final String CONF_BATCH_SIZE = "writebehind.batch.size"; // keys per batch
+    public static final String DEFAULT_BATCH_SIZE = "1000";
+    public static final String CONF_BATCH_BYTES = "writebehind.batch.bytes";
+    public static final String DEFAULT_BATCH_BYTES = "4194304";
+    public static final String CONF_FLUSH_INTERVAL = "writebehind.flush.interval.in.ms"; // max delay of a put
+    public static final String DEFAULT_FLUSH_INTERVAL = "1000";
+    public static final String CONF_NUM_BUFFERS = "writebehind.num.buffers"; // ignored if the backend is ShardAware
+    public static final String DEFAULT_NUM_BUFFERS = "16";
+    public static final String CONF_NUM_FLUSHERS = "writebehind.num.flushers";
+    public static final String DEFAULT_NUM_FLUSHERS = "4";
+    public static final String CONF_MAX_INFLIGHT_BATCHES = "writebehind.max.inflight.batches";
+    public static final String DEFAULT_MAX_INFLIGHT_BATCHES = "16";
+
+    private BasicKVDatabaseClient db;
+    private ShardAware shards; // null if the backend is not ShardAware
+    private String dbClassName;
+    private int batchSize;
+    private long batchBytes;
+    private long flushIntervalInMillis;
+    private int numBuffers;
+    private int numFlushers;
+    private int maxInFlightBatches;
+
+    private WriteBuffer buffers[];
+    private ExecutorService flushers;
+    private ScheduledExecutorService flushTimer;
+    private Semaphore inFlightBatches;
+    private final AtomicLong collapsedPuts = new AtomicLong(0L);
+    private final AtomicLong flushedPairs = new AtomicLong(0L);
+    private final AtomicLong flushedBatches = new AtomicLong(0L);
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    /**
+     * The puts of one buffer that are not written yet. Guarded by its own monitor.
+     */
+    private class WriteBuffer {
+        private LinkedHashMap<ByteBuffer, byte[]> pending = new LinkedHashMap<>();
+        private long pendingBytes = 0L;
+        private final ArrayDeque<LinkedHashMap<ByteBuffer, byte[]>> writing = new ArrayDeque<>(); // oldest first
+        private CompletableFuture<Void> lastBatch = CompletableFuture.completedFuture(null);
+        private CompletableFuture<Void> pendingWritten; // completed when the pending puts are written, null if unused
+        private Exception failure; // of the last failed batch
+        private long numFailures = 0L;
+        private boolean failing = false; // no batch is written since the last failure
+
+        /**
+         * @return true if the buffer reaches the batch size or the batch bytes
+         */
+        boolean add(ByteBuffer key, byte[] value) {
+            byte[] previous = pending.put(key, value);
+            if (previous != null) {
+                pendingBytes -= previous.length;
+                collapsedPuts.incrementAndGet();
+            } else {
+                pendingBytes += key.remaining();
+            }
+            pendingBytes += value.length;
+            return pending.size() >= batchSize || pendingBytes >= batchBytes;
+        }
+
+        byte[] lookup(ByteBuffer key) {
+            byte[] value = pending.get(key);
+            if (value != null) return value;
+            Iterator<LinkedHashMap<ByteBuffer, byte[]>> newestFirst = writing.descendingIterator();
+            while (newestFirst.hasNext()) {
+                value = newestFirst.next().get(key);
+                if (value != null) return value;
+            }
+            return null;
+        }
+
+        boolean isEmpty() {
+            return pending.isEmpty();
+        }
+
+        CompletableFuture<Void> pendingWritten() {
+            if (pendingWritten == null) {
+                pendingWritten = new CompletableFuture<>();
+            }
+            return pendingWritten;
+        }
+
+        /**
+         * Queue the pending puts as a batch after the batches being written. The caller holds a permit of
+         * inFlightBatches for it, which is released when the batch is written.
+         * @return the future of the last batch of this buffer
+         */
+        CompletableFuture<Void> drain() {
+            if (pending.isEmpty()) {
+                return lastBatch;
+            }
+            LinkedHashMap<ByteBuffer, byte[]> batch = pending;
+            CompletableFuture<Void> written = pendingWritten;
+            pending = new LinkedHashMap<>();
+            pendingBytes = 0L;
+            pendingWritten = null;
+            writing.addLast(batch);
+            lastBatch = lastBatch.handleAsync((v, e) -> {
+                Exception error = writeBatch(this, batch);
+                if (written != null) {
+                    if (error == null) {
+                        written.complete(null);
+                    } else {
+                        written.completeExceptionally(error);
+                    }
+                }
+                return null;
+            }, flushers);
+            return lastBatch;
+        }
+
+        /**
+         * Put the keys of a failed batch back in the pending puts, except those put again since.
+         */
+        synchronized void batchWritten(LinkedHashMap<ByteBuffer, byte[]> batch, Exception error) {
+            writing.removeFirst(); // the later batches are left
+            if (error == null) {
+                failing = false;
+                return;
+            }
+            failure = error;
+            numFailures++;
+            failing = true;
+            LinkedHashMap<ByteBuffer, byte[]> retry = new LinkedHashMap<>();
+            for (Map.Entry<ByteBuffer, byte[]> pair : batch.entrySet()) {
+                ByteBuffer key = pair.getKey();
+                if (pending.containsKey(key) || writtenLater(key)) continue;
+                retry.put(key, pair.getValue());
+                pendingBytes += key.remaining() + pair.getValue().length;
+            }
+            retry.putAll(pending);
+            pending = retry;
+        }
+
+        private boolean writtenLater(ByteBuffer key) {
+            for (Map<ByteBuffer, byte[]> later : writing) {
+                if (later.containsKey(key)) return true;
+            }
+            return false;
+        }
+
+        synchronized long numFailures() {
+            return numFailures;
+        }
+
+        synchronized void checkFailing() throws IOException {
+            if (failing) {
+                throw new IOException("Fail to write buffered puts to the database, they are retried", failure);
+            }
+        }
+
+        /**
+         * @throws IOException if a batch failed since numFailures() returned the given number
+         */
+        synchronized void checkFailures(long since) throws IOException {
+            if (numFailures != since) {
+                throw new IOException("Fail to write buffered puts to the database", failure);
+            }
+        }
+    }
+
+    /**
+     * @return the failure, or null if the batch is written
+     */
+    private Exception writeBatch(WriteBuffer buffer, LinkedHashMap<ByteBuffer, byte[]> batch) {
+        byte keys[][] = new byte[batch.size()][];
+        byte values[][] = new byte[batch.size()][];
+        int i = 0;
+        for (Map.Entry<ByteBuffer, byte[]> pair : batch.entrySet()) {
+            keys[i] = Utils.toByteArray(pair.getKey());
+            values[i] = pair.getValue();
+            i++;
+        }
+        Exception error = null;
+        try {
+            db.putAll(keys, values);
+            flushedPairs.addAndGet(keys.length);
+            flushedBatches.incrementAndGet();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Fail to write a batch of " + keys.length + " buffered puts", e);
+            error = e;
+        } finally {
+            buffer.batchWritten(batch, error);
+            inFlightBatches.release();
+        }
+        return error;
+    }
+
+    private WriteBuffer bufferOf(byte key[]) {
+        if (shards != null) {
+            return buffers[shards.getShard(key)];
+        }
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        return buffers[Math.abs(hash % buffers.length)];
+    }
+
+    /**
+     * Queue the pending puts of the buffer as a batch, once a permit of inFlightBatches is acquired.
+     * @param block wait for a permit, or give up if there is none
+     * @return the future of the last batch of the buffer, or null if no permit is available
+     */
+    private CompletableFuture<Void> drain(WriteBuffer buffer, boolean block) {
+        synchronized (buffer) {
+            if (buffer.isEmpty()) return buffer.lastBatch;
+        }
+        if (block) {
+            inFlightBatches.acquireUninterruptibly();
+        } else if (!inFlightBatches.tryAcquire()) {
+            return null;
+        }
+        synchronized (buffer) {
+            if (buffer.isEmpty()) inFlightBatches.release(); // drained by another thread meanwhile
+            return buffer.drain();
+        }
+    }
+
+    /**
+     * @return the future completed when the put is written, null if not asked for
+     */
+    private CompletableFuture<Void> buffer(byte key[], byte value[], boolean async) throws IOException {
+        WriteBuffer buffer = bufferOf(key);
+        buffer.checkFailing();
+        boolean full;
+        CompletableFuture<Void> written = null;
+        synchronized (buffer) {
+            full = buffer.add(ByteBuffer.wrap(key), value);
+            if (async) written = buffer.pendingWritten();
+        }
+        if (full) drain(buffer, true);
+        return written;
+    }
+
+    /**
+     * Buffer the put. It blocks if writebehind.max.inflight.batches batches are waiting to be written.
+     */
+    @Override
+    public void put(byte[] key, byte[] value) throws Exception {
+        buffer(key, value, false);
+    }
+
+    @Override
+    public void putAll(byte[][] keys, byte[][] values) throws Exception {
+        assert keys.length == values.length;
+        for (int i = 0; i < keys.length; i++) {
+            put(keys[i], values[i]);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        try {
+            return buffer(key, value, true);
+        } catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws Exception {
+        WriteBuffer buffer = bufferOf(key);
+        byte value[];
+        synchronized (buffer) {
+            value = buffer.lookup(ByteBuffer.wrap(key));
+        }
+        return value != null ? value : db.get(key);
+    }
+
+    @Override
+    public byte[][] getAll(byte[][] keys) throws Exception {
+        byte results[][] = new byte[keys.length][];
+        int queryKeysIDs[] = new int[keys.length];
+        int numQueryKeys = 0;
+        for (int i = 0; i < keys.length; i++) {
+            WriteBuffer buffer = bufferOf(keys[i]);
+            synchronized (buffer) {
+                results[i] = buffer.lookup(ByteBuffer.wrap(keys[i]));
+            }
+            if (results[i] == null) {
+                queryKeysIDs[numQueryKeys++] = i;
+            }
+        }
+        if (numQueryKeys == 0) {
+            return results;
+        }
+        byte queryKeys[][] = new byte[numQueryKeys][];
+        for (int i = 0; i < numQueryKeys; i++) {
+            queryKeys[i] = keys[queryKeysIDs[i]];
+        }
+        byte queryResults[][] = db.getAll(queryKeys);
+        for (int i = 0; i < numQueryKeys; i++) {
+            results[queryKeysIDs[i]] = queryResults[i];
+        }
+        return results;
+    }
+
+    /**
+     * Start writing all the buffered puts, without waiting for them.
+     */
+    public void flush() throws IOException {
+        for (WriteBuffer buffer : buffers) {
+            drain(buffer, true);
+        }
+        for (WriteBuffer buffer : buffers) {
+            buffer.checkFailing();
+        }
+    }
+
+    /**
+     * Run by the flush timer, which never waits: the buffers left when all the permits are taken are drained by
+     * their puts or the next run.
+     */
+    private void drainAll() {
+        for (WriteBuffer buffer : buffers) {
+            if (drain(buffer, false) == null) return;
+        }
+    }
+
+    /**
+     * Durability barrier: return after all the puts made before the call are written to the database.
+     * @throws IOException if a batch failed while waiting, its puts are retried
+     */
+    public void sync() throws IOException, InterruptedException {
+        CompletableFuture<?> lastBatches[] = new CompletableFuture[buffers.length];
+        long numFailures[] = new long[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            numFailures[i] = buffers[i].numFailures();
+            lastBatches[i] = drain(buffers[i], true);
+        }
+        CompletableFuture.allOf(lastBatches).join(); // the batches record their failures instead of throwing
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].checkFailures(numFailures[i]);
+        }
+    }
+
+    private void syncBuffer(byte key[]) throws IOException, InterruptedException {
+        WriteBuffer buffer = bufferOf(key);
+        long numFailures = buffer.numFailures();
+        drain(buffer, true).join();
+        buffer.checkFailures(numFailures);
+    }
+
+    /**
+     * Write the buffered puts of the key first, so that they cannot overwrite the deletion.
+     */
+    @Override
+    public void delete(byte[] key) throws Exception {
+        syncBuffer(key);
+        db.delete(key);
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        sync();
+        db.deleteAll(keys);
+    }
+
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        sync();
+        return db.getScanSplits();
+    }
+
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        return db.scan(split);
+    }
+
+    @Override
+    public KVScanIterator scan(byte[] startKey, byte[] stopKey) throws Exception {
+        sync();
+        return db.scan(startKey, stopKey);
+    }
+
+    @Override
+    public void close() throws Exception {
+        flushTimer.shutdown();
+        flushTimer.awaitTermination(1, TimeUnit.MINUTES);
+        try {
+            sync();
+        } finally {
+            flushers.shutdown();
+            logger.info(String.format("Write-behind: %d pairs written in %d batches, %d puts collapsed.",
+                    flushedPairs.get(), flushedBatches.get(), collapsedPuts.get()));
+            db.close();
+        }
+    }
+
+    /**
+     * The buffered puts are written before the database is cleared.
+     */
+    @Override
+    public void clearDB() throws Exception {
+        sync();
+        db.clearDB();
+    }
+
+    @Override
+    public void createDB() throws Exception {
+        db.createDB();
+    }
+
+    public long getCollapsedPuts() {
+        return collapsedPuts.get();
+    }
+
+    public long getFlushedPairs() {
+        return flushedPairs.get();
+    }
+
+    public long getFlushedBatches() {
+        return flushedBatches.get();
+    }
+
+    private void loadConfigurations(Properties conf) {
+        this.dbClassName = conf.getProperty(CONF_DB_BACKEND_CLASS_NAME);
+        this.batchSize = Integer.parseInt(conf.getProperty(CONF_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.batchBytes = Long.parseLong(conf.getProperty(CONF_BATCH_BYTES, DEFAULT_BATCH_BYTES));
+        this.flushIntervalInMillis = Long.parseLong(conf.getProperty(CONF_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+        this.numBuffers = Integer.parseInt(conf.getProperty(CONF_NUM_BUFFERS, DEFAULT_NUM_BUFFERS));
+        this.numFlushers = Integer.parseInt(conf.getProperty(CONF_NUM_FLUSHERS, DEFAULT_NUM_FLUSHERS));
+        this.maxInFlightBatches = Integer.parseInt(
+                conf.getProperty(CONF_MAX_INFLIGHT_BATCHES, DEFAULT_MAX_INFLIGHT_BATCHES));
+        assert batchSize > 0 && flushIntervalInMillis > 0 && numBuffers > 0 && numFlushers > 0;
+    }
+
+    /**
+     * Connect to the underlying database
+     *
+     * @param conf Database connection-related configurations
+     * @throws Exception database connection exception
+     */
+    @Override
+    public void connect(Properties conf) throws Exception {
+        loadConfigurations(conf);
+        logger.info("Database backend:" + dbClassName);
+        this.db = (BasicKVDatabaseClient) Class.forName(dbClassName).newInstance();
+        db.connect(conf);
+        if (db instanceof ShardAware) {
+            this.shards = (ShardAware) db;
+            this.numBuffers = shards.getNumShards();
+        }
+        this.buffers = new WriteBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            buffers[i] = new WriteBuffer();
+        }
+        this.inFlightBatches = new Semaphore(maxInFlightBatches);
+        this.flushers = Executors.newFixedThreadPool(numFlushers, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Write Behind Flusher");
+            return thread;
+        });
+        this.flushTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Write Behind Timer");
+            return thread;
+        });
+        flushTimer.scheduleWithFixedDelay(this::drainAll,
+                flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+}
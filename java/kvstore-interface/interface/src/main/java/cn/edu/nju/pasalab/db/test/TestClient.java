@@ -5,6 +5,8 @@ import cn.edu.nju.pasalab.db.Utils;
 
 import java.io.FileInputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
@@ -164,6 +166,49 @@ public class TestClient {
                 e.printStackTrace();
             }
         });
+        logger.info("Start async fetching...");
+        List<CompletableFuture<Boolean>> asyncChecks = new ArrayList<>();
+        for (ArrayList<Tuple<Integer, byte[]>> items : data) {
+            byte keys[][] = new byte[items.size()][];
+            for (int i = 0; i < items.size(); i++) {
+                keys[i] = intToByteArray(items.get(i).x);
+            }
+            asyncChecks.add(client.getAllAsync(keys).thenApply(values -> {
+                for (int i = 0; i < items.size(); i++) {
+                    if (!Arrays.equals(values[i], items.get(i).y)) return false;
+                }
+                return true;
+            }));
+        }
+        for (CompletableFuture<Boolean> check : asyncChecks) {
+            boolean matched = check.get();
+            assert matched;
+        }
+        Tuple<Integer, byte[]> firstItem = data.get(0).get(0);
+        byte firstValue[] = client.getAsync(intToByteArray(firstItem.x)).get();
+        assert Arrays.equals(firstValue, firstItem.y);
+        logger.info("Start parallel full scan...");
+        LongAdder scannedPairs = new LongAdder();
+        client.scanAll(4, (key, value) -> scannedPairs.increment());
+        logger.info("Scanned pairs: " + scannedPairs.sum() + ", expect: " + keySet.size());
+        assert scannedPairs.sum() == keySet.size();
+        logger.info("Start delete test...");
+        data.parallelStream().forEach(items -> {
+            try {
+                byte keys[][] = new byte[items.size()][];
+                for (int i = 0; i < items.size(); i++) {
+                    keys[i] = intToByteArray(items.get(i).x);
+                }
+                client.delete(keys[0]);
+                client.deleteAll(keys);
+                byte values[][] = client.getAll(keys);
+                for (int i = 0; i < items.size(); i++) {
+                    assert values[i] == null;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
         logger.info("Start testing null key fetch");
         int nullKey = -1;
         byte[][] nullKeys = new byte[3][];
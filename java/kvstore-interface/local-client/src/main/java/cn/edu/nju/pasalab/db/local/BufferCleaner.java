@@ -0,0 +1,65 @@
+package cn.edu.nju.pasalab.db.local;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Release the memory of direct and mapped buffers at once, instead of when they are garbage collected,
+ * so a cleared store does not keep its deleted files mapped.
+ * Uses Unsafe.invokeCleaner on Java 9+, and the cleaner of the buffer on Java 8.
+ * The buffer, and every view of it, must not be used afterwards: it would crash the JVM.
+ */
+final class BufferCleaner {
+
+    private static final Logger logger = Logger.getLogger(BufferCleaner.class.getName());
+    private static final Object unsafe; // null on Java 8
+    private static final Method invokeCleaner;
+    private static final Method getCleaner; // null on Java 9+
+    private static final Method clean;
+
+    static {
+        Object theUnsafe = null;
+        Method invoke = null;
+        Method cleaner = null;
+        Method cleanMethod = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invoke = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invoke = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (ReflectiveOperationException | RuntimeException e8) {
+                logger.log(Level.FINE, "Cannot free direct buffers, they are left to the garbage collector", e8);
+            }
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = invoke;
+        getCleaner = cleaner;
+        clean = cleanMethod;
+    }
+
+    private BufferCleaner() {
+    }
+
+    static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else if (getCleaner != null) {
+                Object cleaner = getCleaner.invoke(buffer);
+                if (cleaner != null) clean.invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.FINE, "Cannot free a direct buffer, it is left to the garbage collector", e);
+        }
+    }
+}
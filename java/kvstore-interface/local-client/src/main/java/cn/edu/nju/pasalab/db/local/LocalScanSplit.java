@@ -0,0 +1,24 @@
+package cn.edu.nju.pasalab.db.local;
+
+import cn.edu.nju.pasalab.db.ScanSplit;
+
+/**
+ * A segment of the local log.
+ */
+public final class LocalScanSplit implements ScanSplit {
+
+    private final int segmentID;
+
+    public LocalScanSplit(int segmentID) {
+        this.segmentID = segmentID;
+    }
+
+    public int getSegmentID() {
+        return segmentID;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalScanSplit{" + segmentID + "}";
+    }
+}
@@ -0,0 +1,150 @@
+package cn.edu.nju.pasalab.db.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped segment of the append-only log.
+ *
+ * Layout: [end offset (8 bytes)] [record] [record] ...
+ * Record: [key length (4 bytes)] [value length (4 bytes), -1 for a deleted key] [key] [value]
+ * The end offset is updated after each append, so a reopened segment knows where its records end.
+ * Not thread-safe: appends must be serialized by the caller, reads may run concurrently with an append.
+ */
+final class LogSegment {
+
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int DELETED = -1;
+
+    private final int id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private volatile int end;
+
+    private LogSegment(int id, File file, MappedByteBuffer buffer, int end) {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+        this.end = end;
+    }
+
+    static LogSegment create(int id, File file, int size) throws IOException {
+        LogSegment segment = map(id, file, size);
+        segment.buffer.putLong(0, HEADER_SIZE);
+        segment.end = HEADER_SIZE;
+        return segment;
+    }
+
+    static LogSegment open(int id, File file) throws IOException {
+        return map(id, file, (int) file.length());
+    }
+
+    private static LogSegment map(int id, File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int end = (int) buffer.getLong(0);
+            return new LogSegment(id, file, buffer, Math.max(end, HEADER_SIZE));
+        }
+    }
+
+    static int recordSize(int keyLength, int valueLength) {
+        return RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    int remaining() {
+        return buffer.capacity() - end;
+    }
+
+    /**
+     * Append a record.
+     * @param value the value, null to record a deletion
+     * @return the offset of the record
+     */
+    int append(byte[] key, byte[] value) {
+        int offset = end;
+        ByteBuffer writer = buffer.duplicate();
+        writer.position(offset);
+        writer.putInt(key.length);
+        writer.putInt(value == null ? DELETED : value.length);
+        writer.put(key);
+        if (value != null) writer.put(value);
+        end = writer.position();
+        buffer.putLong(0, end);
+        return offset;
+    }
+
+    int keyLength(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    int valueLength(int offset) {
+        return buffer.getInt(offset + 4);
+    }
+
+    boolean keyEquals(int offset, byte[] key) {
+        if (keyLength(offset) != key.length) return false;
+        int keyStart = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyStart + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    byte[] readKey(int offset) {
+        byte[] key = new byte[keyLength(offset)];
+        ByteBuffer reader = buffer.duplicate();
+        reader.position(offset + RECORD_HEADER_SIZE);
+        reader.get(key);
+        return key;
+    }
+
+    /**
+     * @return a read-only view of the value in the mapped memory. Null if the record is a deletion.
+     */
+    ByteBuffer valueBuffer(int offset) {
+        int valueLength = valueLength(offset);
+        if (valueLength == DELETED) return null;
+        ByteBuffer reader = buffer.asReadOnlyBuffer();
+        int valueStart = offset + RECORD_HEADER_SIZE + keyLength(offset);
+        reader.limit(valueStart + valueLength);
+        reader.position(valueStart);
+        return reader.slice();
+    }
+
+    byte[] readValue(int offset) {
+        ByteBuffer valueBuffer = valueBuffer(offset);
+        if (valueBuffer == null) return null;
+        byte[] value = new byte[valueBuffer.remaining()];
+        valueBuffer.get(value);
+        return value;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Unmap the segment. Neither the segment nor the value buffers it returned may be used afterwards.
+     */
+    void unmap() {
+        BufferCleaner.free(buffer);
+    }
+
+    File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,436 @@
+package cn.edu.nju.pasalab.db.local;
+
+import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.PagedKVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
+import cn.edu.nju.pasalab.db.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * An embedded key-value store on local memory-mapped files, for single-node jobs and tests
+ * that need no external database.
+ *
+ * The pairs are appended to a log of memory-mapped segment files under local.data.dir.
+ * An off-heap hash index maps each key to its latest record, and is rebuilt from the log on connect.
+ * Overwritten and deleted records are not reclaimed until clearDB(), but deleted keys leave the index.
+ * The index takes at most about 47 million keys (see OffHeapHashIndex); beyond that, puts of new keys fail.
+ * thread-safe: reads run concurrently, writes are serialized.
+ */
+public final class MappedFileClient extends BasicKVDatabaseClient {
+
+    public static final String CONF_DATA_DIR = "local.data.dir";
+    public static final String DEFAULT_DATA_DIR = "/tmp/kvstore-local";
+    public static final String CONF_SEGMENT_SIZE = "local.segment.size"; // in byte
+    public static final String DEFAULT_SEGMENT_SIZE = "268435456"; // 256 MB
+    public static final String CONF_INDEX_INITIAL_CAPACITY = "local.index.initial.capacity"; // number of slots
+    public static final String DEFAULT_INDEX_INITIAL_CAPACITY = "65536";
+
+    private static final int SCAN_PAGE_SIZE = 1000;
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    private File dataDir;
+    private int segmentSize;
+    private int indexInitialCapacity;
+    private List<LogSegment> segments;
+    private OffHeapHashIndex index;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+    // Lookups and appends do not keep the key, so the long keys are encoded into a reused array
+    private static final ThreadLocal<byte[]> longKeyBuffer = ThreadLocal.withInitial(() -> new byte[8]);
+
+    private static int segmentID(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static long location(int segmentID, int offset) {
+        return ((long) segmentID << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private long findLocation(byte[] key) {
+        return index.find(OffHeapHashIndex.hash(key),
+                location -> segments.get(segmentID(location)).keyEquals(offset(location), key));
+    }
+
+    private byte[] readValue(byte[] key) {
+        long location = findLocation(key);
+        if (location < 0) return null;
+        return segments.get(segmentID(location)).readValue(offset(location));
+    }
+
+    /**
+     * @param key
+     * @return the value. Return null if the key does not exist.
+     * @throws Exception
+     */
+    @Override
+    public byte[] get(byte[] key) throws Exception {
+        lock.readLock().lock();
+        try {
+            return readValue(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The value is copied, as clearDB() and close() unmap the log.
+     */
+    @Override
+    public ByteBuffer get(ByteBuffer key) throws Exception {
+        byte[] value = get(Utils.toByteArray(key));
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * The value is copied from the mapped log into dest, with no intermediate array.
+     */
+    @Override
+    public int get(ByteBuffer key, ByteBuffer dest) throws Exception {
+        byte[] keyBytes = Utils.toByteArray(key);
+        lock.readLock().lock();
+        try {
+            long location = findLocation(keyBytes);
+            if (location < 0) return -1;
+            ByteBuffer value = segments.get(segmentID(location)).valueBuffer(offset(location));
+            if (value == null) return -1;
+            int length = value.remaining();
+            dest.put(value);
+            return length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[][] getAll(byte[][] keys) throws Exception {
+        byte[][] results = new byte[keys.length][];
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                results[i] = readValue(keys[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    @Override
+    public byte[] getLong(long key) throws Exception {
+        byte[] keyBytes = longKeyBuffer.get();
+        Utils.longToKey(key, keyBytes, 0);
+        return get(keyBytes);
+    }
+
+    @Override
+    public byte[][] getAllLong(long[] keys) throws Exception {
+        byte[][] results = new byte[keys.length][];
+        byte[] keyBytes = longKeyBuffer.get();
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                Utils.longToKey(keys[i], keyBytes, 0);
+                results[i] = readValue(keyBytes);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    @Override
+    public void putLong(long key, byte[] value) throws Exception {
+        byte[] keyBytes = longKeyBuffer.get();
+        Utils.longToKey(key, keyBytes, 0);
+        put(keyBytes, value);
+    }
+
+    @Override
+    public void putAllLong(long[] keys, byte[][] values) throws Exception {
+        assert keys.length == values.length;
+        byte[] keyBytes = longKeyBuffer.get();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                Utils.longToKey(keys[i], keyBytes, 0);
+                append(keyBytes, values[i]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws Exception {
+        lock.writeLock().lock();
+        try {
+            append(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void putAll(byte[][] keys, byte[][] values) throws Exception {
+        assert keys.length == values.length;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                append(keys[i], values[i]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        lock.writeLock().lock();
+        try {
+            appendDeletion(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        lock.writeLock().lock();
+        try {
+            for (byte[] key : keys) {
+                appendDeletion(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * One split per log segment.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        lock.readLock().lock();
+        try {
+            List<ScanSplit> splits = new ArrayList<>(segments.size());
+            for (LogSegment segment : segments) {
+                splits.add(new LocalScanSplit(segment.getId()));
+            }
+            return splits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walk the records of the segment, and return those the index still points to,
+     * i.e. the latest records of the keys that are not deleted.
+     */
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        int segmentID = ((LocalScanSplit) split).getSegmentID();
+        return new PagedKVScanIterator() {
+            private int offset = LogSegment.HEADER_SIZE;
+
+            @Override
+            protected List<Map.Entry<byte[], byte[]>> nextPage() throws Exception {
+                lock.readLock().lock();
+                try {
+                    LogSegment segment = segments.get(segmentID);
+                    if (offset >= segment.getEnd()) return null;
+                    List<Map.Entry<byte[], byte[]>> page = new ArrayList<>();
+                    while (offset < segment.getEnd() && page.size() < SCAN_PAGE_SIZE) {
+                        int valueLength = segment.valueLength(offset);
+                        if (valueLength != LogSegment.DELETED) {
+                            byte[] key = segment.readKey(offset);
+                            if (findLocation(key) == location(segmentID, offset)) {
+                                page.add(new AbstractMap.SimpleImmutableEntry<>(key, segment.readValue(offset)));
+                            }
+                        }
+                        offset += LogSegment.recordSize(segment.keyLength(offset), valueLength);
+                    }
+                    return page;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        };
+    }
+
+    private void appendDeletion(byte[] key) throws IOException {
+        if (findLocation(key) < 0) return;
+        append(key, null);
+    }
+
+    /**
+     * Append the record, then index it, or remove the key from the index for a deletion.
+     * @throws IOException if the key is new and the index is full; nothing is appended then
+     */
+    private void append(byte[] key, byte[] value) throws IOException {
+        if (value != null && index.isFull() && findLocation(key) < 0) {
+            throw new IOException("Cannot add a key to " + dataDir + ", its index is full with " + index.size() + " keys");
+        }
+        int recordSize = LogSegment.recordSize(key.length, value == null ? LogSegment.DELETED : value.length);
+        LogSegment segment = segments.get(segments.size() - 1);
+        if (segment.remaining() < recordSize) {
+            segment = newSegment(Math.max(segmentSize, LogSegment.HEADER_SIZE + recordSize));
+        }
+        int offset = segment.append(key, value);
+        indexRecord(key, value == null, location(segment.getId(), offset));
+    }
+
+    private void indexRecord(byte[] key, boolean deleted, long location) {
+        OffHeapHashIndex.KeyMatcher matcher = l -> segments.get(segmentID(l)).keyEquals(offset(l), key);
+        if (deleted) {
+            index.remove(OffHeapHashIndex.hash(key), matcher);
+        } else {
+            index.put(OffHeapHashIndex.hash(key), matcher, location);
+        }
+    }
+
+    private LogSegment newSegment(int size) throws IOException {
+        int id = segments.size();
+        File file = new File(dataDir, String.format("%s%08d%s", SEGMENT_FILE_PREFIX, id, SEGMENT_FILE_SUFFIX));
+        LogSegment segment = LogSegment.create(id, file, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Close the database files. The written data stays on disk.
+     */
+    @Override
+    public void close() throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (segments != null) {
+                for (LogSegment segment : segments) {
+                    segment.force();
+                }
+            }
+            release();
+            segments = null;
+            index = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void loadConfiguration(Properties conf) {
+        logger.info("Get configurations:" + conf);
+        this.dataDir = new File(conf.getProperty(CONF_DATA_DIR, DEFAULT_DATA_DIR));
+        this.segmentSize = Integer.parseInt(conf.getProperty(CONF_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE));
+        this.indexInitialCapacity = Integer.parseInt(
+                conf.getProperty(CONF_INDEX_INITIAL_CAPACITY, DEFAULT_INDEX_INITIAL_CAPACITY));
+    }
+
+    /**
+     * Open the data directory, and rebuild the index from the existing log.
+     *
+     * @param conf Database connection-related configurations
+     * @throws Exception database connection exception
+     */
+    @Override
+    public void connect(Properties conf) throws Exception {
+        loadConfiguration(conf);
+        createDB();
+    }
+
+    /**
+     * Delete all the segment files and start an empty log.
+     */
+    @Override
+    public void clearDB() throws Exception {
+        lock.writeLock().lock();
+        try {
+            release();
+            segments = null;
+            index = null;
+            for (File file : listSegmentFiles()) {
+                if (!file.delete()) {
+                    throw new IOException("Cannot delete " + file);
+                }
+            }
+            segments = new ArrayList<>();
+            index = new OffHeapHashIndex(indexInitialCapacity);
+            newSegment(segmentSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void createDB() throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+                throw new IOException("Cannot create the data directory " + dataDir);
+            }
+            release();
+            segments = new ArrayList<>();
+            index = new OffHeapHashIndex(indexInitialCapacity);
+            File[] files = listSegmentFiles();
+            for (int id = 0; id < files.length; id++) {
+                LogSegment segment = LogSegment.open(id, files[id]);
+                segments.add(segment);
+                replay(segment);
+            }
+            if (segments.isEmpty()) {
+                newSegment(segmentSize);
+            }
+            logger.info(String.format("Opened %d segments in %s with %d keys indexed.",
+                    segments.size(), dataDir, index.size()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void replay(LogSegment segment) {
+        int offset = LogSegment.HEADER_SIZE;
+        while (offset < segment.getEnd()) {
+            byte[] key = segment.readKey(offset);
+            indexRecord(key, segment.valueLength(offset) == LogSegment.DELETED, location(segment.getId(), offset));
+            offset += LogSegment.recordSize(segment.keyLength(offset), segment.valueLength(offset));
+        }
+    }
+
+    /**
+     * Unmap the segments and free the index at once, rather than when they are garbage collected.
+     */
+    private void release() {
+        if (segments != null) {
+            for (LogSegment segment : segments) {
+                segment.unmap();
+            }
+        }
+        if (index != null) {
+            index.free();
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = dataDir.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+}
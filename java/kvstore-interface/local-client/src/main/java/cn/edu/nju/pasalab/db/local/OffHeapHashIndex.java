@@ -0,0 +1,165 @@
+package cn.edu.nju.pasalab.db.local;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An open-addressing hash table in direct memory, mapping the 64-bit hash of a key to the location
+ * of its latest record in the log.
+ *
+ * Slot: [hash (8 bytes), 0 for an empty slot] [location (8 bytes): segment id << 32 | offset]
+ * Different keys may share a hash, so the caller checks the key stored in the log at each candidate location.
+ * The slot of a deleted key is emptied, and the following slots of its probe sequence are shifted back.
+ * The table grows up to MAX_CAPACITY slots; beyond MAX_LOAD_FACTOR of them, no new key is taken.
+ * Not thread-safe.
+ */
+final class OffHeapHashIndex {
+
+    private static final int SLOT_SIZE = 16;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    private static final int MAX_CAPACITY = 1 << 26; // keeps the slots within one direct buffer
+
+    interface KeyMatcher {
+        boolean matches(long location);
+    }
+
+    private ByteBuffer slots;
+    private int capacity; // power of 2
+    private int size = 0;
+
+    OffHeapHashIndex(int initialCapacity) {
+        this.capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+        this.slots = allocate(capacity);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    static long hash(byte[] key) {
+        // FNV-1a, finished with the MurmurHash3 mixer
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h; // 0 marks an empty slot
+    }
+
+    /**
+     * @return the location of the key, or -1 if the key is not indexed
+     */
+    long find(long hash, KeyMatcher matcher) {
+        int mask = capacity - 1;
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long slotHash = slots.getLong(i * SLOT_SIZE);
+            if (slotHash == 0) return -1;
+            if (slotHash == hash) {
+                long location = slots.getLong(i * SLOT_SIZE + 8);
+                if (matcher.matches(location)) return location;
+            }
+        }
+    }
+
+    /**
+     * @return whether a new key would exceed the largest table. The keys already indexed can still be updated.
+     */
+    boolean isFull() {
+        return capacity >= MAX_CAPACITY && size + 1 > capacity * MAX_LOAD_FACTOR;
+    }
+
+    /**
+     * Point the key to a new location.
+     * @throws IllegalStateException if the key is new and the index isFull(); the index is then unchanged
+     */
+    void put(long hash, KeyMatcher matcher, long location) {
+        int mask = capacity - 1;
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long slotHash = slots.getLong(i * SLOT_SIZE);
+            if (slotHash == 0) {
+                if (isFull()) {
+                    throw new IllegalStateException("The index is full with " + size + " keys");
+                }
+                slots.putLong(i * SLOT_SIZE, hash);
+                slots.putLong(i * SLOT_SIZE + 8, location);
+                size++;
+                if (size > capacity * MAX_LOAD_FACTOR && capacity < MAX_CAPACITY) resize();
+                return;
+            }
+            if (slotHash == hash && matcher.matches(slots.getLong(i * SLOT_SIZE + 8))) {
+                slots.putLong(i * SLOT_SIZE + 8, location);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the key, if it is indexed.
+     */
+    void remove(long hash, KeyMatcher matcher) {
+        int mask = capacity - 1;
+        int hole = (int) hash & mask;
+        for (; ; hole = (hole + 1) & mask) {
+            long slotHash = slots.getLong(hole * SLOT_SIZE);
+            if (slotHash == 0) return;
+            if (slotHash == hash && matcher.matches(slots.getLong(hole * SLOT_SIZE + 8))) break;
+        }
+        // Move back the slots that could not be found past the hole otherwise
+        for (int i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+            long slotHash = slots.getLong(i * SLOT_SIZE);
+            if (slotHash == 0) break;
+            int home = (int) slotHash & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                slots.putLong(hole * SLOT_SIZE, slotHash);
+                slots.putLong(hole * SLOT_SIZE + 8, slots.getLong(i * SLOT_SIZE + 8));
+                hole = i;
+            }
+        }
+        slots.putLong(hole * SLOT_SIZE, 0L);
+        slots.putLong(hole * SLOT_SIZE + 8, 0L);
+        size--;
+    }
+
+    private void resize() {
+        ByteBuffer oldSlots = slots;
+        int oldCapacity = capacity;
+        capacity = oldCapacity << 1;
+        slots = allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldCapacity; j++) {
+            long hash = oldSlots.getLong(j * SLOT_SIZE);
+            if (hash == 0) continue;
+            int i = (int) hash & mask;
+            while (slots.getLong(i * SLOT_SIZE) != 0) {
+                i = (i + 1) & mask;
+            }
+            slots.putLong(i * SLOT_SIZE, hash);
+            slots.putLong(i * SLOT_SIZE + 8, oldSlots.getLong(j * SLOT_SIZE + 8));
+        }
+        BufferCleaner.free(oldSlots);
+    }
+
+    /**
+     * Release the direct memory of the slots. The index must not be used afterwards.
+     */
+    void free() {
+        BufferCleaner.free(slots);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long memoryInBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,514 @@
+package cn.edu.nju.pasalab.db.metrics;
+
+import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wrap any database client and record the latency, throughput, errors and traffic of its operations.
+ *
+ * Every report interval the metrics are appended to a rotating metrics file, and they are always
+ * available as JMX MBeans named cn.edu.nju.pasalab.db:type=KVClientMetrics,client=...,name=....
+ */
+public class InstrumentedClient extends BasicKVDatabaseClient {
+
+    static public final String CONF_DB_BACKEND_CLASS_NAME = "metrics.db.backend.class.name"; // required, no default!
+    static public final String CONF_CLIENT_NAME = "metrics.client.name"; // default: simple class name of the backend
+    static public final String CONF_REPORT_INTERVAL = "metrics.report.interval.in.sec";
+    static public final String DEFAULT_REPORT_INTERVAL = "10";
+    static public final String CONF_METRICS_FILE_PATH = "metrics.file.path"; // empty to disable the file
+    static public final String DEFAULT_METRICS_FILE_PATH = "/tmp/kvstore.metrics";
+    static public final String CONF_METRICS_FILE_MAX_SIZE = "metrics.file.max.size.in.byte";
+    static public final String DEFAULT_METRICS_FILE_MAX_SIZE = "67108864";
+    static public final String CONF_METRICS_FILE_MAX_BACKUPS = "metrics.file.max.backups";
+    static public final String DEFAULT_METRICS_FILE_MAX_BACKUPS = "4";
+    static public final String CONF_JMX_ENABLED = "metrics.jmx.enabled";
+    static public final String DEFAULT_JMX_ENABLED = "true";
+
+    static final String JMX_DOMAIN = "cn.edu.nju.pasalab.db";
+    private static final AtomicInteger instanceCount = new AtomicInteger(0);
+
+    public enum Operation {
+        GET, GET_ALL, PUT, PUT_ALL, DELETE, DELETE_ALL
+    }
+
+    private BasicKVDatabaseClient db;
+    private String dbClassName;
+    private String clientName;
+    private long reportIntervalInSecond;
+    private String metricsFilePath;
+    private long metricsFileMaxSize;
+    private int metricsFileMaxBackups;
+    private boolean jmxEnabled;
+
+    private final OperationMetrics operations[];
+    private final TrafficMetrics traffic = new TrafficMetrics();
+    private final List<ObjectName> registeredMBeans = new ArrayList<>();
+    private ScheduledExecutorService reporter;
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    public InstrumentedClient() {
+        Operation values[] = Operation.values();
+        operations = new OperationMetrics[values.length];
+        for (Operation op : values) {
+            operations[op.ordinal()] = new OperationMetrics(op.name().toLowerCase());
+        }
+    }
+
+    public OperationMetrics getOperationMetrics(Operation op) {
+        return operations[op.ordinal()];
+    }
+
+    public TrafficMetrics getTrafficMetrics() {
+        return traffic;
+    }
+
+    public BasicKVDatabaseClient getBackend() {
+        return db;
+    }
+
+    private static long keyBytes(byte keys[][]) {
+        long bytes = 0L;
+        for (byte key[] : keys) {
+            bytes += key.length;
+        }
+        return bytes;
+    }
+
+    private void recordValuesIn(byte values[][]) {
+        for (byte value[] : values) {
+            if (value != null) traffic.recordValueIn(value.length);
+        }
+    }
+
+    private void recordValuesOut(byte values[][]) {
+        for (byte value[] : values) {
+            if (value != null) traffic.recordValueOut(value.length);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws Exception {
+        OperationMetrics metrics = operations[Operation.GET.ordinal()];
+        long start = System.nanoTime();
+        byte value[];
+        try {
+            value = db.get(key);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordKeysOut(key.length);
+        if (value != null) traffic.recordValueIn(value.length);
+        return value;
+    }
+
+    @Override
+    public ByteBuffer get(ByteBuffer key) throws Exception {
+        OperationMetrics metrics = operations[Operation.GET.ordinal()];
+        int keyLength = key.remaining();
+        long start = System.nanoTime();
+        ByteBuffer value;
+        try {
+            value = db.get(key);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordKeysOut(keyLength);
+        if (value != null) traffic.recordValueIn(value.remaining());
+        return value;
+    }
+
+    @Override
+    public int get(ByteBuffer key, ByteBuffer dest) throws Exception {
+        OperationMetrics metrics = operations[Operation.GET.ordinal()];
+        int keyLength = key.remaining();
+        long start = System.nanoTime();
+        int length;
+        try {
+            length = db.get(key, dest);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordKeysOut(keyLength);
+        if (length >= 0) traffic.recordValueIn(length);
+        return length;
+    }
+
+    @Override
+    public byte[][] getAll(byte[][] keys) throws Exception {
+        OperationMetrics metrics = operations[Operation.GET_ALL.ordinal()];
+        long start = System.nanoTime();
+        byte values[][];
+        try {
+            values = db.getAll(keys);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        if (values == null) { // a backend that reports a failure without throwing, e.g. ShardedLettuceClient
+            metrics.recordError(null);
+            return null;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordBatchSize(keys.length);
+        traffic.recordKeysOut(keyBytes(keys));
+        recordValuesIn(values);
+        return values;
+    }
+
+    @Override
+    public ByteBuffer[] getAll(ByteBuffer[] keys) throws Exception {
+        OperationMetrics metrics = operations[Operation.GET_ALL.ordinal()];
+        long keyBytes = 0L;
+        for (ByteBuffer key : keys) {
+            keyBytes += key.remaining();
+        }
+        long start = System.nanoTime();
+        ByteBuffer values[];
+        try {
+            values = db.getAll(keys);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        if (values == null) { // a backend that reports a failure without throwing, e.g. ShardedLettuceClient
+            metrics.recordError(null);
+            return null;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordBatchSize(keys.length);
+        traffic.recordKeysOut(keyBytes);
+        for (ByteBuffer value : values) {
+            if (value != null) traffic.recordValueIn(value.remaining());
+        }
+        return values;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws Exception {
+        OperationMetrics metrics = operations[Operation.PUT.ordinal()];
+        long start = System.nanoTime();
+        try {
+            db.put(key, value);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordKeysOut(key.length);
+        traffic.recordValueOut(value.length);
+    }
+
+    @Override
+    public void put(ByteBuffer key, ByteBuffer value) throws Exception {
+        OperationMetrics metrics = operations[Operation.PUT.ordinal()];
+        int keyLength = key.remaining();
+        int valueLength = value.remaining();
+        long start = System.nanoTime();
+        try {
+            db.put(key, value);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordKeysOut(keyLength);
+        traffic.recordValueOut(valueLength);
+    }
+
+    @Override
+    public void putAll(byte[][] keys, byte[][] values) throws Exception {
+        OperationMetrics metrics = operations[Operation.PUT_ALL.ordinal()];
+        long start = System.nanoTime();
+        try {
+            db.putAll(keys, values);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordBatchSize(keys.length);
+        traffic.recordKeysOut(keyBytes(keys));
+        recordValuesOut(values);
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        OperationMetrics metrics = operations[Operation.DELETE.ordinal()];
+        long start = System.nanoTime();
+        try {
+            db.delete(key);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordKeysOut(key.length);
+    }
+
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        OperationMetrics metrics = operations[Operation.DELETE_ALL.ordinal()];
+        long start = System.nanoTime();
+        try {
+            db.deleteAll(keys);
+        } catch (Exception e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        metrics.recordSuccess(System.nanoTime() - start);
+        traffic.recordBatchSize(keys.length);
+        traffic.recordKeysOut(keyBytes(keys));
+    }
+
+    /**
+     * The latency of an asynchronous call is measured from the call until its future completes.
+     */
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        OperationMetrics metrics = operations[Operation.GET.ordinal()];
+        long start = System.nanoTime();
+        return db.getAsync(key).whenComplete((value, error) -> {
+            if (error != null) {
+                metrics.recordError(error);
+                return;
+            }
+            metrics.recordSuccess(System.nanoTime() - start);
+            traffic.recordKeysOut(key.length);
+            if (value != null) traffic.recordValueIn(value.length);
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[][]> getAllAsync(byte[][] keys) {
+        OperationMetrics metrics = operations[Operation.GET_ALL.ordinal()];
+        long start = System.nanoTime();
+        return db.getAllAsync(keys).whenComplete((values, error) -> {
+            if (error != null || values == null) {
+                metrics.recordError(error);
+                return;
+            }
+            metrics.recordSuccess(System.nanoTime() - start);
+            traffic.recordBatchSize(keys.length);
+            traffic.recordKeysOut(keyBytes(keys));
+            recordValuesIn(values);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        OperationMetrics metrics = operations[Operation.PUT.ordinal()];
+        long start = System.nanoTime();
+        return db.putAsync(key, value).whenComplete((ignored, error) -> {
+            if (error != null) {
+                metrics.recordError(error);
+                return;
+            }
+            metrics.recordSuccess(System.nanoTime() - start);
+            traffic.recordKeysOut(key.length);
+            traffic.recordValueOut(value.length);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(byte[][] keys, byte[][] values) {
+        OperationMetrics metrics = operations[Operation.PUT_ALL.ordinal()];
+        long start = System.nanoTime();
+        return db.putAllAsync(keys, values).whenComplete((ignored, error) -> {
+            if (error != null) {
+                metrics.recordError(error);
+                return;
+            }
+            metrics.recordSuccess(System.nanoTime() - start);
+            traffic.recordBatchSize(keys.length);
+            traffic.recordKeysOut(keyBytes(keys));
+            recordValuesOut(values);
+        });
+    }
+
+    /**
+     * Scans are not instrumented.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        return db.getScanSplits();
+    }
+
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        return db.scan(split);
+    }
+
+    @Override
+    public KVScanIterator scan(byte[] startKey, byte[] stopKey) throws Exception {
+        return db.scan(startKey, stopKey);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            report();
+        }
+        unregisterMBeans();
+        db.close();
+    }
+
+    @Override
+    public void clearDB() throws Exception {
+        db.clearDB();
+    }
+
+    @Override
+    public void createDB() throws Exception {
+        db.createDB();
+    }
+
+    private void loadConfigurations(Properties conf) {
+        this.dbClassName = conf.getProperty(CONF_DB_BACKEND_CLASS_NAME);
+        this.clientName = conf.getProperty(CONF_CLIENT_NAME);
+        this.reportIntervalInSecond = Long.parseLong(conf.getProperty(CONF_REPORT_INTERVAL, DEFAULT_REPORT_INTERVAL));
+        this.metricsFilePath = conf.getProperty(CONF_METRICS_FILE_PATH, DEFAULT_METRICS_FILE_PATH);
+        this.metricsFileMaxSize = Long.parseLong(
+                conf.getProperty(CONF_METRICS_FILE_MAX_SIZE, DEFAULT_METRICS_FILE_MAX_SIZE));
+        this.metricsFileMaxBackups = Integer.parseInt(
+                conf.getProperty(CONF_METRICS_FILE_MAX_BACKUPS, DEFAULT_METRICS_FILE_MAX_BACKUPS));
+        this.jmxEnabled = Boolean.parseBoolean(conf.getProperty(CONF_JMX_ENABLED, DEFAULT_JMX_ENABLED));
+        assert reportIntervalInSecond > 0;
+    }
+
+    /**
+     * Connect to the underlying database
+     *
+     * @param conf Database connection-related configurations
+     * @throws Exception database connection exception
+     */
+    @Override
+    public void connect(Properties conf) throws Exception {
+        loadConfigurations(conf);
+        logger.info("Database backend:" + dbClassName);
+        Class dbClass = Class.forName(dbClassName);
+        this.db = (BasicKVDatabaseClient) dbClass.newInstance();
+        db.connect(conf);
+        if (clientName == null) {
+            clientName = dbClass.getSimpleName();
+        }
+        if (jmxEnabled) {
+            registerMBeans();
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Metrics Reporter");
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, reportIntervalInSecond, reportIntervalInSecond, TimeUnit.SECONDS);
+    }
+
+    private void registerMBeans() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String name = ObjectName.quote(clientName);
+        if (server.isRegistered(new ObjectName(JMX_DOMAIN + ":type=KVClientMetrics,client=" + name + ",name=traffic"))) {
+            // Another client of the same name lives in this JVM
+            name = ObjectName.quote(clientName + "-" + instanceCount.incrementAndGet());
+        }
+        String prefix = JMX_DOMAIN + ":type=KVClientMetrics,client=" + name + ",name=";
+        for (OperationMetrics metrics : operations) {
+            ObjectName objectName = new ObjectName(prefix + metrics.getOperation());
+            server.registerMBean(metrics, objectName);
+            registeredMBeans.add(objectName);
+        }
+        ObjectName objectName = new ObjectName(prefix + "traffic");
+        server.registerMBean(traffic, objectName);
+        registeredMBeans.add(objectName);
+    }
+
+    private void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registeredMBeans) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Fail to unregister " + objectName, e);
+            }
+        }
+        registeredMBeans.clear();
+    }
+
+    /**
+     * Close the last report interval, and append the metrics to the metrics file.
+     */
+    private synchronized void report() {
+        for (OperationMetrics metrics : operations) {
+            metrics.sample();
+        }
+        traffic.sample();
+        if (metricsFilePath == null || metricsFilePath.isEmpty()) {
+            return;
+        }
+        try {
+            rotateMetricsFile();
+            String time = LocalDateTime.now().toString();
+            try (PrintWriter writer = new PrintWriter(new FileWriter(metricsFilePath, true))) {
+                for (OperationMetrics metrics : operations) {
+                    writer.println(time + " client=" + clientName + " " + metrics);
+                }
+                writer.println(time + " client=" + clientName + " " + traffic);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Fail to write metrics to " + metricsFilePath, e);
+        }
+    }
+
+    /**
+     * Rename path to path.1, path.1 to path.2, ..., once the file grows over the size limit.
+     * The oldest backup is deleted.
+     */
+    private void rotateMetricsFile() throws IOException {
+        File current = new File(metricsFilePath);
+        if (current.length() < metricsFileMaxSize) {
+            return;
+        }
+        File oldest = new File(metricsFilePath + "." + metricsFileMaxBackups);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Cannot delete " + oldest);
+        }
+        for (int i = metricsFileMaxBackups - 1; i >= 1; i--) {
+            File backup = new File(metricsFilePath + "." + i);
+            if (backup.exists() && !backup.renameTo(new File(metricsFilePath + "." + (i + 1)))) {
+                throw new IOException("Cannot rename " + backup);
+            }
+        }
+        if (metricsFileMaxBackups <= 0) {
+            if (!current.delete()) throw new IOException("Cannot delete " + current);
+        } else if (!current.renameTo(new File(metricsFilePath + ".1"))) {
+            throw new IOException("Cannot rename " + current);
+        }
+    }
+}
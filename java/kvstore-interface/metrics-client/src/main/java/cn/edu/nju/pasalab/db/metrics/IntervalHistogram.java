@@ -0,0 +1,58 @@
+package cn.edu.nju.pasalab.db.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * A histogram that is recorded concurrently and read per report interval.
+ *
+ * Recording goes to an HdrHistogram Recorder, which is wait-free and does not allocate.
+ * Every call of sample() swaps out the values recorded since the last call as the interval histogram
+ * and adds them to the total histogram.
+ */
+class IntervalHistogram {
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final long highestTrackableValue;
+    private final Recorder recorder;
+    private final Histogram total;
+    private volatile Histogram interval;
+
+    IntervalHistogram(long highestTrackableValue) {
+        this.highestTrackableValue = highestTrackableValue;
+        this.recorder = new Recorder(highestTrackableValue, SIGNIFICANT_DIGITS);
+        this.total = new Histogram(highestTrackableValue, SIGNIFICANT_DIGITS);
+        this.interval = new Histogram(highestTrackableValue, SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * Values out of [0, highestTrackableValue] are clamped.
+     */
+    void record(long value) {
+        if (value < 0L) value = 0L;
+        if (value > highestTrackableValue) value = highestTrackableValue;
+        recorder.recordValue(value);
+    }
+
+    synchronized void sample() {
+        Histogram latest = recorder.getIntervalHistogram();
+        total.add(latest);
+        interval = latest;
+    }
+
+    /**
+     * @return the values recorded in the last report interval. Do not modify it.
+     */
+    Histogram interval() {
+        return interval;
+    }
+
+    synchronized long totalValueAtPercentile(double percentile) {
+        return total.getValueAtPercentile(percentile);
+    }
+
+    synchronized long totalMaxValue() {
+        return total.getMaxValue();
+    }
+}
@@ -0,0 +1,144 @@
+package cn.edu.nju.pasalab.db.metrics;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram and call counters of one operation.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private static final long MAX_LATENCY_IN_NANO = TimeUnit.HOURS.toNanos(1);
+
+    private final String operation;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final IntervalHistogram latency = new IntervalHistogram(MAX_LATENCY_IN_NANO);
+
+    OperationMetrics(String operation) {
+        this.operation = operation;
+    }
+
+    void recordSuccess(long latencyInNano) {
+        count.increment();
+        latency.record(latencyInNano);
+    }
+
+    /**
+     * @param error null if the backend returned a failure instead of throwing
+     */
+    void recordError(Throwable error) {
+        count.increment();
+        errorCount.increment();
+        if (isTimeout(error)) {
+            timeoutCount.increment();
+        }
+    }
+
+    /**
+     * The backends throw their own timeout exceptions (RedisCommandTimeoutException, OperationTimedOutException,
+     * SocketTimeoutException...), so they are recognized by name along the cause chain.
+     */
+    static boolean isTimeout(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            String name = e.getClass().getSimpleName();
+            if (e instanceof TimeoutException || name.contains("Timeout") || name.contains("TimedOut")) {
+                return true;
+            }
+            if (e.getCause() == e) break;
+        }
+        return false;
+    }
+
+    void sample() {
+        latency.sample();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * @return successful calls per second in the last report interval
+     */
+    @Override
+    public double getThroughput() {
+        Histogram interval = latency.interval();
+        long elapsedInMillis = interval.getEndTimeStamp() - interval.getStartTimeStamp();
+        if (elapsedInMillis <= 0) return 0.0;
+        return interval.getTotalCount() * 1000.0 / elapsedInMillis;
+    }
+
+    @Override
+    public double getMeanLatencyInMicros() {
+        return latency.interval().getMean() / 1000.0;
+    }
+
+    @Override
+    public long getP50LatencyInMicros() {
+        return toMicros(latency.interval().getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getP90LatencyInMicros() {
+        return toMicros(latency.interval().getValueAtPercentile(90.0));
+    }
+
+    @Override
+    public long getP99LatencyInMicros() {
+        return toMicros(latency.interval().getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getP999LatencyInMicros() {
+        return toMicros(latency.interval().getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public long getMaxLatencyInMicros() {
+        return toMicros(latency.interval().getMaxValue());
+    }
+
+    @Override
+    public long getTotalP99LatencyInMicros() {
+        return toMicros(latency.totalValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getTotalMaxLatencyInMicros() {
+        return toMicros(latency.totalMaxValue());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("op=%s count=%d errors=%d timeouts=%d throughput=%.1f/s "
+                        + "mean=%.1fus p50=%dus p90=%dus p99=%dus p999=%dus max=%dus",
+                operation, getCount(), getErrorCount(), getTimeoutCount(), getThroughput(),
+                getMeanLatencyInMicros(), getP50LatencyInMicros(), getP90LatencyInMicros(),
+                getP99LatencyInMicros(), getP999LatencyInMicros(), getMaxLatencyInMicros());
+    }
+}
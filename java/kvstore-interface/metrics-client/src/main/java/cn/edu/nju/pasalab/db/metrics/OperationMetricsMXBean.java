@@ -0,0 +1,35 @@
+package cn.edu.nju.pasalab.db.metrics;
+
+/**
+ * JMX view of one operation of an instrumented client.
+ * Latencies are in microseconds and only cover the successful calls.
+ * Unless named Total*, the distributions cover the last report interval.
+ */
+public interface OperationMetricsMXBean {
+
+    String getOperation();
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getTimeoutCount();
+
+    double getThroughput();
+
+    double getMeanLatencyInMicros();
+
+    long getP50LatencyInMicros();
+
+    long getP90LatencyInMicros();
+
+    long getP99LatencyInMicros();
+
+    long getP999LatencyInMicros();
+
+    long getMaxLatencyInMicros();
+
+    long getTotalP99LatencyInMicros();
+
+    long getTotalMaxLatencyInMicros();
+}
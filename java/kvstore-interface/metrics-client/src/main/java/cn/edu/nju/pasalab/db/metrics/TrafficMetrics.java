@@ -0,0 +1,102 @@
+package cn.edu.nju.pasalab.db.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes transferred, batch sizes and value sizes of an instrumented client.
+ */
+public class TrafficMetrics implements TrafficMetricsMXBean {
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final IntervalHistogram batchSizes = new IntervalHistogram(Integer.MAX_VALUE);
+    private final IntervalHistogram valueSizes = new IntervalHistogram(Integer.MAX_VALUE);
+
+    void recordBatchSize(int size) {
+        batchSizes.record(size);
+    }
+
+    /**
+     * A value read from the backend.
+     */
+    void recordValueIn(int size) {
+        bytesIn.add(size);
+        valueSizes.record(size);
+    }
+
+    /**
+     * A value written to the backend.
+     */
+    void recordValueOut(int size) {
+        bytesOut.add(size);
+        valueSizes.record(size);
+    }
+
+    void recordKeysOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void sample() {
+        batchSizes.sample();
+        valueSizes.sample();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        return batchSizes.interval().getMean();
+    }
+
+    @Override
+    public long getP50BatchSize() {
+        return batchSizes.interval().getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getP99BatchSize() {
+        return batchSizes.interval().getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getMaxBatchSize() {
+        return batchSizes.interval().getMaxValue();
+    }
+
+    @Override
+    public double getMeanValueSize() {
+        return valueSizes.interval().getMean();
+    }
+
+    @Override
+    public long getP50ValueSize() {
+        return valueSizes.interval().getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getP99ValueSize() {
+        return valueSizes.interval().getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getMaxValueSize() {
+        return valueSizes.interval().getMaxValue();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bytesIn=%d bytesOut=%d batch[mean=%.1f p50=%d p99=%d max=%d] "
+                        + "value[mean=%.1f p50=%d p99=%d max=%d]",
+                getBytesIn(), getBytesOut(),
+                getMeanBatchSize(), getP50BatchSize(), getP99BatchSize(), getMaxBatchSize(),
+                getMeanValueSize(), getP50ValueSize(), getP99ValueSize(), getMaxValueSize());
+    }
+}
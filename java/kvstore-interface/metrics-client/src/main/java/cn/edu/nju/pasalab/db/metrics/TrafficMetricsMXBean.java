@@ -0,0 +1,29 @@
+package cn.edu.nju.pasalab.db.metrics;
+
+/**
+ * JMX view of the data sent to and received from the backend of an instrumented client.
+ * Bytes out count the keys and the values written; bytes in count the values read.
+ * The batch-size and value-size distributions cover the last report interval.
+ */
+public interface TrafficMetricsMXBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMeanBatchSize();
+
+    long getP50BatchSize();
+
+    long getP99BatchSize();
+
+    long getMaxBatchSize();
+
+    double getMeanValueSize();
+
+    long getP50ValueSize();
+
+    long getP99ValueSize();
+
+    long getMaxValueSize();
+}
@@ -0,0 +1,54 @@
+package cn.edu.nju.pasalab.db.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Consistent hashing on a ring of virtual nodes, placed by the Murmur3 hash of "host#i".
+ *
+ * Shards are identified by host name, so hosts can be added to or removed from any position of
+ * redis.hosts.list, and only the keys of the ring ranges that change owner move.
+ */
+public class ConsistentHashShardRouter implements ShardRouter {
+
+    private final int numShards;
+    private final long points[]; // sorted positions of the virtual nodes on the ring
+    private final int shards[]; // owner of each virtual node
+
+    public ConsistentHashShardRouter(String hosts[], int virtualNodes) {
+        assert virtualNodes > 0;
+        this.numShards = hosts.length;
+        long nodes[][] = new long[hosts.length * virtualNodes][];
+        for (int shard = 0; shard < hosts.length; shard++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                byte name[] = (hosts[shard] + "#" + i).getBytes(StandardCharsets.UTF_8);
+                nodes[shard * virtualNodes + i] = new long[]{MurmurHash3.hash64(name), shard};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[nodes.length];
+        this.shards = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            shards[i] = (int) nodes[i][1];
+        }
+    }
+
+    /**
+     * The owner of the first virtual node at or after the hash of the key.
+     */
+    @Override
+    public int getShard(byte[] key) {
+        int index = Arrays.binarySearch(points, MurmurHash3.hash64(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) index = 0; // wrap around the ring
+        }
+        return shards[index];
+    }
+
+    @Override
+    public int getNumShards() {
+        return numShards;
+    }
+}
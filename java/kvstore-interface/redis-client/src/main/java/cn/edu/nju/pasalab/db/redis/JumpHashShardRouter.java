@@ -0,0 +1,37 @@
+package cn.edu.nju.pasalab.db.redis;
+
+/**
+ * Jump consistent hash (Lamping and Veach) over the Murmur3 hash of the key.
+ *
+ * It needs no memory and balances the keys evenly, but shards are identified by position:
+ * only appending hosts to or removing hosts from the end of redis.hosts.list moves the minimal number of keys.
+ */
+public class JumpHashShardRouter implements ShardRouter {
+
+    private final int numShards;
+
+    public JumpHashShardRouter(int numShards) {
+        this.numShards = numShards;
+    }
+
+    @Override
+    public int getShard(byte[] key) {
+        return jumpConsistentHash(MurmurHash3.hash64(key), numShards);
+    }
+
+    @Override
+    public int getNumShards() {
+        return numShards;
+    }
+
+    static int jumpConsistentHash(long key, int numBuckets) {
+        long b = -1L;
+        long j = 0L;
+        while (j < numBuckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1L;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
@@ -0,0 +1,26 @@
+package cn.edu.nju.pasalab.db.redis;
+
+import java.util.Arrays;
+
+/**
+ * The original placement: Arrays.hashCode(key) modulo the number of shards.
+ * Almost every key moves when the number of shards changes.
+ */
+public class ModuloShardRouter implements ShardRouter {
+
+    private final int numShards;
+
+    public ModuloShardRouter(int numShards) {
+        this.numShards = numShards;
+    }
+
+    @Override
+    public int getShard(byte[] key) {
+        return Math.abs(Arrays.hashCode(key) % numShards);
+    }
+
+    @Override
+    public int getNumShards() {
+        return numShards;
+    }
+}
@@ -0,0 +1,104 @@
+package cn.edu.nju.pasalab.db.redis;
+
+/**
+ * The lower 64 bits of MurmurHash3 x64_128.
+ */
+final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    static long hash64(byte data[]) {
+        return hash64(data, 0, data.length, 0L);
+    }
+
+    static long hash64(byte data[], int offset, int length, long seed) {
+        long h1 = seed;
+        long h2 = seed;
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            int p = offset + (i << 4);
+            long k1 = getLong(data, p);
+            long k2 = getLong(data, p + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        // tail
+        int tail = offset + (blocks << 4);
+        long k1 = 0L;
+        long k2 = 0L;
+        switch (length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xFFL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xFFL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xFFL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xFFL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xFFL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xFFL) << 8;
+            case 9:
+                k2 ^= data[tail + 8] & 0xFFL;
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            case 8: k1 ^= (data[tail + 7] & 0xFFL) << 56;
+            case 7: k1 ^= (data[tail + 6] & 0xFFL) << 48;
+            case 6: k1 ^= (data[tail + 5] & 0xFFL) << 40;
+            case 5: k1 ^= (data[tail + 4] & 0xFFL) << 32;
+            case 4: k1 ^= (data[tail + 3] & 0xFFL) << 24;
+            case 3: k1 ^= (data[tail + 2] & 0xFFL) << 16;
+            case 2: k1 ^= (data[tail + 1] & 0xFFL) << 8;
+            case 1:
+                k1 ^= data[tail] & 0xFFL;
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+        }
+        // finalization
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long getLong(byte data[], int p) {
+        return (data[p] & 0xFFL)
+                | (data[p + 1] & 0xFFL) << 8
+                | (data[p + 2] & 0xFFL) << 16
+                | (data[p + 3] & 0xFFL) << 24
+                | (data[p + 4] & 0xFFL) << 32
+                | (data[p + 5] & 0xFFL) << 40
+                | (data[p + 6] & 0xFFL) << 48
+                | (data[p + 7] & 0xFFL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,145 @@
+package cn.edu.nju.pasalab.db.redis;
+
+import cn.edu.nju.pasalab.db.InvalidationBus;
+import com.lambdaworks.redis.RedisChannelHandler;
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.RedisConnectionStateListener;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.codec.ByteArrayCodec;
+import com.lambdaworks.redis.pubsub.RedisPubSubAdapter;
+import com.lambdaworks.redis.pubsub.StatefulRedisPubSubConnection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An invalidation bus on a Redis pub/sub channel, e.g. for cache.invalidation.bus.class.name of CachedClient.
+ *
+ * A message is the id of the sending bus, the number of keys, then the length and the bytes of each key.
+ * A number of keys of -1 invalidates all the keys.
+ * Redis does not keep the messages published while a subscriber is disconnected, so the listener is told to
+ * invalidate everything when the subscriber connection is re-established.
+ */
+public final class RedisInvalidationBus implements InvalidationBus {
+
+    public static final String CONF_HOST = "redis.invalidation.host"; // default: the first of redis.hosts.list
+    public static final String CONF_CHANNEL = "redis.invalidation.channel";
+    public static final String DEFAULT_CHANNEL = "kvstore.invalidation";
+    private static final int INVALIDATE_ALL = -1; // in place of the number of keys
+
+    private final long id = new Random().nextLong();
+    private final Logger logger = Logger.getLogger(RedisInvalidationBus.class.getName());
+    private byte[] channel;
+    private int redisTimeout;
+    private RedisClient redisClient;
+    private StatefulRedisConnection<byte[], byte[]> publisher;
+    private StatefulRedisPubSubConnection<byte[], byte[]> subscriber;
+    private Listener listener;
+    private volatile boolean subscribed = false;
+
+    @Override
+    public void connect(Properties conf, Listener listener) throws Exception {
+        String hostsString = conf.getProperty(ShardedLettuceClient.CONF_HOSTS_LIST, ShardedLettuceClient.DEFAULT_HOSTS_LIST);
+        String host = conf.getProperty(CONF_HOST, hostsString.split(",")[0]);
+        int redisPort = Integer.parseInt(
+                conf.getProperty(ShardedLettuceClient.CONF_REDIS_PORT, ShardedLettuceClient.DEFAULT_REDIS_PORT));
+        this.redisTimeout = Integer.parseInt(
+                conf.getProperty(ShardedLettuceClient.CONF_TIME_OUT, ShardedLettuceClient.DEFAULT_TIME_OUT));
+        this.channel = conf.getProperty(CONF_CHANNEL, DEFAULT_CHANNEL).getBytes(StandardCharsets.UTF_8);
+        this.listener = listener;
+
+        this.redisClient = RedisClient.create(String.format("redis://%s:%d?timeout=%ds", host, redisPort, redisTimeout));
+        this.publisher = redisClient.connect(ByteArrayCodec.INSTANCE);
+        this.subscriber = redisClient.connectPubSub(ByteArrayCodec.INSTANCE);
+        subscriber.addListener(new RedisPubSubAdapter<byte[], byte[]>() {
+            @Override
+            public void message(byte[] channel, byte[] message) {
+                onMessage(message);
+            }
+        });
+        redisClient.addListener(new RedisConnectionStateListener() {
+            @Override
+            public void onRedisConnected(RedisChannelHandler<?, ?> connection) {
+                if (connection == subscriber && subscribed) {
+                    logger.warning("Reconnected to the invalidation channel, invalidate all the cached keys");
+                    listener.invalidateAll();
+                }
+            }
+
+            @Override
+            public void onRedisDisconnected(RedisChannelHandler<?, ?> connection) {
+            }
+
+            @Override
+            public void onRedisExceptionCaught(RedisChannelHandler<?, ?> connection, Throwable cause) {
+            }
+        });
+        subscriber.async().subscribe(channel).get(redisTimeout, TimeUnit.SECONDS);
+        this.subscribed = true;
+        logger.info(String.format("Subscribed to the invalidation channel %s on %s:%d.",
+                new String(channel, StandardCharsets.UTF_8), host, redisPort));
+    }
+
+    @Override
+    public void publish(byte keys[][]) throws Exception {
+        int length = 12;
+        for (byte[] key : keys) {
+            length += 4 + key.length;
+        }
+        ByteBuffer message = ByteBuffer.allocate(length);
+        message.putLong(id).putInt(keys.length);
+        for (byte[] key : keys) {
+            message.putInt(key.length).put(key);
+        }
+        publisher.async().publish(channel, message.array()).get(redisTimeout, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void publishInvalidateAll() throws Exception {
+        ByteBuffer message = ByteBuffer.allocate(12);
+        message.putLong(id).putInt(INVALIDATE_ALL);
+        publisher.async().publish(channel, message.array()).get(redisTimeout, TimeUnit.SECONDS);
+    }
+
+    private void onMessage(byte[] message) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            if (buffer.getLong() == id) {
+                return;
+            }
+            int numKeys = buffer.getInt();
+            if (numKeys == INVALIDATE_ALL) {
+                listener.invalidateAll();
+                return;
+            }
+            byte keys[][] = new byte[numKeys][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = new byte[buffer.getInt()];
+                buffer.get(keys[i]);
+            }
+            listener.invalidate(keys);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Invalid message on the invalidation channel, invalidate all the cached keys", e);
+            listener.invalidateAll();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        subscribed = false;
+        if (subscriber != null) {
+            subscriber.close();
+        }
+        if (publisher != null) {
+            publisher.close();
+        }
+        if (redisClient != null) {
+            redisClient.shutdown();
+        }
+    }
+}
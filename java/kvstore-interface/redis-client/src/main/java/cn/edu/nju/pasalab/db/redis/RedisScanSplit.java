@@ -0,0 +1,33 @@
+package cn.edu.nju.pasalab.db.redis;
+
+import cn.edu.nju.pasalab.db.ScanSplit;
+
+/**
+ * The keys stored on one Redis shard.
+ */
+public final class RedisScanSplit implements ScanSplit {
+
+    private final int serverID;
+    private final String host;
+
+    public RedisScanSplit(int serverID, String host) {
+        this.serverID = serverID;
+        this.host = host;
+    }
+
+    /**
+     * @return the index of the shard in redis.hosts.list
+     */
+    public int getServerID() {
+        return serverID;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public String toString() {
+        return "RedisScanSplit{" + serverID + ":" + host + "}";
+    }
+}
@@ -0,0 +1,38 @@
+package cn.edu.nju.pasalab.db.redis;
+
+/**
+ * Decide which shard of redis.hosts.list stores a key.
+ * Implementations are immutable and thread-safe.
+ */
+public interface ShardRouter {
+
+    String MODULO = "modulo";
+    String JUMP = "jump";
+    String CONSISTENT = "consistent";
+
+    /**
+     * @param key
+     * @return the index of the shard in the hosts list
+     */
+    int getShard(byte key[]);
+
+    int getNumShards();
+
+    /**
+     * @param type modulo, jump or consistent
+     * @param hosts the hosts list
+     * @param virtualNodes virtual nodes per host, only used by consistent hashing
+     */
+    static ShardRouter create(String type, String hosts[], int virtualNodes) {
+        switch (type) {
+            case MODULO:
+                return new ModuloShardRouter(hosts.length);
+            case JUMP:
+                return new JumpHashShardRouter(hosts.length);
+            case CONSISTENT:
+                return new ConsistentHashShardRouter(hosts, virtualNodes);
+            default:
+                throw new IllegalArgumentException("Unknown shard router: " + type);
+        }
+    }
+}
@@ -1,29 +1,50 @@
 package cn.edu.nju.pasalab.db.redis;
 
 import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.PagedKVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
+import cn.edu.nju.pasalab.db.ShardAware;
 
+import com.lambdaworks.redis.KeyScanCursor;
 import com.lambdaworks.redis.LettuceFutures;
 import com.lambdaworks.redis.RedisClient;
 import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.ScanArgs;
+import com.lambdaworks.redis.ScanCursor;
 import com.lambdaworks.redis.api.StatefulRedisConnection;
 import com.lambdaworks.redis.api.async.RedisAsyncCommands;
 import com.lambdaworks.redis.codec.ByteArrayCodec;
 import com.lambdaworks.redis.codec.RedisCodec;
 
 import java.text.ParseException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
  * Created by wzk on 18-4-28.
+ *
+ * Keys are placed on the hosts by the router of redis.shard.router. To change the hosts or the router online,
+ * keep the old settings in redis.rebalance.from.hosts.list and redis.rebalance.from.shard.router: reads that miss
+ * the new shard fall back to the old one, deletes go to the old one first and then to the new one, and rebalance()
+ * moves the keys whose shard changed.
  */
-public final class ShardedLettuceClient extends BasicKVDatabaseClient {
+public final class ShardedLettuceClient extends BasicKVDatabaseClient implements ShardAware {
 
     public static final String CONF_POOL_SIZE = "redis.connection.pool.size";
     public static final String DEFAULT_POOL_SIZE = "2";
@@ -33,15 +54,45 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
     public static final String DEFAULT_HOSTS_LIST = "localhost";
     public static final String CONF_REDIS_PORT = "redis.port";
     public static final String DEFAULT_REDIS_PORT = "6379";
-    public static final String CONF_TIME_OUT = "redis.timeout.in.sec"; //  in second
-    public static final String DEFAULT_TIME_OUT = "36000";
+    public static final String CONF_TIME_OUT = "redis.timeout.in.sec"; //  in second, the wait of every call
+    public static final String DEFAULT_TIME_OUT = "60";
+    public static final String CONF_SCAN_COUNT = "redis.scan.count"; // keys per SCAN call
+    public static final String DEFAULT_SCAN_COUNT = "1000";
+    public static final String CONF_DELETE_WITH_UNLINK = "redis.delete.with.unlink"; // UNLINK needs Redis 4.0+
+    public static final String DEFAULT_DELETE_WITH_UNLINK = "false";
+    public static final String CONF_DELETE_BATCH_SIZE = "redis.delete.batch.size"; // keys per DEL/UNLINK command
+    public static final String DEFAULT_DELETE_BATCH_SIZE = "512";
+    public static final String CONF_GET_BATCH_SIZE = "redis.get.batch.size"; // keys per MGET command of getAll
+    public static final String DEFAULT_GET_BATCH_SIZE = "512";
+    public static final String CONF_PUT_BATCH_SIZE = "redis.put.batch.size"; // keys per MSET command of putAll
+    public static final String DEFAULT_PUT_BATCH_SIZE = "512";
+    public static final String CONF_SHARD_ROUTER = "redis.shard.router"; // modulo, jump or consistent
+    public static final String DEFAULT_SHARD_ROUTER = ShardRouter.MODULO; // the placement of the existing data
+    public static final String CONF_VIRTUAL_NODES = "redis.shard.virtual.nodes"; // per host, for consistent hashing
+    public static final String DEFAULT_VIRTUAL_NODES = "160";
+    public static final String CONF_REBALANCE_FROM_HOSTS_LIST = "redis.rebalance.from.hosts.list"; // default: no change
+    public static final String CONF_REBALANCE_FROM_SHARD_ROUTER = "redis.rebalance.from.shard.router"; // default: no change
 
 
     String[] hosts;
+    private String[] connectedHosts; // hosts, followed by the hosts of the old placement that are removed
+    private ShardRouter router;
+    private ShardRouter previousRouter; // the old placement; null if not rebalancing
+    private int[] previousShardToConnection;
+    private volatile boolean rebalancing = false;
     private int databaseID;
     private int poolSize = 4;
     private int redisPort;
     private int redisTimeout;
+    private int scanCount;
+    private boolean deleteWithUnlink;
+    private int deleteBatchSize;
+    private int getBatchSize;
+    private int putBatchSize;
+    private String routerType;
+    private int virtualNodes;
+    private String[] previousHosts;
+    private String previousRouterType;
     private Logger logger = Logger.getLogger(ShardedLettuceClient.class.getName());
     private int currentClientIndex = 0;
     private StatefulRedisConnection<byte[], byte[]>[][] connections;
@@ -63,29 +114,37 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
         int serverID = fromKeyToServerID(key);
         RedisFuture<byte[]> ret = asyncCommands[ci][serverID].get(key);
         try {
-            return ret.get(1L, TimeUnit.DAYS);
+            byte[] value = ret.get(redisTimeout, TimeUnit.SECONDS);
+            if (value == null && rebalancing) {
+                int previousServerID = fromKeyToPreviousServerID(key);
+                if (previousServerID != serverID) {
+                    value = asyncCommands[ci][previousServerID].get(key).get(redisTimeout, TimeUnit.SECONDS);
+                }
+                if (value == null && previousServerID != serverID) { // moved between the two reads
+                    value = asyncCommands[ci][serverID].get(key).get(redisTimeout, TimeUnit.SECONDS);
+                }
+            }
+            return value;
         } catch (Exception e) {
             logger.log(Level.WARNING, "Cannot get value for key: " + Arrays.toString(key), e);
             return null;
         }
     }
 
+    /**
+     * Group the keys by shard, and get each group with pipelined MGET commands of at most redis.get.batch.size keys.
+     * @return the values in the order of the keys, or null on failure
+     */
     @Override
     public byte[][] getAll(byte keys[][]) throws Exception{
         assert connections != null;
         assert asyncCommands != null;
         int ci = getNextClientIndex();
-        RedisFuture<byte[]>[] futures = new RedisFuture[keys.length];
-        for (int i = 0; i < keys.length; i++) {
-            byte[] key = keys[i];
-            int serverID = fromKeyToServerID(key);
-            futures[i] = asyncCommands[ci][serverID].get(key);
-        }
+        byte[][] results = new byte[keys.length][];
         try {
-            LettuceFutures.awaitAll(1, TimeUnit.DAYS, futures);
-            byte[][] results = new byte[keys.length][];
-            for (int i = 0; i < keys.length; i++) {
-                results[i] = futures[i].get();
+            getAllFromShards(ci, keys, results).get(redisTimeout, TimeUnit.SECONDS);
+            if (rebalancing) {
+                getAllFromPreviousShards(ci, keys, results).get(redisTimeout, TimeUnit.SECONDS);
             }
             return results;
         } catch (Exception e) {
@@ -103,12 +162,20 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
         int serverID = fromKeyToServerID(key);
         RedisFuture<String> ret = asyncCommands[ci][serverID].set(key, value);
         try {
-            ret.await(1, TimeUnit.DAYS);
+            if (!ret.await(redisTimeout, TimeUnit.SECONDS)) {
+                throw new TimeoutException("Timeout when setting key: " + Arrays.toString(key));
+            }
         } catch (InterruptedException e) {
             logger.log(Level.WARNING, "Cannot set value for key: " + Arrays.toString(key), e);
         }
     }
 
+    /**
+     * Group the keys by shard, and set each group with pipelined MSET commands of at most redis.put.batch.size keys.
+     * @param keys
+     * @param values
+     * @throws Exception
+     */
     @Override
     public void putAll(byte keys[][], byte values[][]) throws Exception {
         assert keys.length == values.length;
@@ -116,13 +183,350 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
         assert asyncCommands != null;
         int ci = getNextClientIndex();
         assert asyncCommands[ci] != null;
-        List<RedisFuture<String>> futures = new ArrayList<>();
+        try {
+            putAllToShards(ci, keys, values).get(redisTimeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Timeout when setting " + keys.length + " keys");
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        assert connections != null;
+        assert asyncCommands != null;
+        int ci = getNextClientIndex();
+        int serverID = fromKeyToServerID(key);
+        CompletableFuture<byte[]> future = asyncCommands[ci][serverID].get(key).toCompletableFuture();
+        if (!rebalancing) {
+            return future;
+        }
+        return future.thenCompose(value -> {
+            int previousServerID = fromKeyToPreviousServerID(key);
+            if (value != null || previousServerID == serverID) {
+                return CompletableFuture.completedFuture(value);
+            }
+            return getFromPreviousShard(ci, key, previousServerID, serverID);
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[][]> getAllAsync(byte[][] keys) {
+        assert connections != null;
+        assert asyncCommands != null;
+        int ci = getNextClientIndex();
+        byte[][] results = new byte[keys.length][];
+        return getAllFromShards(ci, keys, results).thenCompose(v -> {
+            if (!rebalancing) {
+                return CompletableFuture.completedFuture(results);
+            }
+            return getAllFromPreviousShards(ci, keys, results).thenApply(ignored -> results);
+        });
+    }
+
+    /**
+     * Send one MGET per batch of the keys of a shard. The batches of different shards go on different connections,
+     * so they are served in parallel.
+     * @param results the values, set in place in the order of the keys
+     */
+    private CompletableFuture<Void> getAllFromShards(int ci, byte[][] keys, byte[][] results) {
+        int[][] indexesOfServers = groupByServer(keys);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int serverID = 0; serverID < indexesOfServers.length; serverID++) {
+            int[] indexes = indexesOfServers[serverID];
+            for (int from = 0; from < indexes.length; from += getBatchSize) {
+                int to = Math.min(from + getBatchSize, indexes.length);
+                byte[][] batch = new byte[to - from][];
+                for (int i = from; i < to; i++) {
+                    batch[i - from] = keys[indexes[i]];
+                }
+                int offset = from;
+                futures.add(asyncCommands[ci][serverID].mget(batch).toCompletableFuture().thenAccept(values -> {
+                    for (int i = 0; i < values.size(); i++) {
+                        results[indexes[offset + i]] = values.get(i);
+                    }
+                }));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Send one MSET per batch of the keys of a shard. A key given twice keeps its last value, as with SET.
+     */
+    private CompletableFuture<Void> putAllToShards(int ci, byte[][] keys, byte[][] values) {
+        int[][] indexesOfServers = groupByServer(keys);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int serverID = 0; serverID < indexesOfServers.length; serverID++) {
+            int[] indexes = indexesOfServers[serverID];
+            for (int from = 0; from < indexes.length; from += putBatchSize) {
+                int to = Math.min(from + putBatchSize, indexes.length);
+                // byte[] keys are compared by identity, so the duplicated keys stay in the order given
+                Map<byte[], byte[]> batch = new LinkedHashMap<>((to - from) * 4 / 3 + 1);
+                for (int i = from; i < to; i++) {
+                    batch.put(keys[indexes[i]], values[indexes[i]]);
+                }
+                futures.add(asyncCommands[ci][serverID].mset(batch).toCompletableFuture());
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * @return the indexes of the keys on each connected server, in the order of the keys
+     */
+    private int[][] groupByServer(byte[][] keys) {
+        int[] serverIDs = new int[keys.length];
+        int[] counts = new int[connectedHosts.length];
+        for (int i = 0; i < keys.length; i++) {
+            serverIDs[i] = fromKeyToServerID(keys[i]);
+            counts[serverIDs[i]]++;
+        }
+        int[][] indexesOfServers = new int[connectedHosts.length][];
+        for (int serverID = 0; serverID < connectedHosts.length; serverID++) {
+            indexesOfServers[serverID] = new int[counts[serverID]];
+            counts[serverID] = 0;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            indexesOfServers[serverIDs[i]][counts[serverIDs[i]]++] = i;
+        }
+        return indexesOfServers;
+    }
+
+    /**
+     * While rebalancing, look up the keys missing from their new shards in their old shards.
+     * @param results the values got from the new shards, updated in place
+     */
+    private CompletableFuture<Void> getAllFromPreviousShards(int ci, byte[][] keys, byte[][] results) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
         for (int i = 0; i < keys.length; i++) {
-            byte[] key = keys[i];
+            int serverID = fromKeyToServerID(keys[i]);
+            int previousServerID = fromKeyToPreviousServerID(keys[i]);
+            if (results[i] == null && previousServerID != serverID) {
+                int index = i;
+                futures.add(getFromPreviousShard(ci, keys[i], previousServerID, serverID)
+                        .thenAccept(value -> results[index] = value));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Read the key missing from its new shard in its old shard, and in the new shard again if it was moved meanwhile.
+     */
+    private CompletableFuture<byte[]> getFromPreviousShard(int ci, byte[] key, int previousServerID, int serverID) {
+        return asyncCommands[ci][previousServerID].get(key).toCompletableFuture().thenCompose(value ->
+                value != null ? CompletableFuture.completedFuture(value)
+                              : asyncCommands[ci][serverID].get(key).toCompletableFuture());
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        assert connections != null;
+        assert asyncCommands != null;
+        int ci = getNextClientIndex();
+        int serverID = fromKeyToServerID(key);
+        return asyncCommands[ci][serverID].set(key, value).toCompletableFuture().thenApply(s -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(byte[][] keys, byte[][] values) {
+        assert keys.length == values.length;
+        assert connections != null;
+        assert asyncCommands != null;
+        int ci = getNextClientIndex();
+        return putAllToShards(ci, keys, values);
+    }
+
+    @Override
+    public void delete(byte[] key) throws Exception {
+        assert connections != null;
+        assert asyncCommands != null;
+        int ci = getNextClientIndex();
+        int serverID = fromKeyToServerID(key);
+        if (rebalancing) {
+            int previousServerID = fromKeyToPreviousServerID(key);
+            if (previousServerID != serverID) { // first, or rebalance() could move the key back after it
+                asyncCommands[ci][previousServerID].del(key).get(redisTimeout, TimeUnit.SECONDS);
+            }
+        }
+        RedisFuture<Long> ret = deleteWithUnlink ? asyncCommands[ci][serverID].unlink(key)
+                                                 : asyncCommands[ci][serverID].del(key);
+        ret.get(redisTimeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Group the keys by shard, and delete each group with pipelined multi-key DEL/UNLINK commands
+     * of at most redis.delete.batch.size keys. While rebalancing, the keys are deleted from their old shards first.
+     * @param keys
+     * @throws Exception
+     */
+    @Override
+    public void deleteAll(byte[][] keys) throws Exception {
+        assert connections != null;
+        assert asyncCommands != null;
+        int ci = getNextClientIndex();
+        List<List<byte[]>> keysOfServers = new ArrayList<>(connectedHosts.length);
+        List<List<byte[]>> keysOfPreviousServers = new ArrayList<>(connectedHosts.length);
+        for (int i = 0; i < connectedHosts.length; i++) {
+            keysOfServers.add(new ArrayList<>());
+            keysOfPreviousServers.add(new ArrayList<>());
+        }
+        for (byte[] key : keys) {
             int serverID = fromKeyToServerID(key);
-            futures.add(asyncCommands[ci][serverID].set(key, values[i]));
+            keysOfServers.get(serverID).add(key);
+            if (rebalancing) {
+                int previousServerID = fromKeyToPreviousServerID(key);
+                if (previousServerID != serverID) {
+                    keysOfPreviousServers.get(previousServerID).add(key);
+                }
+            }
+        }
+        deleteFromServers(ci, keysOfPreviousServers, keys.length); // or rebalance() could move them back after
+        deleteFromServers(ci, keysOfServers, keys.length);
+    }
+
+    private void deleteFromServers(int ci, List<List<byte[]>> keysOfServers, int numKeys) throws Exception {
+        List<RedisFuture<Long>> futures = new ArrayList<>();
+        for (int serverID = 0; serverID < connectedHosts.length; serverID++) {
+            List<byte[]> serverKeys = keysOfServers.get(serverID);
+            for (int from = 0; from < serverKeys.size(); from += deleteBatchSize) {
+                int to = Math.min(from + deleteBatchSize, serverKeys.size());
+                byte[][] batch = serverKeys.subList(from, to).toArray(new byte[to - from][]);
+                futures.add(deleteWithUnlink ? asyncCommands[ci][serverID].unlink(batch)
+                                             : asyncCommands[ci][serverID].del(batch));
+            }
+        }
+        if (!LettuceFutures.awaitAll(redisTimeout, TimeUnit.SECONDS, futures.toArray(new RedisFuture[futures.size()]))) {
+            throw new TimeoutException("Timeout when deleting " + numKeys + " keys");
         }
-        LettuceFutures.awaitAll(1, TimeUnit.DAYS, futures.toArray(new RedisFuture[futures.size()]));
+    }
+
+    /**
+     * One split per Redis server. While rebalancing, the servers of the old placement are included,
+     * and a key being moved may be returned twice.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        List<ScanSplit> splits = new ArrayList<>(connectedHosts.length);
+        for (int i = 0; i < connectedHosts.length; i++) {
+            splits.add(new RedisScanSplit(i, connectedHosts[i]));
+        }
+        return splits;
+    }
+
+    /**
+     * Iterate over the keys of the shard with SCAN, and fetch the values of each page with MGET.
+     */
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        assert connections != null;
+        assert asyncCommands != null;
+        int serverID = ((RedisScanSplit) split).getServerID();
+        RedisAsyncCommands<byte[], byte[]> commands = asyncCommands[getNextClientIndex()][serverID];
+        ScanArgs scanArgs = ScanArgs.Builder.limit(scanCount);
+        return new PagedKVScanIterator() {
+            private ScanCursor cursor = ScanCursor.INITIAL;
+
+            @Override
+            protected List<Map.Entry<byte[], byte[]>> nextPage() throws Exception {
+                if (cursor.isFinished()) return null;
+                KeyScanCursor<byte[]> keyCursor = commands.scan(cursor, scanArgs).get(redisTimeout, TimeUnit.SECONDS);
+                cursor = keyCursor;
+                List<byte[]> keys = keyCursor.getKeys();
+                List<Map.Entry<byte[], byte[]>> page = new ArrayList<>(keys.size());
+                if (keys.isEmpty()) return page;
+                List<byte[]> values = commands.mget(keys.toArray(new byte[keys.size()][]))
+                        .get(redisTimeout, TimeUnit.SECONDS);
+                for (int i = 0; i < keys.size(); i++) {
+                    if (values.get(i) != null) { // deleted after SCAN returned it
+                        page.add(new AbstractMap.SimpleImmutableEntry<>(keys.get(i), values.get(i)));
+                    }
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Move the keys whose shard differs between the old and the new placement, one thread per old shard.
+     *
+     * Each key of a page of SCAN on an old shard is moved to its new shard with MIGRATE, which removes it from the
+     * old shard in the same step, so a key deleted meanwhile is not written back. A key already written to its new
+     * shard by the clients is kept there and deleted from the old shard. The hosts must reach each other under the
+     * names of redis.hosts.list. All the clients should already use the new placement. After it returns,
+     * redis.rebalance.from.* can be removed from the configurations.
+     * @return the number of keys moved
+     * @throws Exception
+     */
+    public long rebalance() throws Exception {
+        assert connections != null;
+        assert asyncCommands != null;
+        if (previousRouter == null) {
+            return 0L;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(previousShardToConnection.length, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("Redis Rebalancer");
+            return thread;
+        });
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int serverID : previousShardToConnection) {
+                RedisAsyncCommands<byte[], byte[]>[] commands = asyncCommands[getNextClientIndex()];
+                futures.add(pool.submit(() -> moveKeysOfServer(commands, serverID)));
+            }
+            long movedKeys = 0L;
+            for (Future<Long> future : futures) {
+                movedKeys += future.get();
+            }
+            rebalancing = false;
+            logger.info("Rebalancing done, " + movedKeys + " keys moved.");
+            return movedKeys;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private long moveKeysOfServer(RedisAsyncCommands<byte[], byte[]>[] commands, int serverID) throws Exception {
+        ScanArgs scanArgs = ScanArgs.Builder.limit(scanCount);
+        ScanCursor cursor = ScanCursor.INITIAL;
+        long timeoutInMillis = TimeUnit.SECONDS.toMillis(redisTimeout);
+        long movedKeys = 0L;
+        do {
+            KeyScanCursor<byte[]> keyCursor = commands[serverID].scan(cursor, scanArgs).get(redisTimeout, TimeUnit.SECONDS);
+            cursor = keyCursor;
+            List<byte[]> keysToMove = keyCursor.getKeys().stream()
+                    .filter(key -> fromKeyToServerID(key) != serverID)
+                    .collect(Collectors.toList());
+            if (keysToMove.isEmpty()) continue;
+            List<RedisFuture<String>> futures = new ArrayList<>(keysToMove.size());
+            for (byte[] key : keysToMove) {
+                futures.add(commands[serverID].migrate(connectedHosts[fromKeyToServerID(key)], redisPort, key,
+                        databaseID, timeoutInMillis));
+            }
+            List<byte[]> keysWritten = new ArrayList<>(); // already in their new shards
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    if ("OK".equals(futures.get(i).get(redisTimeout, TimeUnit.SECONDS))) { // or NOKEY if deleted
+                        movedKeys++;
+                    }
+                } catch (ExecutionException e) {
+                    String message = e.getCause() == null ? null : e.getCause().getMessage();
+                    if (message == null || !message.startsWith("BUSYKEY")) {
+                        throw new IllegalStateException("Fail to move keys from " + connectedHosts[serverID],
+                                e.getCause());
+                    }
+                    keysWritten.add(keysToMove.get(i));
+                }
+            }
+            if (!keysWritten.isEmpty()) {
+                commands[serverID].del(keysWritten.toArray(new byte[keysWritten.size()][]))
+                        .get(redisTimeout, TimeUnit.SECONDS);
+            }
+        } while (!cursor.isFinished());
+        logger.info("Moved " + movedKeys + " keys from " + connectedHosts[serverID]);
+        return movedKeys;
     }
 
     /**
@@ -132,7 +536,7 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
     public void close() throws Exception {
         if (connections != null) {
             for (int ci = 0; ci < poolSize; ci++) {
-                for (int i = 0; i < hosts.length; i++) {
+                for (int i = 0; i < connectedHosts.length; i++) {
                     connections[ci][i].close();
                 }
             }
@@ -156,6 +560,45 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
         // timeout
         String timeoutString = conf.getProperty(CONF_TIME_OUT, DEFAULT_TIME_OUT);
         this.redisTimeout = Integer.parseInt(timeoutString);
+        // scan count
+        String scanCountString = conf.getProperty(CONF_SCAN_COUNT, DEFAULT_SCAN_COUNT);
+        this.scanCount = Integer.parseInt(scanCountString);
+        // delete
+        String deleteWithUnlinkString = conf.getProperty(CONF_DELETE_WITH_UNLINK, DEFAULT_DELETE_WITH_UNLINK);
+        this.deleteWithUnlink = Boolean.parseBoolean(deleteWithUnlinkString);
+        String deleteBatchSizeString = conf.getProperty(CONF_DELETE_BATCH_SIZE, DEFAULT_DELETE_BATCH_SIZE);
+        this.deleteBatchSize = Integer.parseInt(deleteBatchSizeString);
+        // multi-key get and put
+        this.getBatchSize = Integer.parseInt(conf.getProperty(CONF_GET_BATCH_SIZE, DEFAULT_GET_BATCH_SIZE));
+        this.putBatchSize = Integer.parseInt(conf.getProperty(CONF_PUT_BATCH_SIZE, DEFAULT_PUT_BATCH_SIZE));
+        // shard router
+        this.routerType = conf.getProperty(CONF_SHARD_ROUTER, DEFAULT_SHARD_ROUTER);
+        this.virtualNodes = Integer.parseInt(conf.getProperty(CONF_VIRTUAL_NODES, DEFAULT_VIRTUAL_NODES));
+        String previousHostsString = conf.getProperty(CONF_REBALANCE_FROM_HOSTS_LIST, hostsString);
+        this.previousHosts = previousHostsString.split(",");
+        this.previousRouterType = conf.getProperty(CONF_REBALANCE_FROM_SHARD_ROUTER, routerType);
+    }
+
+    private void createRouters() {
+        this.router = ShardRouter.create(routerType, hosts, virtualNodes);
+        List<String> connected = new ArrayList<>(Arrays.asList(hosts));
+        if (Arrays.equals(previousHosts, hosts) && previousRouterType.equals(routerType)) {
+            this.previousRouter = null;
+            this.rebalancing = false;
+        } else {
+            this.previousRouter = ShardRouter.create(previousRouterType, previousHosts, virtualNodes);
+            this.previousShardToConnection = new int[previousHosts.length];
+            for (int i = 0; i < previousHosts.length; i++) {
+                if (!connected.contains(previousHosts[i])) {
+                    connected.add(previousHosts[i]);
+                }
+                previousShardToConnection[i] = connected.indexOf(previousHosts[i]);
+            }
+            this.rebalancing = true;
+            logger.info(String.format("Rebalance from %s (%s) to %s (%s).", Arrays.toString(previousHosts),
+                    previousRouterType, Arrays.toString(hosts), routerType));
+        }
+        this.connectedHosts = connected.toArray(new String[connected.size()]);
     }
 
     /**
@@ -167,18 +610,19 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
     @Override
     public void connect(Properties conf) throws Exception {
         loadConfiguration(conf);
-        connections = new StatefulRedisConnection[poolSize][hosts.length];
-        asyncCommands = new RedisAsyncCommands[poolSize][hosts.length];
+        createRouters();
+        connections = new StatefulRedisConnection[poolSize][connectedHosts.length];
+        asyncCommands = new RedisAsyncCommands[poolSize][connectedHosts.length];
         for (int cIndex = 0; cIndex < poolSize; cIndex++) {
-            for (int i = 0; i < hosts.length; i++) {
+            for (int i = 0; i < connectedHosts.length; i++) {
                 String redisURI = String.format("redis://%s:%d/%d?timeout=%ds",
-                                                hosts[i], redisPort, databaseID, redisTimeout);
+                                                connectedHosts[i], redisPort, databaseID, redisTimeout);
                 RedisClient redisClient = RedisClient.create(redisURI);
                 connections[cIndex][i] = redisClient.connect(codec);
                 asyncCommands[cIndex][i] = connections[cIndex][i].async();
             }
         }
-        logger.info("Init redis client with " + hosts.length + " servers done!");
+        logger.info("Init redis client with " + connectedHosts.length + " servers done!");
     }
 
     /**
@@ -191,7 +635,9 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
         List<RedisFuture<String>> futures = Arrays.stream(connections[0]).parallel()
                 .map(con -> con.async().flushdb())
                 .collect(Collectors.toList());
-        LettuceFutures.awaitAll(1, TimeUnit.DAYS, futures.toArray(new RedisFuture[futures.size()]));
+        if (!LettuceFutures.awaitAll(redisTimeout, TimeUnit.SECONDS, futures.toArray(new RedisFuture[futures.size()]))) {
+            throw new TimeoutException("Timeout when flushing the databases");
+        }
     }
 
     @Override
@@ -200,7 +646,27 @@ public final class ShardedLettuceClient extends BasicKVDatabaseClient {
     }
 
     private int fromKeyToServerID(byte[] key) {
-        return (int) Math.abs(Arrays.hashCode(key)) % hosts.length;
+        return router.getShard(key);
+    }
+
+    @Override
+    public int getNumShards() {
+        return hosts.length;
+    }
+
+    @Override
+    public int getShard(byte[] key) {
+        return fromKeyToServerID(key);
+    }
+
+    /**
+     * @return the server of the key in the old placement. The same as fromKeyToServerID if not rebalancing.
+     */
+    private int fromKeyToPreviousServerID(byte[] key) {
+        if (!rebalancing) {
+            return fromKeyToServerID(key);
+        }
+        return previousShardToConnection[previousRouter.getShard(key)];
     }
 
     private int getNextClientIndex() {
@@ -1,11 +1,17 @@
 package cn.edu.nju.pasalab.db.redis;
 
 import cn.edu.nju.pasalab.db.BasicKVDatabaseClient;
+import cn.edu.nju.pasalab.db.KVScanIterator;
+import cn.edu.nju.pasalab.db.PagedKVScanIterator;
+import cn.edu.nju.pasalab.db.ScanSplit;
 import redis.clients.jedis.*;
 
 import java.text.ParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
@@ -26,6 +32,8 @@ public final class ShardedRedisClusterClient extends BasicKVDatabaseClient {
     public static final String DEFAULT_REDIS_PORT = "6379";
     public static final String CONF_TIME_OUT = "redis.timeout.in.sec"; //  in second
     public static final String DEFAULT_TIME_OUT = "36000";
+    public static final String CONF_SCAN_COUNT = "redis.scan.count"; // keys per SCAN call
+    public static final String DEFAULT_SCAN_COUNT = "1000";
 
 
     private List<String> hosts;
@@ -33,6 +41,7 @@ public final class ShardedRedisClusterClient extends BasicKVDatabaseClient {
     private int poolSize = 4;
     private int redisPort;
     private int redisTimeout;
+    private int scanCount;
     private ShardedJedisPool pool;
     private Logger logger = Logger.getLogger(ShardedRedisClusterClient.class.getName());
 
@@ -83,6 +92,74 @@ public final class ShardedRedisClusterClient extends BasicKVDatabaseClient {
         }
     }
 
+    @Override
+    public void delete(byte[] key) throws Exception {
+        try(ShardedJedis jedis = pool.getResource()) {
+            jedis.del(key);
+        }
+    }
+
+    @Override
+    public void deleteAll(byte keys[][]) throws Exception {
+        try(ShardedJedis jedis = pool.getResource()){
+            ShardedJedisPipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < keys.length; i++) {
+                pipeline.del(keys[i]);
+            }
+            pipeline.sync();
+        }
+    }
+
+    /**
+     * One split per Redis server.
+     */
+    @Override
+    public List<ScanSplit> getScanSplits() throws Exception {
+        List<ScanSplit> splits = new ArrayList<>(hosts.size());
+        for (int i = 0; i < hosts.size(); i++) {
+            splits.add(new RedisScanSplit(i, hosts.get(i)));
+        }
+        return splits;
+    }
+
+    /**
+     * Iterate over the keys of the shard with SCAN, and fetch the values of each page with MGET.
+     * The scan holds its own connection to the shard, which is released when the iterator is closed.
+     */
+    @Override
+    public KVScanIterator scan(ScanSplit split) throws Exception {
+        Jedis jedis = new Jedis(((RedisScanSplit) split).getHost(), redisPort, redisTimeout);
+        jedis.select(databaseID);
+        ScanParams scanParams = new ScanParams().count(scanCount);
+        return new PagedKVScanIterator() {
+            private byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            private boolean finished = false;
+
+            @Override
+            protected List<Map.Entry<byte[], byte[]>> nextPage() throws Exception {
+                if (finished) return null;
+                ScanResult<byte[]> result = jedis.scan(cursor, scanParams);
+                cursor = result.getCursorAsBytes();
+                finished = Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY);
+                List<byte[]> keys = result.getResult();
+                List<Map.Entry<byte[], byte[]>> page = new ArrayList<>(keys.size());
+                if (keys.isEmpty()) return page;
+                List<byte[]> values = jedis.mget(keys.toArray(new byte[keys.size()][]));
+                for (int i = 0; i < keys.size(); i++) {
+                    if (values.get(i) != null) { // deleted after SCAN returned it
+                        page.add(new AbstractMap.SimpleImmutableEntry<>(keys.get(i), values.get(i)));
+                    }
+                }
+                return page;
+            }
+
+            @Override
+            public void close() throws Exception {
+                jedis.close();
+            }
+        };
+    }
+
     @Override
     public void close() throws Exception{
         logger.info("Start closing connection pool...");
@@ -108,6 +185,9 @@ public final class ShardedRedisClusterClient extends BasicKVDatabaseClient {
         // timeout
         String timeoutString = conf.getProperty(CONF_TIME_OUT, DEFAULT_TIME_OUT);
         this.redisTimeout = Integer.parseInt(timeoutString);
+        // scan count
+        String scanCountString = conf.getProperty(CONF_SCAN_COUNT, DEFAULT_SCAN_COUNT);
+        this.scanCount = Integer.parseInt(scanCountString);
     }
 
     @Override